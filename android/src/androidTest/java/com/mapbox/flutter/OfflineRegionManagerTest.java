@@ -0,0 +1,316 @@
+package com.mapbox.flutter;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.mapbox.mapboxsdk.Mapbox;
+import com.mapbox.mapboxsdk.geometry.LatLngBounds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads regions from a local stand-in tile server, which records the zoom level of every
+ * tile request and can hold tile responses back to keep zoom levels downloading.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OfflineRegionManagerTest {
+
+  private static final long TIMEOUT_SECONDS = 30;
+  private static final LatLngBounds BOUNDS = LatLngBounds.from(1, 1, 0, 0);
+
+  private StubTileServer server;
+  private OfflineRegionManager manager;
+
+  @Before
+  public void setUp() throws Exception {
+    final Context context = InstrumentationRegistry.getTargetContext();
+    server = new StubTileServer();
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        Mapbox.getInstance(context, "pk.test");
+        manager = new OfflineRegionManager(context, new MapEventStreamHandler());
+      }
+    });
+
+    // Regions of earlier runs are loaded paused, remove them
+    for (Map<String, Object> region : list()) {
+      delete((String) region.get("regionId"));
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.releaseTiles();
+    for (Map<String, Object> region : list()) {
+      delete((String) region.get("regionId"));
+    }
+    server.close();
+  }
+
+  @Test
+  public void downloadsLowZoomLevelsFirst() throws Exception {
+    setMaxActiveDownloads(1);
+    String regionId = create(0, 3);
+
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+    while (!"complete".equals(regionOf(regionId).get("state"))) {
+      assertTrue("Region did not complete", System.currentTimeMillis() < deadline);
+      Thread.sleep(100);
+    }
+
+    List<Integer> zooms = server.requestedZooms();
+    List<Integer> sorted = new ArrayList<>(zooms);
+    Collections.sort(sorted);
+    assertEquals(sorted, zooms);
+    assertEquals(Integer.valueOf(0), zooms.get(0));
+    assertEquals(Integer.valueOf(3), zooms.get(zooms.size() - 1));
+  }
+
+  @Test
+  public void loweringTheLimitPausesHighZoomLevelsFirst() throws Exception {
+    server.holdTiles();
+    setMaxActiveDownloads(3);
+    String regionId = create(0, 3);
+    assertEquals(0, regionOf(regionId).get("activeZoom"));
+
+    setMaxActiveDownloads(1);
+    Map<String, Object> region = regionOf(regionId);
+    assertEquals("downloading", region.get("state"));
+    assertEquals(0, region.get("activeZoom"));
+  }
+
+  private String create(final int minZoom, final int maxZoom) throws Exception {
+    final BlockingResult result = new BlockingResult();
+    final String styleUrl = server.styleUrl();
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        manager.create("test", styleUrl, BOUNDS, minZoom, maxZoom, result);
+      }
+    });
+    Map<String, Object> reply = result.get();
+    return (String) reply.get("regionId");
+  }
+
+  private List<Map<String, Object>> list() throws Exception {
+    final BlockingResult result = new BlockingResult();
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        manager.list(result);
+      }
+    });
+    return result.get();
+  }
+
+  private Map<String, Object> regionOf(String regionId) throws Exception {
+    for (Map<String, Object> region : list()) {
+      if (regionId.equals(region.get("regionId"))) {
+        return region;
+      }
+    }
+    throw new AssertionError("Unknown region " + regionId);
+  }
+
+  private void delete(final String regionId) throws Exception {
+    final BlockingResult result = new BlockingResult();
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        manager.delete(regionId, result);
+      }
+    });
+    result.get();
+  }
+
+  private void setMaxActiveDownloads(final int maxActiveDownloads) {
+    runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        manager.setMaxActiveDownloads(maxActiveDownloads);
+      }
+    });
+  }
+
+  private static void runOnMainSync(Runnable runnable) {
+    InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+  }
+
+  private static final class BlockingResult implements Result {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Object reply;
+    private String error;
+
+    @Override
+    public void success(Object reply) {
+      this.reply = reply;
+      done.countDown();
+    }
+
+    @Override
+    public void error(String code, String message, Object details) {
+      this.error = code + ": " + message;
+      done.countDown();
+    }
+
+    @Override
+    public void notImplemented() {
+      error("notImplemented", null, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T get() throws InterruptedException {
+      assertTrue("No reply", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      if (error != null) {
+        throw new AssertionError(error);
+      }
+      return (T) reply;
+    }
+  }
+
+  /**
+   * Serves a style with a single vector source and empty tiles of it over HTTP.
+   */
+  private static final class StubTileServer implements Runnable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern TILE_PATH = Pattern.compile("/tiles/(\\d+)/\\d+/\\d+\\.pbf");
+
+    private final ServerSocket serverSocket;
+    private final List<Integer> requestedZooms = new ArrayList<>();
+    private final CountDownLatch tilesReleased = new CountDownLatch(1);
+    private volatile boolean holdTiles;
+
+    StubTileServer() throws IOException {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      Thread thread = new Thread(this, "StubTileServer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String styleUrl() {
+      return baseUrl() + "/style.json";
+    }
+
+    synchronized List<Integer> requestedZooms() {
+      return new ArrayList<>(requestedZooms);
+    }
+
+    void holdTiles() {
+      holdTiles = true;
+    }
+
+    void releaseTiles() {
+      tilesReleased.countDown();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      while (!serverSocket.isClosed()) {
+        try {
+          final Socket socket = serverSocket.accept();
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              handle(socket);
+            }
+          }, "StubTileServerConnection").start();
+        } catch (IOException exception) {
+          return;
+        }
+      }
+    }
+
+    private void handle(Socket socket) {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+        String requestLine = reader.readLine();
+        String header;
+        do {
+          header = reader.readLine();
+        } while (header != null && !header.isEmpty());
+        if (requestLine == null) {
+          return;
+        }
+
+        String path = requestLine.split(" ")[1];
+        Matcher tile = TILE_PATH.matcher(path);
+        if (path.equals("/style.json")) {
+          respond(socket, "200 OK", styleJson());
+        } else if (tile.matches()) {
+          synchronized (this) {
+            requestedZooms.add(Integer.parseInt(tile.group(1)));
+          }
+          if (holdTiles) {
+            tilesReleased.await();
+          }
+          respond(socket, "204 No Content", null);
+        } else {
+          respond(socket, "404 Not Found", null);
+        }
+      } catch (IOException | InterruptedException exception) {
+        // The client went away
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException exception) {
+          // Already closed
+        }
+      }
+    }
+
+    private String baseUrl() {
+      return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    private String styleJson() {
+      return "{\"version\":8,"
+          + "\"sources\":{\"stub\":{\"type\":\"vector\",\"minzoom\":0,\"maxzoom\":14,"
+          + "\"tiles\":[\"" + baseUrl() + "/tiles/{z}/{x}/{y}.pbf\"]}},"
+          + "\"layers\":[{\"id\":\"stub\",\"type\":\"line\",\"source\":\"stub\",\"source-layer\":\"stub\"}]}";
+    }
+
+    private static void respond(Socket socket, String status, String body) throws IOException {
+      byte[] bytes = body != null ? body.getBytes(UTF_8) : new byte[0];
+      String head = "HTTP/1.1 " + status + "\r\n"
+          + "Content-Type: application/json\r\n"
+          + "Content-Length: " + bytes.length + "\r\n"
+          + "Connection: close\r\n\r\n";
+      OutputStream output = socket.getOutputStream();
+      output.write(head.getBytes(UTF_8));
+      output.write(bytes);
+      output.flush();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.mapbox.flutter;
+
+import android.graphics.PointF;
+
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+
+/**
+ * Merges consecutive immediate moveBy and zoomBy commands into a single screen transform.
+ * <p>
+ * Both commands are similarity transforms of the screen (q -> scale * q + offset), so any run
+ * of them collapses into one moveBy followed by one zoom around the last focal point.
+ * </p>
+ */
+class CameraCommandCoalescer {
+
+  private static final double LN_2 = Math.log(2);
+
+  private double scale = 1;
+  private double offsetX;
+  private double offsetY;
+  private float focalX;
+  private float focalY;
+  private boolean pending;
+
+  void moveBy(double dx, double dy) {
+    offsetX += dx;
+    offsetY += dy;
+    pending = true;
+  }
+
+  void zoomBy(double zoomBy, float x, float y) {
+    double s = Math.pow(2, zoomBy);
+    scale *= s;
+    offsetX = s * offsetX + (1 - s) * x;
+    offsetY = s * offsetY + (1 - s) * y;
+    focalX = x;
+    focalY = y;
+    pending = true;
+  }
+
+  /**
+   * Applies the accumulated transform to the map, if any, and resets the accumulator.
+   *
+   * @param map the map to apply the transform to
+   */
+  void flush(FlutterMap map) {
+    if (!pending) {
+      return;
+    }
+
+    if (scale == 1) {
+      map.moveBy(offsetX, offsetY, 0);
+    } else {
+      double dx = (offsetX - (1 - scale) * focalX) / scale;
+      double dy = (offsetY - (1 - scale) * focalY) / scale;
+      if (dx != 0 || dy != 0) {
+        map.moveBy(dx, dy, 0);
+      }
+      map.zoom(map.getZoom() + Math.log(scale) / LN_2, new PointF(focalX, focalY), 0);
+    }
+
+    scale = 1;
+    offsetX = 0;
+    offsetY = 0;
+    pending = false;
+  }
+}
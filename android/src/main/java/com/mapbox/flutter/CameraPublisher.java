@@ -0,0 +1,94 @@
+package com.mapbox.flutter;
+
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MapView;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pushes the packed camera state of a map to Dart as "camera" events, so Dart can read the
+ * camera without a round trip.
+ * <p>
+ * The state is only read back after a frame that follows a region change, and only sent when
+ * it differs from the state sent last. See {@link FlutterMap#getCameraState} for the layout.
+ * Main thread only.
+ * </p>
+ */
+class CameraPublisher implements MapView.OnMapChangedListener {
+
+  static final String EVENT_CAMERA = "camera";
+
+  private final long textureId;
+  private final FlutterMap map;
+  private final MapEventStreamHandler events;
+  private final double[] state = new double[FlutterMap.CAMERA_STATE_SIZE];
+  private double[] published;
+  private boolean dirty = true;
+
+  CameraPublisher(long textureId, FlutterMap map, MapEventStreamHandler events) {
+    this.textureId = textureId;
+    this.map = map;
+    this.events = events;
+  }
+
+  void attach() {
+    map.addOnMapChangedListener(this);
+  }
+
+  void detach() {
+    map.removeOnMapChangedListener(this);
+  }
+
+  /**
+   * Publishes the state after the next frame, for changes that are not region changes such
+   * as new zoom limits.
+   */
+  void invalidate() {
+    dirty = true;
+    map.triggerRepaint();
+  }
+
+  /**
+   * @return the current camera state, read back right away
+   */
+  double[] getState() {
+    double[] current = new double[FlutterMap.CAMERA_STATE_SIZE];
+    map.getCameraState(current);
+    return current;
+  }
+
+  @Override
+  public void onMapChanged(int change) {
+    switch (change) {
+      case MapView.REGION_IS_CHANGING:
+      case MapView.REGION_DID_CHANGE:
+      case MapView.REGION_DID_CHANGE_ANIMATED:
+      case MapView.DID_FINISH_LOADING_MAP:
+        dirty = true;
+        break;
+      case MapView.DID_FINISH_RENDERING_FRAME:
+      case MapView.DID_FINISH_RENDERING_FRAME_FULLY_RENDERED:
+        if (dirty && events.hasListener()) {
+          publish();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void publish() {
+    dirty = false;
+    map.getCameraState(state);
+    if (published != null && Arrays.equals(state, published)) {
+      return;
+    }
+
+    published = state.clone();
+    Map<String, Object> values = new HashMap<>();
+    values.put("state", published);
+    events.send(textureId, EVENT_CAMERA, values);
+  }
+}
@@ -0,0 +1,159 @@
+package com.mapbox.flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MapView;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * A GeoJSON source that only holds the clusters and points visible on its map.
+ * <p>
+ * The points are indexed by a {@link PointClusterIndex} off the main thread. After a frame
+ * that follows a camera change the index is queried for the current zoom and bounds, and the
+ * result replaces the data of the source through the {@link GeoJsonSourceUpdater}.
+ * Main thread only.
+ * </p>
+ */
+class ClusteredSource implements MapView.OnMapChangedListener {
+
+  // Builds run one at a time, each one fans out to the index worker pool
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "MapClusterIndex");
+    }
+  });
+
+  private final long textureId;
+  private final String sourceId;
+  private final FlutterMap map;
+  private final GeoJsonSourceUpdater updater;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final double[] camera = new double[FlutterMap.CAMERA_STATE_SIZE];
+  private PointClusterIndex index;
+  private int generation;
+  private boolean dirty;
+  private boolean attached;
+
+  ClusteredSource(long textureId, String sourceId, FlutterMap map, GeoJsonSourceUpdater updater) {
+    this.textureId = textureId;
+    this.sourceId = sourceId;
+    this.map = map;
+    this.updater = updater;
+  }
+
+  void attach() {
+    attached = true;
+    map.addOnMapChangedListener(this);
+  }
+
+  void detach() {
+    attached = false;
+    generation++;
+    map.removeOnMapChangedListener(this);
+  }
+
+  /**
+   * Indexes new points and shows them once the index is built. The result receives the number
+   * of points and the build time, or null when a newer call replaced the points first.
+   */
+  void setPoints(final double[] latLngs, final long[] ids, final int radius, final int maxZoom,
+                 final Result result) {
+    final int expected = ++generation;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        final PointClusterIndex built;
+        try {
+          built = PointClusterIndex.build(latLngs, ids, radius, maxZoom);
+        } catch (final Exception exception) {
+          mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              result.error("cluster", exception.getMessage(), null);
+            }
+          });
+          return;
+        }
+
+        final long buildMillis = (System.nanoTime() - start) / 1000000;
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (expected != generation || !attached) {
+              result.success(null);
+              return;
+            }
+
+            index = built;
+            dirty = true;
+            map.triggerRepaint();
+
+            Map<String, Object> reply = new HashMap<>();
+            reply.put("pointCount", ids.length);
+            reply.put("maxZoom", built.getMaxZoom());
+            reply.put("buildMillis", buildMillis);
+            result.success(reply);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * @return the clusters within the bounds at the given zoom, or null until the points are
+   * indexed
+   */
+  PointClusterIndex.Clusters query(double zoom, double south, double west, double north, double east) {
+    return index != null ? index.query(zoom, south, west, north, east) : null;
+  }
+
+  @Override
+  public void onMapChanged(int change) {
+    switch (change) {
+      case MapView.REGION_IS_CHANGING:
+      case MapView.REGION_DID_CHANGE:
+      case MapView.REGION_DID_CHANGE_ANIMATED:
+      case MapView.DID_FINISH_LOADING_STYLE:
+        dirty = true;
+        break;
+      case MapView.DID_FINISH_RENDERING_FRAME:
+      case MapView.DID_FINISH_RENDERING_FRAME_FULLY_RENDERED:
+        if (dirty && index != null) {
+          dirty = false;
+          publish();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void publish() {
+    map.getCameraState(camera);
+    final PointClusterIndex.Clusters clusters = index.query(camera[FlutterMap.CAMERA_ZOOM],
+        camera[FlutterMap.CAMERA_SOUTH], camera[FlutterMap.CAMERA_WEST],
+        camera[FlutterMap.CAMERA_NORTH], camera[FlutterMap.CAMERA_EAST]);
+    updater.update(textureId, sourceId, new GeoJsonSourceUpdater.SourceUpdate(false) {
+      @Override
+      void apply() {
+        // Nothing to keep, every query is complete on its own
+      }
+
+      @Override
+      String toGeoJson() {
+        return clusters.toGeoJson();
+      }
+    }, null);
+  }
+}
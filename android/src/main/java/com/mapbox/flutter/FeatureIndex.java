@@ -0,0 +1,262 @@
+package com.mapbox.flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * App features indexed by a {@link HilbertRTree} of their longitude/latitude bounds, for
+ * viewport culling and hit testing without shipping the features back to Dart.
+ * <p>
+ * Index queries run on bounds; hit tests then measure the few candidates in screen pixels with
+ * the map's projection, so rotated and tilted cameras are handled.
+ * Built off the main thread, queried on the main thread.
+ * </p>
+ */
+final class FeatureIndex {
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "MapFeatureIndex");
+    }
+  });
+  private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Points unprojected per edge of a queried screen rectangle
+  private static final int EDGE_STEPS = 8;
+
+  private final PackedGeoJson features;
+  private final HilbertRTree tree;
+  private final HilbertRTree.IntList candidates = new HilbertRTree.IntList();
+
+  private FeatureIndex(PackedGeoJson features) {
+    this.features = features;
+
+    int count = features.getFeatureCount();
+    double[] boxes = new double[count * 4];
+    for (int feature = 0; feature < count; feature++) {
+      int start = startOf(feature);
+      int end = endOf(feature);
+      double minLng = Double.POSITIVE_INFINITY;
+      double minLat = Double.POSITIVE_INFINITY;
+      double maxLng = Double.NEGATIVE_INFINITY;
+      double maxLat = Double.NEGATIVE_INFINITY;
+      for (int i = start; i < end; i++) {
+        minLat = Math.min(minLat, features.coordinates[i * 2]);
+        minLng = Math.min(minLng, features.coordinates[i * 2 + 1]);
+        maxLat = Math.max(maxLat, features.coordinates[i * 2]);
+        maxLng = Math.max(maxLng, features.coordinates[i * 2 + 1]);
+      }
+      boxes[feature * 4] = minLng;
+      boxes[feature * 4 + 1] = minLat;
+      boxes[feature * 4 + 2] = maxLng;
+      boxes[feature * 4 + 3] = maxLat;
+    }
+    tree = new HilbertRTree(boxes);
+  }
+
+  /**
+   * Builds an index on a background thread, the callback is invoked on the main thread. Builds
+   * complete in the order they were requested. The features are validated by
+   * {@link PackedGeoJson}, failures during the build are handed to the callback.
+   */
+  static void build(final PackedGeoJson features, final Callback callback) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        final FeatureIndex index;
+        try {
+          index = new FeatureIndex(features);
+        } catch (final RuntimeException exception) {
+          mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+              callback.onError(exception);
+            }
+          });
+          return;
+        }
+        final long buildMillis = (System.nanoTime() - start) / 1000000;
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            callback.onBuilt(index, buildMillis);
+          }
+        });
+      }
+    });
+  }
+
+  int size() {
+    return tree.size();
+  }
+
+  /**
+   * @return the ids of the features whose bounds intersect the given bounds, which cross the
+   * antimeridian when west > east
+   */
+  long[] queryBounds(double south, double west, double north, double east) {
+    candidates.clear();
+    if (west > east) {
+      tree.search(west, south, 180, north, candidates);
+      tree.search(-180, south, east, north, candidates);
+    } else {
+      tree.search(west, south, east, north, candidates);
+    }
+
+    long[] ids = new long[candidates.size];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = idOf(candidates.values[i]);
+    }
+    return ids;
+  }
+
+  /**
+   * @return the ids of the features whose bounds intersect the screen rectangle
+   */
+  long[] queryRenderedBounds(FlutterMap map, double left, double top, double right, double bottom) {
+    double[] bounds = boundsOfPixels(map, left, top, right, bottom);
+    return queryBounds(bounds[0], bounds[1], bounds[2], bounds[3]);
+  }
+
+  /**
+   * @return the ids of the features within radius pixels of the screen point, nearest first
+   */
+  long[] hitTest(FlutterMap map, double x, double y, double radius) {
+    double[] bounds = boundsOfPixels(map, x - radius, y - radius, x + radius, y + radius);
+    queryBounds(bounds[0], bounds[1], bounds[2], bounds[3]);
+
+    int hitCount = 0;
+    long[] hits = new long[candidates.size];
+    for (int i = 0; i < candidates.size; i++) {
+      int feature = candidates.values[i];
+      double distance = pixelDistance(map, feature, x, y);
+      if (distance <= radius) {
+        // Distance in the high bits sorts the hits, candidate position in the low bits
+        hits[hitCount++] = ((long) Float.floatToIntBits((float) distance) << 32) | i;
+      }
+    }
+    Arrays.sort(hits, 0, hitCount);
+
+    long[] ids = new long[hitCount];
+    for (int i = 0; i < hitCount; i++) {
+      ids[i] = idOf(candidates.values[(int) hits[i]]);
+    }
+    return ids;
+  }
+
+  private double pixelDistance(FlutterMap map, int feature, double x, double y) {
+    int start = startOf(feature);
+    int end = endOf(feature);
+    double[] pixels = new double[(end - start) * 2];
+    map.getPixelsForLatLngs(Arrays.copyOfRange(features.coordinates, start * 2, end * 2), pixels);
+
+    int count = end - start;
+    if (count == 1) {
+      return Math.hypot(pixels[0] - x, pixels[1] - y);
+    }
+
+    boolean polygon = PackedGeoJson.POLYGON.equals(features.geometryType);
+    boolean inside = false;
+    double distance = Double.POSITIVE_INFINITY;
+    int segments = polygon ? count : count - 1;
+    for (int i = 0; i < segments; i++) {
+      int j = (i + 1) % count;
+      double ax = pixels[i * 2];
+      double ay = pixels[i * 2 + 1];
+      double bx = pixels[j * 2];
+      double by = pixels[j * 2 + 1];
+      distance = Math.min(distance, segmentDistance(x, y, ax, ay, bx, by));
+      if (polygon && ((ay > y) != (by > y)) && x < (bx - ax) * (y - ay) / (by - ay) + ax) {
+        inside = !inside;
+      }
+    }
+    return inside ? 0 : distance;
+  }
+
+  private static double segmentDistance(double x, double y, double ax, double ay, double bx, double by) {
+    double dx = bx - ax;
+    double dy = by - ay;
+    double lengthSquared = dx * dx + dy * dy;
+    double t = lengthSquared == 0 ? 0 : ((x - ax) * dx + (y - ay) * dy) / lengthSquared;
+    t = Math.max(0, Math.min(1, t));
+    return Math.hypot(ax + t * dx - x, ay + t * dy - y);
+  }
+
+  /**
+   * @return [south, west, north, east] around the unprojected edges of the screen rectangle,
+   * with west > east when they straddle the antimeridian
+   */
+  private static double[] boundsOfPixels(FlutterMap map, double left, double top, double right, double bottom) {
+    // Points along the edges in screen order, close enough together that neighbors are less
+    // than 180 degrees of longitude apart, which tells east from west without the span
+    double[] corners = {left, top, right, top, right, bottom, left, bottom};
+    double[] pixels = new double[corners.length * EDGE_STEPS];
+    for (int corner = 0; corner < 4; corner++) {
+      double x = corners[corner * 2];
+      double y = corners[corner * 2 + 1];
+      double dx = corners[(corner * 2 + 2) % corners.length] - x;
+      double dy = corners[(corner * 2 + 3) % corners.length] - y;
+      for (int step = 0; step < EDGE_STEPS; step++) {
+        int i = (corner * EDGE_STEPS + step) * 2;
+        pixels[i] = x + dx * step / EDGE_STEPS;
+        pixels[i + 1] = y + dy * step / EDGE_STEPS;
+      }
+    }
+    double[] latLngs = new double[pixels.length];
+    map.getLatLngsForPixels(pixels, latLngs);
+
+    double south = 90;
+    double north = -90;
+    double longitude = latLngs[1];
+    double west = longitude;
+    double east = longitude;
+    for (int i = 0; i < latLngs.length; i += 2) {
+      south = Math.min(south, latLngs[i]);
+      north = Math.max(north, latLngs[i]);
+      if (i > 0) {
+        // Unwrapped, so a run across the antimeridian keeps counting up or down
+        double delta = latLngs[i + 1] - latLngs[i - 1];
+        longitude += delta - 360 * Math.round(delta / 360);
+        west = Math.min(west, longitude);
+        east = Math.max(east, longitude);
+      }
+    }
+
+    if (east - west >= 360) {
+      return new double[] {south, -180, north, 180};
+    }
+    return new double[] {south, wrap(west), north, wrap(east)};
+  }
+
+  private static double wrap(double longitude) {
+    double wrapped = ((longitude + 180) % 360 + 360) % 360 - 180;
+    // Keep the eastern edge of a bounds that ends at the antimeridian
+    return wrapped == -180 && longitude > 0 ? 180 : wrapped;
+  }
+
+  private int startOf(int feature) {
+    return features.featureOffsets != null ? features.featureOffsets[feature] : feature;
+  }
+
+  private int endOf(int feature) {
+    return features.featureOffsets != null ? features.featureOffsets[feature + 1] : feature + 1;
+  }
+
+  private long idOf(int feature) {
+    return features.ids != null ? features.ids[feature] : feature;
+  }
+
+  interface Callback {
+    void onBuilt(FeatureIndex index, long buildMillis);
+
+    void onError(RuntimeException exception);
+  }
+}
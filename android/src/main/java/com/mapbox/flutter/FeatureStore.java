@@ -0,0 +1,203 @@
+package com.mapbox.flutter;
+
+import java.util.Arrays;
+
+/**
+ * Point features keyed by a long id, kept in primitive arrays so moving a few features out of
+ * thousands costs work proportional to the change.
+ * <p>
+ * Ids map to dense slots through an open addressing table; removing a feature moves the last
+ * slot into the hole. Every slot caches its GeoJSON fragment, which is only rebuilt after the
+ * feature moved, so serializing the collection is a concatenation of mostly cached strings.
+ * Not thread safe, confined to the GeoJSON builder thread.
+ * </p>
+ */
+class FeatureStore {
+
+  private static final int EMPTY = -1;
+
+  private long[] ids = new long[16];
+  private double[] coordinates = new double[32];
+  private String[] fragments = new String[16];
+  private int size;
+  private int fragmentChars;
+
+  // Open addressing id -> slot table, linear probing, power of two length
+  private long[] tableIds = new long[32];
+  private int[] tableSlots = newTableSlots(32);
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds the features or moves them when their id is already stored.
+   *
+   * @param ids         the feature ids
+   * @param coordinates packed [lat, lng, ...] pairs, one per id
+   */
+  void upsert(long[] ids, double[] coordinates) {
+    if (coordinates.length != ids.length * 2) {
+      throw new IllegalArgumentException("Expected " + ids.length * 2 + " coordinates, got "
+          + coordinates.length);
+    }
+    if (!PackedGeoJson.isFinite(coordinates)) {
+      throw new IllegalArgumentException("Coordinates must be finite");
+    }
+
+    for (int i = 0; i < ids.length; i++) {
+      double lat = coordinates[i * 2];
+      double lng = coordinates[i * 2 + 1];
+      int slot = find(ids[i]);
+      if (slot == EMPTY) {
+        slot = append(ids[i]);
+      } else if (this.coordinates[slot * 2] == lat && this.coordinates[slot * 2 + 1] == lng) {
+        continue;
+      }
+      this.coordinates[slot * 2] = lat;
+      this.coordinates[slot * 2 + 1] = lng;
+      invalidate(slot);
+    }
+  }
+
+  /**
+   * Removes the features, ids that are not stored are ignored.
+   */
+  void remove(long[] ids) {
+    for (long id : ids) {
+      int index = indexOf(id);
+      if (tableSlots[index] == EMPTY) {
+        continue;
+      }
+
+      int slot = tableSlots[index];
+      deleteAt(index);
+      invalidate(slot);
+
+      int last = --size;
+      if (slot != last) {
+        // Fill the hole with the last feature, keeping its cached fragment
+        this.ids[slot] = this.ids[last];
+        coordinates[slot * 2] = coordinates[last * 2];
+        coordinates[slot * 2 + 1] = coordinates[last * 2 + 1];
+        fragments[slot] = fragments[last];
+        tableSlots[indexOf(this.ids[slot])] = slot;
+      }
+      fragments[last] = null;
+    }
+  }
+
+  void clear() {
+    size = 0;
+    fragmentChars = 0;
+    Arrays.fill(fragments, null);
+    Arrays.fill(tableSlots, EMPTY);
+  }
+
+  String toGeoJson() {
+    StringBuilder json = new StringBuilder(fragmentChars + (size * 96) + 64);
+    json.append("{\"type\":\"FeatureCollection\",\"features\":[");
+    for (int slot = 0; slot < size; slot++) {
+      if (slot > 0) {
+        json.append(',');
+      }
+      String fragment = fragments[slot];
+      if (fragment == null) {
+        fragment = "{\"type\":\"Feature\",\"id\":" + ids[slot]
+            + ",\"properties\":{},\"geometry\":{\"type\":\"Point\",\"coordinates\":["
+            + coordinates[slot * 2 + 1] + "," + coordinates[slot * 2] + "]}}";
+        fragments[slot] = fragment;
+        fragmentChars += fragment.length();
+      }
+      json.append(fragment);
+    }
+    json.append("]}");
+    return json.toString();
+  }
+
+  private void invalidate(int slot) {
+    if (fragments[slot] != null) {
+      fragmentChars -= fragments[slot].length();
+      fragments[slot] = null;
+    }
+  }
+
+  private int append(long id) {
+    if (size == ids.length) {
+      int capacity = ids.length * 2;
+      ids = Arrays.copyOf(ids, capacity);
+      coordinates = Arrays.copyOf(coordinates, capacity * 2);
+      fragments = Arrays.copyOf(fragments, capacity);
+    }
+    if ((size + 1) * 2 > tableIds.length) {
+      rehash(tableIds.length * 2);
+    }
+
+    int slot = size++;
+    ids[slot] = id;
+    int index = indexOf(id);
+    tableIds[index] = id;
+    tableSlots[index] = slot;
+    return slot;
+  }
+
+  private int find(long id) {
+    return tableSlots[indexOf(id)];
+  }
+
+  /**
+   * @return the table index holding the id, or the empty index where it would be inserted
+   */
+  private int indexOf(long id) {
+    int mask = tableIds.length - 1;
+    int index = hash(id) & mask;
+    while (tableSlots[index] != EMPTY && tableIds[index] != id) {
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+
+  /**
+   * Deletes a table entry, shifting back later entries of the probe run so lookups keep working
+   * without tombstones.
+   */
+  private void deleteAt(int index) {
+    int mask = tableIds.length - 1;
+    int hole = index;
+    int next = (index + 1) & mask;
+    while (tableSlots[next] != EMPTY) {
+      int home = hash(tableIds[next]) & mask;
+      // Move the entry into the hole unless its home lies cyclically in (hole, next]
+      boolean reachable = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+      if (!reachable) {
+        tableIds[hole] = tableIds[next];
+        tableSlots[hole] = tableSlots[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    tableSlots[hole] = EMPTY;
+  }
+
+  private void rehash(int capacity) {
+    tableIds = new long[capacity];
+    tableSlots = newTableSlots(capacity);
+    for (int slot = 0; slot < size; slot++) {
+      int index = indexOf(ids[slot]);
+      tableIds[index] = ids[slot];
+      tableSlots[index] = slot;
+    }
+  }
+
+  private static int[] newTableSlots(int capacity) {
+    int[] slots = new int[capacity];
+    Arrays.fill(slots, EMPTY);
+    return slots;
+  }
+
+  private static int hash(long id) {
+    // Mix the bits so sequential ids spread over the table
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,169 @@
+package com.mapbox.flutter;
+
+import com.mapbox.mapboxsdk.maps.MercatorProjection;
+
+/**
+ * Camera paths of animated transitions, sampled into waypoints for tile prefetching.
+ * <p>
+ * flyTo follows the van Wijk and Nuij optimal zoom and pan curve the same way
+ * mbgl::Transform::flyTo does, easeTo interpolates center and zoom linearly. Positions are
+ * worked out in world pixels at the start zoom and longitudes take the shorter way around the
+ * antimeridian, like the SDK does.
+ * </p>
+ */
+final class FlightPath {
+
+  // Default curvature of mbgl flyTo animations
+  private static final double RHO = 1.42;
+  private static final double EPSILON = 0.000001;
+
+  private FlightPath() {
+  }
+
+  /**
+   * @param viewportWidth  the viewport width in logical pixels
+   * @param viewportHeight the viewport height in logical pixels
+   * @param samples        the number of path segments to sample, the start is skipped
+   * @return packed [lat, lng, zoom, ...] cameras, the destination first and then the waypoints
+   * in flight order, with waypoints dropped that mostly overlap the one kept before
+   */
+  static double[] flyTo(double startLat, double startLng, double startZoom, double endLat, double endLng,
+                        double endZoom, double viewportWidth, double viewportHeight, int samples) {
+    endLng = unwrapForShortestPath(startLng, endLng);
+    double worldSize = worldSize(startZoom);
+    double startX = x(startLng) * worldSize;
+    double startY = y(startLat) * worldSize;
+    double dx = x(endLng) * worldSize - startX;
+    double dy = y(endLat) * worldSize - startY;
+
+    double w0 = Math.max(viewportWidth, viewportHeight);
+    double w1 = w0 / Math.pow(2, endZoom - startZoom);
+    double u1 = Math.hypot(dx, dy);
+    double rho2 = RHO * RHO;
+
+    double r0 = r(w0, w1, u1, rho2, false);
+    double r1 = r(w0, w1, u1, rho2, true);
+    boolean close = Math.abs(u1) < EPSILON || Double.isInfinite(r0) || Double.isNaN(r0)
+        || Double.isInfinite(r1) || Double.isNaN(r1);
+    double length = close ? Math.abs(Math.log(w1 / w0)) / RHO : (r1 - r0) / RHO;
+
+    Waypoints waypoints = new Waypoints(samples + 1, viewportWidth, viewportHeight);
+    waypoints.add(endLat, endLng, endZoom);
+    for (int i = 1; i < samples; i++) {
+      double s = length * i / samples;
+      double u;
+      double w;
+      if (close) {
+        u = 0;
+        w = Math.exp((w1 < w0 ? -1 : 1) * RHO * s);
+      } else {
+        u = w0 * ((Math.cosh(r0) * Math.tanh(r0 + RHO * s) - Math.sinh(r0)) / rho2) / u1;
+        w = Math.cosh(r0) / Math.cosh(r0 + RHO * s);
+      }
+      double zoom = startZoom + Math.log(1 / w) / Math.log(2);
+      waypoints.add(latitude((startY + dy * u) / worldSize), longitude((startX + dx * u) / worldSize), zoom);
+    }
+    return waypoints.toArray();
+  }
+
+  /**
+   * Same as {@link #flyTo} for linear transitions.
+   */
+  static double[] easeTo(double startLat, double startLng, double startZoom, double endLat, double endLng,
+                         double endZoom, double viewportWidth, double viewportHeight, int samples) {
+    endLng = unwrapForShortestPath(startLng, endLng);
+    double startX = x(startLng);
+    double startY = y(startLat);
+    double dx = x(endLng) - startX;
+    double dy = y(endLat) - startY;
+
+    Waypoints waypoints = new Waypoints(samples + 1, viewportWidth, viewportHeight);
+    waypoints.add(endLat, endLng, endZoom);
+    for (int i = 1; i < samples; i++) {
+      double t = (double) i / samples;
+      waypoints.add(latitude(startY + dy * t), longitude(startX + dx * t), startZoom + (endZoom - startZoom) * t);
+    }
+    return waypoints.toArray();
+  }
+
+  private static double r(double w0, double w1, double u1, double rho2, boolean end) {
+    double b = (w1 * w1 - w0 * w0 + (end ? -1 : 1) * rho2 * rho2 * u1 * u1) / (2 * (end ? w1 : w0) * rho2 * u1);
+    return Math.log(Math.sqrt(b * b + 1) - b);
+  }
+
+  private static double unwrapForShortestPath(double startLng, double endLng) {
+    double delta = endLng - startLng;
+    if (delta > 180) {
+      return endLng - 360;
+    } else if (delta < -180) {
+      return endLng + 360;
+    }
+    return endLng;
+  }
+
+  private static double worldSize(double zoom) {
+    return MercatorProjection.TILE_SIZE * Math.pow(2, zoom);
+  }
+
+  // Normalized world coordinates in [0, 1], x is not clamped so it can cross the antimeridian
+
+  private static double x(double longitude) {
+    return (longitude + 180) / 360;
+  }
+
+  private static double y(double latitude) {
+    return 0.5 - MercatorProjection.northing(latitude) / (2 * Math.PI * MercatorProjection.EARTH_RADIUS_M);
+  }
+
+  private static double latitude(double y) {
+    return MercatorProjection.latitude((0.5 - y) * 2 * Math.PI * MercatorProjection.EARTH_RADIUS_M);
+  }
+
+  private static double longitude(double x) {
+    double longitude = x * 360 - 180;
+    return longitude - 360 * Math.floor((longitude + 180) / 360);
+  }
+
+  private static final class Waypoints {
+    final double[] cameras;
+    final double viewportSize;
+    int size;
+
+    Waypoints(int capacity, double viewportWidth, double viewportHeight) {
+      cameras = new double[capacity * 3];
+      viewportSize = Math.min(viewportWidth, viewportHeight);
+    }
+
+    void add(double latitude, double longitude, double zoom) {
+      if (size > 1 && overlapsLast(latitude, longitude, zoom)) {
+        return;
+      }
+      cameras[size * 3] = latitude;
+      cameras[size * 3 + 1] = longitude < -180 || longitude > 180 ? longitude(x(longitude)) : longitude;
+      cameras[size * 3 + 2] = zoom;
+      size++;
+    }
+
+    /**
+     * @return true when the last waypoint, not counting the destination, uses the same tile zoom
+     * and its center is less than half a viewport away
+     */
+    private boolean overlapsLast(double latitude, double longitude, double zoom) {
+      int last = (size - 1) * 3;
+      if (Math.floor(cameras[last + 2]) != Math.floor(zoom)) {
+        return false;
+      }
+      double worldSize = worldSize(zoom);
+      double dx = Math.abs(x(longitude) - x(cameras[last + 1]));
+      dx = Math.min(dx, 1 - dx);
+      double dy = y(latitude) - y(cameras[last]);
+      return Math.hypot(dx, dy) * worldSize < viewportSize / 2;
+    }
+
+    double[] toArray() {
+      double[] result = new double[size * 3];
+      System.arraycopy(cameras, 0, result, 0, result.length);
+      return result;
+    }
+  }
+}
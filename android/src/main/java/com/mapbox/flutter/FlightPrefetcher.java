@@ -0,0 +1,88 @@
+package com.mapbox.flutter;
+
+import com.mapbox.mapboxsdk.camera.CameraPosition;
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MapView;
+
+/**
+ * Warms the tiles along the path of a map's camera animations while they run, destination
+ * first, so the camera lands on loaded tiles.
+ * <p>
+ * The waypoints are handed to the {@link TileCacheWarmer} under a tag of their own, outside of
+ * its warm budget, and released as soon as the map reports the end of the region change, which
+ * happens both when the animation completes and when it is interrupted. Releasing cancels the
+ * pending waypoints and hands the tiles of the completed ones back to the ambient cache. Maps with a style loaded from JSON are
+ * skipped, offline regions need a style URL.
+ * Main thread only.
+ * </p>
+ */
+class FlightPrefetcher implements MapView.OnMapChangedListener {
+
+  private static final int SAMPLES = 8;
+
+  private final FlutterMap map;
+  private final TileCacheWarmer warmer;
+  private final String tag;
+
+  FlightPrefetcher(long textureId, FlutterMap map, TileCacheWarmer warmer) {
+    this.map = map;
+    this.warmer = warmer;
+    this.tag = "flight-" + textureId;
+  }
+
+  void attach() {
+    map.addOnMapChangedListener(this);
+  }
+
+  void detach() {
+    map.removeOnMapChangedListener(this);
+    cancel();
+  }
+
+  /**
+   * Starts warming a flyTo that was just started from the given camera.
+   */
+  void onFlyTo(CameraPosition start, CameraPosition end) {
+    warm(start, end, true);
+  }
+
+  /**
+   * Starts warming an easeTo that was just started from the given camera.
+   */
+  void onEaseTo(CameraPosition start, CameraPosition end) {
+    warm(start, end, false);
+  }
+
+  @Override
+  public void onMapChanged(int change) {
+    if (change == MapView.REGION_DID_CHANGE || change == MapView.REGION_DID_CHANGE_ANIMATED) {
+      cancel();
+    }
+  }
+
+  private void warm(CameraPosition start, CameraPosition end, boolean fly) {
+    String styleUrl = map.getStyleUrl();
+    if (styleUrl == null || styleUrl.isEmpty()) {
+      return;
+    }
+
+    // Unset fields of the target keep their current value
+    double endLat = end.target != null ? end.target.getLatitude() : start.target.getLatitude();
+    double endLng = end.target != null ? end.target.getLongitude() : start.target.getLongitude();
+    double endZoom = end.zoom >= 0 ? end.zoom : start.zoom;
+    double width = map.getWidth() / map.getPixelRatio();
+    double height = map.getHeight() / map.getPixelRatio();
+    double[] cameras = fly
+        ? FlightPath.flyTo(start.target.getLatitude(), start.target.getLongitude(), start.zoom, endLat, endLng,
+            endZoom, width, height, SAMPLES)
+        : FlightPath.easeTo(start.target.getLatitude(), start.target.getLongitude(), start.zoom, endLat, endLng,
+            endZoom, width, height, SAMPLES);
+
+    cancel();
+    warmer.warm(tag, cameras, width, height, styleUrl, true, new SilentResult());
+  }
+
+  private void cancel() {
+    warmer.release(tag);
+  }
+}
@@ -0,0 +1,262 @@
+package com.mapbox.flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Builds GeoJSON from packed features on a background thread and hands the result to the
+ * map's source in a single update on the main thread.
+ * <p>
+ * When updates for a source arrive faster than they are built, only the newest one reaches the
+ * source; the replies of superseded replacements report that they were skipped. The last
+ * packed features of each source are kept so coordinate only updates can reuse their layout,
+ * and keyed sources keep a {@link FeatureStore} that deltas are applied to.
+ * Must be used from the main thread.
+ * </p>
+ */
+class GeoJsonSourceUpdater {
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "MapGeoJsonBuilder");
+    }
+  });
+
+  private final Map<Long, MapboxPlugin.MapInstance> maps;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Map<String, SourceState> sources = new HashMap<>();
+
+  GeoJsonSourceUpdater(Map<Long, MapboxPlugin.MapInstance> maps) {
+    this.maps = maps;
+  }
+
+  /**
+   * Replaces the features of a source, adding the source when needed.
+   */
+  void setFeatures(long textureId, String sourceId, final PackedGeoJson features, Result result) {
+    final SourceState state = stateOf(textureId, sourceId);
+    state.features = features;
+    build(textureId, sourceId, state, new SourceUpdate(false) {
+      @Override
+      void apply() {
+        state.store = null;
+      }
+
+      @Override
+      String toGeoJson() {
+        return features.toGeoJson();
+      }
+    }, result);
+  }
+
+  /**
+   * Moves the features of a source that was set before, keeping their layout and ids.
+   */
+  void setCoordinates(long textureId, String sourceId, double[] coordinates, Result result) {
+    SourceState state = sources.get(keyOf(textureId, sourceId));
+    if (state == null || state.features == null) {
+      result.error("geojson", "Source " + sourceId + " has no features to update", null);
+      return;
+    }
+
+    PackedGeoJson features;
+    try {
+      features = state.features.withCoordinates(coordinates);
+    } catch (IllegalArgumentException exception) {
+      result.error("geojson", exception.getMessage(), null);
+      return;
+    }
+    setFeatures(textureId, sourceId, features, result);
+  }
+
+  /**
+   * Applies a delta to the keyed point features of a source, starting from an empty store when
+   * the source was last set with packed features. Deltas are never dropped, only the source
+   * updates of deltas that were followed by another one are merged.
+   *
+   * @param upsertIds         ids of the features to add or move, may be null
+   * @param upsertCoordinates packed [lat, lng, ...] pairs for upsertIds
+   * @param removeIds         ids of the features to remove, may be null
+   */
+  void applyDelta(long textureId, String sourceId, final long[] upsertIds, final double[] upsertCoordinates,
+                  final long[] removeIds, Result result) {
+    if (upsertIds != null && (upsertCoordinates == null || upsertCoordinates.length != upsertIds.length * 2)) {
+      result.error("geojson", "Expected one coordinate pair per upserted id", null);
+      return;
+    }
+    if (upsertCoordinates != null && !PackedGeoJson.isFinite(upsertCoordinates)) {
+      result.error("geojson", "Coordinates must be finite", null);
+      return;
+    }
+
+    final SourceState state = stateOf(textureId, sourceId);
+    state.features = null;
+    build(textureId, sourceId, state, new SourceUpdate(true) {
+      @Override
+      void apply() {
+        if (state.store == null) {
+          state.store = new FeatureStore();
+        }
+        if (removeIds != null) {
+          state.store.remove(removeIds);
+        }
+        if (upsertIds != null) {
+          state.store.upsert(upsertIds, upsertCoordinates);
+        }
+      }
+
+      @Override
+      String toGeoJson() {
+        return state.store.toGeoJson();
+      }
+    }, result);
+  }
+
+  /**
+   * Applies a custom update to a source, replacing whatever the source was last set to.
+   *
+   * @param result receives whether the update reached the source, may be null
+   */
+  void update(long textureId, String sourceId, SourceUpdate update, Result result) {
+    SourceState state = stateOf(textureId, sourceId);
+    state.features = null;
+    build(textureId, sourceId, state, update, result);
+  }
+
+  /**
+   * Forgets the sources of a disposed map.
+   */
+  void clear(long textureId) {
+    String prefix = textureId + "/";
+    Iterator<Map.Entry<String, SourceState>> iterator = sources.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, SourceState> entry = iterator.next();
+      if (entry.getKey().startsWith(prefix)) {
+        // Let pending builds see they were superseded
+        entry.getValue().generation++;
+        iterator.remove();
+      }
+    }
+  }
+
+  private void build(final long textureId, final String sourceId, final SourceState state,
+                     final SourceUpdate update, final Result result) {
+    final int generation = ++state.generation;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final String geoJson;
+        try {
+          update.apply();
+          if (generation != state.generation) {
+            // Superseded before it was built, the newer update carries the result
+            reply(result, update.retained);
+            return;
+          }
+          geoJson = update.toGeoJson();
+        } catch (RuntimeException exception) {
+          fail(result, exception);
+          return;
+        }
+
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            if (generation != state.generation) {
+              succeed(result, update.retained);
+              return;
+            }
+
+            MapboxPlugin.MapInstance mapInstance = maps.get(textureId);
+            if (mapInstance == null) {
+              succeed(result, false);
+            } else if (mapInstance.map.setGeoJson(sourceId, geoJson)) {
+              succeed(result, true);
+            } else if (result != null) {
+              result.error("geojson", "Source " + sourceId + " is not a GeoJSON source", null);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private void reply(final Result result, final boolean applied) {
+    if (result == null) {
+      return;
+    }
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        succeed(result, applied);
+      }
+    });
+  }
+
+  private void fail(final Result result, final RuntimeException exception) {
+    if (result == null) {
+      return;
+    }
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        result.error("geojson", exception.getMessage(), null);
+      }
+    });
+  }
+
+  private static void succeed(Result result, boolean applied) {
+    if (result != null) {
+      result.success(applied);
+    }
+  }
+
+  private SourceState stateOf(long textureId, String sourceId) {
+    String key = keyOf(textureId, sourceId);
+    SourceState state = sources.get(key);
+    if (state == null) {
+      state = new SourceState();
+      sources.put(key, state);
+    }
+    return state;
+  }
+
+  private static String keyOf(long textureId, String sourceId) {
+    return textureId + "/" + sourceId;
+  }
+
+  private static final class SourceState {
+    // Written on the main thread, read on the builder thread to skip superseded updates
+    volatile int generation;
+    // Main thread only
+    PackedGeoJson features;
+    // Builder thread only
+    FeatureStore store;
+  }
+
+  /**
+   * One update of a source, applied and serialized on the builder thread.
+   */
+  abstract static class SourceUpdate {
+    // Whether the changes survive when a newer update supersedes this one
+    final boolean retained;
+
+    SourceUpdate(boolean retained) {
+      this.retained = retained;
+    }
+
+    abstract void apply();
+
+    abstract String toGeoJson();
+  }
+}
@@ -0,0 +1,227 @@
+package com.mapbox.flutter;
+
+import java.util.Arrays;
+
+/**
+ * A static packed R-tree over item bounding boxes.
+ * <p>
+ * Items are sorted by the Hilbert value of their box centers and packed bottom up into nodes
+ * of {@link #NODE_SIZE} entries, so the whole tree lives in two flat arrays and neighbouring
+ * items share nodes. Immutable once built and safe to search from any thread.
+ * </p>
+ */
+final class HilbertRTree {
+
+  static final int NODE_SIZE = 16;
+
+  private static final int HILBERT_MAX = (1 << 16) - 1;
+
+  private final int itemCount;
+  // minX, minY, maxX, maxY of every node, leaves first and the root last
+  private final double[] boxes;
+  // Item index for leaves, first child node for inner nodes
+  private final int[] indices;
+  // End node of every level, leaves first
+  private final int[] levelEnds;
+
+  /**
+   * @param itemBoxes packed [minX, minY, maxX, maxY, ...] item boxes
+   */
+  HilbertRTree(double[] itemBoxes) {
+    itemCount = itemBoxes.length / 4;
+
+    // Always at least one inner node, the root
+    int nodeCount = itemCount;
+    int levels = 1;
+    int count = itemCount;
+    do {
+      count = (count + NODE_SIZE - 1) / NODE_SIZE;
+      nodeCount += count;
+      levels++;
+    } while (count > 1);
+    boxes = new double[nodeCount * 4];
+    indices = new int[nodeCount];
+    levelEnds = new int[levels];
+    if (itemCount == 0) {
+      return;
+    }
+
+    double minX = Double.POSITIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY;
+    double maxY = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < itemCount; i++) {
+      minX = Math.min(minX, itemBoxes[i * 4]);
+      minY = Math.min(minY, itemBoxes[i * 4 + 1]);
+      maxX = Math.max(maxX, itemBoxes[i * 4 + 2]);
+      maxY = Math.max(maxY, itemBoxes[i * 4 + 3]);
+    }
+    double width = Math.max(maxX - minX, Double.MIN_VALUE);
+    double height = Math.max(maxY - minY, Double.MIN_VALUE);
+
+    // Hilbert value in the high bits, item index in the low bits
+    long[] order = new long[itemCount];
+    for (int i = 0; i < itemCount; i++) {
+      double centerX = (itemBoxes[i * 4] + itemBoxes[i * 4 + 2]) / 2;
+      double centerY = (itemBoxes[i * 4 + 1] + itemBoxes[i * 4 + 3]) / 2;
+      int x = (int) (HILBERT_MAX * (centerX - minX) / width);
+      int y = (int) (HILBERT_MAX * (centerY - minY) / height);
+      order[i] = ((hilbert(x, y) & 0xFFFFFFFFL) << 32) | i;
+    }
+    Arrays.sort(order);
+
+    for (int node = 0; node < itemCount; node++) {
+      int item = (int) order[node];
+      System.arraycopy(itemBoxes, item * 4, boxes, node * 4, 4);
+      indices[node] = item;
+    }
+
+    int level = 0;
+    int start = 0;
+    int end = itemCount;
+    levelEnds[level++] = end;
+    do {
+      int next = end;
+      for (int child = start; child < end; child += NODE_SIZE, next++) {
+        int last = Math.min(child + NODE_SIZE, end);
+        double nodeMinX = Double.POSITIVE_INFINITY;
+        double nodeMinY = Double.POSITIVE_INFINITY;
+        double nodeMaxX = Double.NEGATIVE_INFINITY;
+        double nodeMaxY = Double.NEGATIVE_INFINITY;
+        for (int i = child; i < last; i++) {
+          nodeMinX = Math.min(nodeMinX, boxes[i * 4]);
+          nodeMinY = Math.min(nodeMinY, boxes[i * 4 + 1]);
+          nodeMaxX = Math.max(nodeMaxX, boxes[i * 4 + 2]);
+          nodeMaxY = Math.max(nodeMaxY, boxes[i * 4 + 3]);
+        }
+        boxes[next * 4] = nodeMinX;
+        boxes[next * 4 + 1] = nodeMinY;
+        boxes[next * 4 + 2] = nodeMaxX;
+        boxes[next * 4 + 3] = nodeMaxY;
+        indices[next] = child;
+      }
+      start = end;
+      end = next;
+      levelEnds[level++] = end;
+    } while (end - start > 1);
+  }
+
+  int size() {
+    return itemCount;
+  }
+
+  /**
+   * Collects the items whose boxes intersect the query box.
+   *
+   * @return the number of items written to results, which grows as needed
+   */
+  int search(double minX, double minY, double maxX, double maxY, IntList results) {
+    if (itemCount == 0) {
+      return 0;
+    }
+
+    int found = 0;
+    int[] stack = new int[levelEnds.length * NODE_SIZE];
+    int depth = 0;
+    stack[depth++] = indices.length - 1;
+    while (depth > 0) {
+      int node = stack[--depth];
+      int end = Math.min(indices[node] + NODE_SIZE, levelEndOf(indices[node]));
+      for (int child = indices[node]; child < end; child++) {
+        if (boxes[child * 4 + 2] < minX || boxes[child * 4 + 3] < minY
+            || boxes[child * 4] > maxX || boxes[child * 4 + 1] > maxY) {
+          continue;
+        }
+        if (child < itemCount) {
+          results.add(indices[child]);
+          found++;
+        } else {
+          stack[depth++] = child;
+        }
+      }
+    }
+    return found;
+  }
+
+  private int levelEndOf(int node) {
+    for (int levelEnd : levelEnds) {
+      if (node < levelEnd) {
+        return levelEnd;
+      }
+    }
+    return indices.length;
+  }
+
+  /**
+   * @return the index of (x, y) along a Hilbert curve over a 2^16 by 2^16 grid
+   */
+  private static int hilbert(int x, int y) {
+    int a = x ^ y;
+    int b = 0xFFFF ^ a;
+    int c = 0xFFFF ^ (x | y);
+    int d = x & (y ^ 0xFFFF);
+
+    int aa = a | (b >>> 1);
+    int bb = (a >>> 1) ^ a;
+    int cc = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+    int dd = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+    a = aa;
+    b = bb;
+    c = cc;
+    d = dd;
+    aa = (a & (a >>> 2)) ^ (b & (b >>> 2));
+    bb = (a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2));
+    cc ^= (a & (c >>> 2)) ^ (b & (d >>> 2));
+    dd ^= (b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2));
+
+    a = aa;
+    b = bb;
+    c = cc;
+    d = dd;
+    aa = (a & (a >>> 4)) ^ (b & (b >>> 4));
+    bb = (a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4));
+    cc ^= (a & (c >>> 4)) ^ (b & (d >>> 4));
+    dd ^= (b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4));
+
+    a = aa;
+    b = bb;
+    c = cc;
+    d = dd;
+    cc ^= (a & (c >>> 8)) ^ (b & (d >>> 8));
+    dd ^= (b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8));
+
+    a = cc ^ (cc >>> 1);
+    b = dd ^ (dd >>> 1);
+    int i0 = x ^ y;
+    int i1 = b | (0xFFFF ^ (i0 | a));
+    return (interleave(i1) << 1) | interleave(i0);
+  }
+
+  private static int interleave(int value) {
+    value = (value | (value << 8)) & 0x00FF00FF;
+    value = (value | (value << 4)) & 0x0F0F0F0F;
+    value = (value | (value << 2)) & 0x33333333;
+    value = (value | (value << 1)) & 0x55555555;
+    return value;
+  }
+
+  /**
+   * A growable list of ints.
+   */
+  static final class IntList {
+    int[] values = new int[64];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    void clear() {
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package com.mapbox.flutter;
+
+import android.view.Choreographer;
+
+import com.mapbox.mapboxsdk.camera.CameraPosition;
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MapView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forwards map changes of a single map to Dart as "mapChanged" events.
+ * <p>
+ * Changes are collected and sent at most once per vsync, so a burst of region-is-changing and
+ * frame events results in one event that lists every kind of change once, along with the
+ * latest camera. Dart acknowledges events once its listeners handled them, a few at a time;
+ * while {@link #MAX_UNACKNOWLEDGED} events are unacknowledged, changes keep accumulating and
+ * intermediate cameras are dropped.
+ * Nothing is collected until Dart starts listening to the changes of this map with
+ * {@link #start()}. Main thread only.
+ * </p>
+ */
+class MapChangeDispatcher implements MapView.OnMapChangedListener, Choreographer.FrameCallback {
+
+  static final String EVENT_MAP_CHANGED = "mapChanged";
+
+  // Twice the number of events Dart acknowledges at once, so sending does not stall on the ack
+  static final int MAX_UNACKNOWLEDGED = 4;
+
+  // Indexed by the MapView change constants
+  private static final String[] CHANGE_NAMES = {
+    "regionWillChange",
+    "regionWillChangeAnimated",
+    "regionIsChanging",
+    "regionDidChange",
+    "regionDidChangeAnimated",
+    "willStartLoadingMap",
+    "didFinishLoadingMap",
+    "didFailLoadingMap",
+    "willStartRenderingFrame",
+    "didFinishRenderingFrame",
+    "didFinishRenderingFrameFullyRendered",
+    "willStartRenderingMap",
+    "didFinishRenderingMap",
+    "didFinishRenderingMapFullyRendered",
+    "didFinishLoadingStyle",
+    "sourceDidChange"
+  };
+
+  private final long textureId;
+  private final FlutterMap map;
+  private final MapEventStreamHandler events;
+
+  // Pending changes in order of first occurrence since the last event
+  private final List<String> pendingChanges = new ArrayList<>();
+  private int pendingMask;
+  private boolean cameraChanged;
+  private boolean frameScheduled;
+  private boolean started;
+  private int unacknowledged;
+  private long droppedCameras;
+
+  MapChangeDispatcher(long textureId, FlutterMap map, MapEventStreamHandler events) {
+    this.textureId = textureId;
+    this.map = map;
+    this.events = events;
+  }
+
+  void attach() {
+    map.addOnMapChangedListener(this);
+  }
+
+  void detach() {
+    map.removeOnMapChangedListener(this);
+    stop();
+  }
+
+  /**
+   * Starts sending changes, for a Dart listener that acknowledges every event.
+   */
+  void start() {
+    started = true;
+    unacknowledged = 0;
+  }
+
+  /**
+   * Stops sending changes and drops those collected so far.
+   */
+  void stop() {
+    started = false;
+    pendingChanges.clear();
+    pendingMask = 0;
+    cameraChanged = false;
+    droppedCameras = 0;
+    if (frameScheduled) {
+      Choreographer.getInstance().removeFrameCallback(this);
+      frameScheduled = false;
+    }
+  }
+
+  /**
+   * Called when Dart handled count events, sends the changes collected in the meantime.
+   */
+  void acknowledge(int count) {
+    unacknowledged = Math.max(0, unacknowledged - count);
+    if (pendingMask != 0) {
+      scheduleFrame();
+    }
+  }
+
+  @Override
+  public void onMapChanged(int change) {
+    if (!started || change < 0 || change >= CHANGE_NAMES.length) {
+      return;
+    }
+
+    int bit = 1 << change;
+    if ((pendingMask & bit) == 0) {
+      pendingMask |= bit;
+      pendingChanges.add(CHANGE_NAMES[change]);
+    }
+
+    switch (change) {
+      case MapView.REGION_IS_CHANGING:
+      case MapView.REGION_DID_CHANGE:
+      case MapView.REGION_DID_CHANGE_ANIMATED:
+        if (cameraChanged) {
+          droppedCameras++;
+        }
+        cameraChanged = true;
+        break;
+      default:
+        break;
+    }
+
+    scheduleFrame();
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    frameScheduled = false;
+    if (pendingMask == 0 || unacknowledged >= MAX_UNACKNOWLEDGED) {
+      // Dart is behind, keep collecting until it acknowledges
+      return;
+    }
+
+    Map<String, Object> values = new HashMap<>();
+    values.put("changes", new ArrayList<>(pendingChanges));
+    if (cameraChanged) {
+      values.put("camera", cameraOf(map.getCameraPosition()));
+      values.put("droppedCameras", droppedCameras);
+    }
+
+    pendingChanges.clear();
+    pendingMask = 0;
+    cameraChanged = false;
+    droppedCameras = 0;
+    unacknowledged++;
+    events.send(textureId, EVENT_MAP_CHANGED, values);
+  }
+
+  private void scheduleFrame() {
+    if (!frameScheduled && unacknowledged < MAX_UNACKNOWLEDGED) {
+      frameScheduled = true;
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+  }
+
+  private static Map<String, Object> cameraOf(CameraPosition cameraPosition) {
+    Map<String, Object> target = new HashMap<>();
+    target.put("lat", cameraPosition.target.getLatitude());
+    target.put("lng", cameraPosition.target.getLongitude());
+
+    Map<String, Object> camera = new HashMap<>();
+    camera.put("target", target);
+    camera.put("zoom", cameraPosition.zoom);
+    camera.put("bearing", cameraPosition.bearing);
+    camera.put("tilt", cameraPosition.tilt);
+    return camera;
+  }
+}
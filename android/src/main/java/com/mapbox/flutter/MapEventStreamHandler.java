@@ -0,0 +1,46 @@
+package com.mapbox.flutter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Streams map events to Dart over a single event channel.
+ * <p>
+ * Every event is a map holding the textureId of the map it belongs to and an event name,
+ * next to the event specific values. Events are dropped while Dart is not listening.
+ * Must be used from the main thread.
+ * </p>
+ */
+class MapEventStreamHandler implements EventChannel.StreamHandler {
+
+  static final String CHANNEL = "com.mapbox/flutter_mapbox_events";
+
+  private EventChannel.EventSink eventSink;
+
+  @Override
+  public void onListen(Object arguments, EventChannel.EventSink eventSink) {
+    this.eventSink = eventSink;
+  }
+
+  @Override
+  public void onCancel(Object arguments) {
+    this.eventSink = null;
+  }
+
+  boolean hasListener() {
+    return eventSink != null;
+  }
+
+  void send(long textureId, String event, Map<String, Object> values) {
+    if (eventSink == null) {
+      return;
+    }
+
+    Map<String, Object> message = values != null ? new HashMap<>(values) : new HashMap<String, Object>();
+    message.put("textureId", textureId);
+    message.put("event", event);
+    eventSink.success(message);
+  }
+}
@@ -0,0 +1,161 @@
+package com.mapbox.flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.constants.MapboxConstants;
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MapView;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps recently disposed maps alive so a later create with the same size and style can reuse
+ * them instead of building a new map, render thread and EGL context.
+ * <p>
+ * Pooled maps are stopped, detached from their surface and reset to the state of a new map with
+ * the same style: sources added at runtime are removed, zoom limits, frame pacing, render stats
+ * and tile prefetching return to their defaults and pending snapshots fail. The least recently
+ * parked map is destroyed when the pool is full. Maps built ahead of time are warmed up with
+ * {@link #warm} before they are parked. Must be used from the main thread.
+ * </p>
+ */
+class MapInstancePool {
+
+  static final int DEFAULT_CAPACITY = 3;
+  static final long WARM_TIMEOUT_MS = 10000;
+
+  private final LinkedList<FlutterMap> idleMaps = new LinkedList<>();
+  private final List<WarmingMap> warmingMaps = new ArrayList<>();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private int capacity = DEFAULT_CAPACITY;
+
+  /**
+   * Takes a parked map matching the given size, style and render thread mode out of the pool.
+   * Styles are matched by URL, or by document for style JSON.
+   *
+   * @return the map, or null when none matches
+   */
+  FlutterMap acquire(int width, int height, String style, boolean sharedRenderThread) {
+    Iterator<FlutterMap> iterator = idleMaps.iterator();
+    while (iterator.hasNext()) {
+      FlutterMap map = iterator.next();
+      if (map.getWidth() == width && map.getHeight() == height
+          && map.isSharedRenderThread() == sharedRenderThread
+          && map.hasStyle(style)) {
+        iterator.remove();
+        return map;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stops the map, detaches it from its surface, resets it and parks it for reuse. Blocks until
+   * the render thread no longer uses the surface, see {@link FlutterMap#detachSurface()}, so the
+   * surface can be released once this returns.
+   */
+  void release(FlutterMap map) {
+    map.onPause();
+    map.onStop();
+    map.detachSurface();
+
+    map.removeRuntimeSources();
+    map.setMinZoom(MapboxConstants.MINIMUM_ZOOM);
+    map.setMaxZoom(MapboxConstants.MAXIMUM_ZOOM);
+    map.setTargetFrameRate(0);
+    map.setRenderStatsEnabled(false);
+    map.setPrefetchesTiles(true);
+
+    idleMaps.addLast(map);
+    trimTo(capacity);
+  }
+
+  void setCapacity(int capacity) {
+    this.capacity = Math.max(0, capacity);
+    trimTo(this.capacity);
+  }
+
+  /**
+   * Renders a new map until its style and visible tiles are loaded and then parks it, so it
+   * holds a loaded style, tiles and a used EGL context. Maps that fail to load or take longer
+   * than {@link #WARM_TIMEOUT_MS} are parked as they are.
+   *
+   * @param onParked run once the map no longer uses its surface, after it was parked or when
+   *                 the pool was cleared before
+   */
+  void warm(FlutterMap map, Runnable onParked) {
+    WarmingMap warmingMap = new WarmingMap(map, onParked);
+    warmingMaps.add(warmingMap);
+    map.addOnMapChangedListener(warmingMap);
+    map.onStart();
+    map.onResume();
+    mainHandler.postDelayed(warmingMap, WARM_TIMEOUT_MS);
+  }
+
+  void clear() {
+    for (WarmingMap warmingMap : new ArrayList<>(warmingMaps)) {
+      warmingMap.destroy();
+    }
+    trimTo(0);
+  }
+
+  private void trimTo(int size) {
+    while (idleMaps.size() > size) {
+      idleMaps.removeFirst().onDestroy();
+    }
+  }
+
+  private final class WarmingMap implements MapView.OnMapChangedListener, Runnable {
+    final FlutterMap map;
+    final Runnable onParked;
+
+    WarmingMap(FlutterMap map, Runnable onParked) {
+      this.map = map;
+      this.onParked = onParked;
+    }
+
+    @Override
+    public void onMapChanged(int change) {
+      if (change == MapView.DID_FINISH_RENDERING_MAP_FULLY_RENDERED || change == MapView.DID_FAIL_LOADING_MAP) {
+        // Park outside of the change listener iteration
+        mainHandler.removeCallbacks(this);
+        mainHandler.post(this);
+      }
+    }
+
+    /**
+     * Parks the map, once loaded or on timeout.
+     */
+    @Override
+    public void run() {
+      if (!finish()) {
+        return;
+      }
+      release(map);
+      onParked.run();
+    }
+
+    void destroy() {
+      if (!finish()) {
+        return;
+      }
+      map.onPause();
+      map.onStop();
+      map.onDestroy();
+      onParked.run();
+    }
+
+    private boolean finish() {
+      if (!warmingMaps.remove(this)) {
+        return false;
+      }
+      mainHandler.removeCallbacks(this);
+      map.removeOnMapChangedListener(this);
+      return true;
+    }
+  }
+}
@@ -3,16 +3,25 @@ package com.mapbox.flutter;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.Application;
+import android.content.Context;
 import android.graphics.PointF;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import com.mapbox.mapboxsdk.camera.CameraPosition;
 import com.mapbox.mapboxsdk.constants.Style;
 import com.mapbox.mapboxsdk.geometry.LatLng;
-import com.mapbox.mapboxsdk.geometry.ProjectedMeters;
+import com.mapbox.mapboxsdk.geometry.LatLngBounds;
 import com.mapbox.mapboxsdk.maps.FlutterMap;
 import com.mapbox.mapboxsdk.maps.MapboxMapOptions;
+import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.RenderStats;
+import com.mapbox.mapboxsdk.offline.OfflineManager;
+import com.mapbox.mapboxsdk.storage.FileSource;
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -20,7 +29,12 @@ import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
 import io.flutter.view.FlutterView;
 
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -29,16 +43,34 @@ import java.util.Map;
 public class MapboxPlugin implements MethodCallHandler {
 
   private final FlutterView view;
+  private final RenderStatsReporter renderStatsReporter;
+  private final MapEventStreamHandler events;
+  private final StyleMessageHandler styleMessageHandler;
+  private final MapInstancePool pool = new MapInstancePool();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final GeoJsonSourceUpdater geoJsonSourceUpdater = new GeoJsonSourceUpdater(maps);
+  private ThumbnailRenderer thumbnailRenderer;
+  private ThumbnailCache thumbnailCache;
+  private OfflineRegionManager offlineRegions;
+  private TileCacheWarmer tileCacheWarmer;
   private Activity activity;
   private Registrar registrar;
 
+  private static final List<String> BATCH_METHODS = Arrays.asList("moveBy", "zoomBy", "zoom", "jumpTo", "easeTo",
+      "flyTo", "setMinZoom", "setMaxZoom", "setStyleUrl", "setStyleJson");
+
   private static Map<Long, MapInstance> maps = new HashMap<>();
+  private static boolean fileSourceWarmedUp;
 
   @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
-  private MapboxPlugin(Registrar registrar, FlutterView view, Activity activity) {
+  private MapboxPlugin(Registrar registrar, FlutterView view, Activity activity, MapEventStreamHandler events,
+                       StyleMessageHandler styleMessageHandler) {
     this.registrar = registrar;
     this.view = view;
     this.activity = activity;
+    this.events = events;
+    this.styleMessageHandler = styleMessageHandler;
+    this.renderStatsReporter = new RenderStatsReporter(maps, events);
 
     activity.getApplication().registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
       @Override
@@ -101,38 +133,184 @@ public class MapboxPlugin implements MethodCallHandler {
           //                  for (MapInstance mapInstance : maps.values()) {
           //                    mapInstance.release();
           //                  }
+          pool.clear();
+          if (thumbnailRenderer != null) {
+            thumbnailRenderer.release();
+            thumbnailRenderer = null;
+          }
         }
       }
     });
   }
 
   public static void registerWith(Registrar registrar) {
+    final MapEventStreamHandler events = new MapEventStreamHandler();
+    final EventChannel eventChannel = new EventChannel(registrar.messenger(), MapEventStreamHandler.CHANNEL);
+    eventChannel.setStreamHandler(events);
+
+    final StyleMessageHandler styleMessageHandler = new StyleMessageHandler(maps);
+    final BasicMessageChannel<ByteBuffer> styleChannel =
+        new BasicMessageChannel<>(registrar.messenger(), StyleMessageHandler.CHANNEL, BinaryCodec.INSTANCE);
+    styleChannel.setMessageHandler(styleMessageHandler);
+
     final MethodChannel channel = new MethodChannel(registrar.messenger(), "com.mapbox/flutter_mapbox");
-    channel.setMethodCallHandler(new MapboxPlugin(registrar, registrar.view(), registrar.activity()));
+    channel.setMethodCallHandler(new MapboxPlugin(registrar, registrar.view(), registrar.activity(), events,
+        styleMessageHandler));
+
+    final BasicMessageChannel<ByteBuffer> projectionChannel =
+        new BasicMessageChannel<>(registrar.messenger(), ProjectionMessageHandler.CHANNEL, BinaryCodec.INSTANCE);
+    projectionChannel.setMessageHandler(new ProjectionMessageHandler(maps));
+  }
+
+  /**
+   * Resolves the cache paths and creates the file source off the main thread, so the disk
+   * access involved does not delay the first map. Called on the first create, once Mapbox
+   * holds an access token, failures are left to the map construction to report.
+   */
+  private static void warmUpFileSource(final Context context) {
+    if (fileSourceWarmedUp) {
+      return;
+    }
+    fileSourceWarmedUp = true;
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          FileSource.getInstance(context);
+        } catch (RuntimeException exception) {
+          // Reported by the map construction on the main thread
+        }
+      }
+    }, "MapFileSourceWarmUp").start();
   }
 
   @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
   @Override
-  public void onMethodCall(MethodCall call, Result result) {
+  public void onMethodCall(MethodCall call, final Result result) {
     switch (call.method) {
       case "create": {
-        FlutterView.SurfaceTextureEntry surfaceTextureEntry = view.createSurfaceTexture();
+        final FlutterView.SurfaceTextureEntry surfaceTextureEntry = view.createSurfaceTexture();
         final int width = ((Number) call.argument("width")).intValue();
         final int height = ((Number) call.argument("height")).intValue();
-        final MapboxMapOptions options = parseOptions((Map<String, Object>) call.argument("options"));
-        SurfaceTexture surfaceTexture = surfaceTextureEntry.surfaceTexture();
-        surfaceTexture.setDefaultBufferSize(width, height);
-        FlutterMap mapView = new FlutterMap(activity, options, surfaceTexture, width, height);
-        mapView.onStart();
-        mapView.onResume();
-
-        maps.put(surfaceTextureEntry.id(), new MapInstance(mapView, surfaceTextureEntry));
+        final Map<String, Object> pluginOptions = call.argument("options");
+        surfaceTextureEntry.surfaceTexture().setDefaultBufferSize(width, height);
+        final StartupTrace startupTrace = new StartupTrace(surfaceTextureEntry.id(), events);
+        warmUpFileSource(activity.getApplicationContext());
+
+        // Reply with the texture right away, the map is built on the next pass of the main loop.
+        // Calls for this texture arrive after the reply and are therefore handled after it.
+        // Construction failures reach Dart through the first frame event.
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              createMap(surfaceTextureEntry, width, height, pluginOptions, startupTrace);
+            } catch (RuntimeException exception) {
+              surfaceTextureEntry.release();
+              startupTrace.fail(exception);
+            }
+          }
+        });
+
         Map<String, Object> reply = new HashMap<>();
         reply.put("textureId", surfaceTextureEntry.id());
         result.success(reply);
         break;
       }
 
+      case "startMapChanges": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          maps.get(textureId).mapChangeDispatcher.start();
+        }
+        result.success(null);
+        break;
+      }
+
+      case "stopMapChanges": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          maps.get(textureId).mapChangeDispatcher.stop();
+        }
+        result.success(null);
+        break;
+      }
+
+      case "ackMapChanges": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          int count = call.argument("count") != null ? intParamOfCall(call, "count") : 1;
+          maps.get(textureId).mapChangeDispatcher.acknowledge(count);
+        }
+        result.success(null);
+        break;
+      }
+
+      case "getCameraState": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          result.success(maps.get(textureId).cameraPublisher.getState());
+        } else {
+          result.success(null);
+        }
+        break;
+      }
+
+      case "getStartupTimings": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          MapInstance mapInstance = maps.get(textureId);
+          result.success(mapInstance.startupTrace.toMap());
+        } else {
+          result.success(null);
+        }
+        break;
+      }
+
+      case "prewarm": {
+        final int width = ((Number) call.argument("width")).intValue();
+        final int height = ((Number) call.argument("height")).intValue();
+        final int count = intParamOfCall(call, "count");
+        Map<String, Object> pluginOptions = call.argument("options");
+        boolean sharedRenderThread = Boolean.TRUE.equals(pluginOptions.get("sharedRenderThread"));
+        if (count <= 0) {
+          result.success(null);
+          break;
+        }
+        final int[] remaining = {count};
+        for (int i = 0; i < count; i++) {
+          // The map only needs a surface until it is parked, the texture is released right after
+          final FlutterView.SurfaceTextureEntry surfaceTextureEntry = view.createSurfaceTexture();
+          SurfaceTexture surfaceTexture = surfaceTextureEntry.surfaceTexture();
+          surfaceTexture.setDefaultBufferSize(width, height);
+          FlutterMap mapView = new FlutterMap(activity, parseOptions(pluginOptions), surfaceTexture, width, height,
+              sharedRenderThread);
+          pool.warm(mapView, new Runnable() {
+            @Override
+            public void run() {
+              surfaceTextureEntry.release();
+              if (--remaining[0] == 0) {
+                result.success(null);
+              }
+            }
+          });
+        }
+        break;
+      }
+
+      case "resize": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          MapInstance mapInstance = maps.get(textureId);
+          int width = intParamOfCall(call, "width");
+          int height = intParamOfCall(call, "height");
+          mapInstance.surfaceTextureEntry.surfaceTexture().setDefaultBufferSize(width, height);
+          mapInstance.map.resize(width, height);
+        }
+        result.success(null);
+        break;
+      }
+
       case "setStyleUrl": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
@@ -160,14 +338,192 @@ public class MapboxPlugin implements MethodCallHandler {
       case "setStyleJson": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
-          String styleUrl = stringParamOfCall(call, "styleJson");
+          String styleJson = stringParamOfCall(call, "styleJson");
           MapInstance mapHolder = maps.get(textureId);
-          mapHolder.map.setStyleJson(styleUrl);
+          applyStyleJson(mapHolder.map, styleJson);
         }
         result.success(null);
         break;
       }
 
+      case "setGeoJsonSource": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          PackedGeoJson features;
+          try {
+            features = new PackedGeoJson(stringParamOfCall(call, "geometryType"),
+                (double[]) call.argument("coordinates"), (int[]) call.argument("featureOffsets"),
+                (long[]) call.argument("ids"));
+          } catch (IllegalArgumentException exception) {
+            result.error("geojson", exception.getMessage(), null);
+            break;
+          }
+          geoJsonSourceUpdater.setFeatures(textureId, stringParamOfCall(call, "sourceId"), features, result);
+        } else {
+          result.success(false);
+        }
+        break;
+      }
+
+      case "updateGeoJsonFeatures": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          double[] coordinates = call.argument("coordinates");
+          geoJsonSourceUpdater.setCoordinates(textureId, stringParamOfCall(call, "sourceId"), coordinates, result);
+        } else {
+          result.success(false);
+        }
+        break;
+      }
+
+      case "updateGeoJsonFeatureStore": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          geoJsonSourceUpdater.applyDelta(textureId, stringParamOfCall(call, "sourceId"),
+              (long[]) call.argument("upsertIds"), (double[]) call.argument("upsertCoordinates"),
+              (long[]) call.argument("removeIds"), result);
+        } else {
+          result.success(false);
+        }
+        break;
+      }
+
+      case "setClusteredSource": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          MapInstance mapInstance = maps.get(textureId);
+          String sourceId = stringParamOfCall(call, "sourceId");
+          ClusteredSource source = mapInstance.clusteredSources.get(sourceId);
+          if (source == null) {
+            source = new ClusteredSource(textureId, sourceId, mapInstance.map, geoJsonSourceUpdater);
+            source.attach();
+            mapInstance.clusteredSources.put(sourceId, source);
+          }
+          source.setPoints((double[]) call.argument("coordinates"), (long[]) call.argument("ids"),
+              intParamOfCall(call, "radius"), intParamOfCall(call, "maxZoom"), result);
+        } else {
+          result.success(null);
+        }
+        break;
+      }
+
+      case "removeClusteredSource": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          ClusteredSource source = maps.get(textureId).clusteredSources.remove(stringParamOfCall(call, "sourceId"));
+          if (source != null) {
+            source.detach();
+          }
+        }
+        result.success(null);
+        break;
+      }
+
+      case "queryClusters": {
+        long textureId = textureIdOfCall(call);
+        ClusteredSource source = maps.containsKey(textureId)
+            ? maps.get(textureId).clusteredSources.get(stringParamOfCall(call, "sourceId")) : null;
+        PointClusterIndex.Clusters clusters = source == null ? null : source.query(
+            doubleParamOfCall(call, "zoom"), doubleParamOfCall(call, "south"), doubleParamOfCall(call, "west"),
+            doubleParamOfCall(call, "north"), doubleParamOfCall(call, "east"));
+        if (clusters != null) {
+          Map<String, Object> reply = new HashMap<>();
+          reply.put("coordinates", Arrays.copyOf(clusters.latLngs, clusters.size * 2));
+          reply.put("counts", Arrays.copyOf(clusters.counts, clusters.size));
+          reply.put("ids", Arrays.copyOf(clusters.ids, clusters.size));
+          result.success(reply);
+        } else {
+          result.success(null);
+        }
+        break;
+      }
+
+      case "setFeatureIndex": {
+        final long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          final MapInstance mapInstance = maps.get(textureId);
+          final String indexId = stringParamOfCall(call, "indexId");
+          PackedGeoJson features;
+          try {
+            features = new PackedGeoJson(stringParamOfCall(call, "geometryType"),
+                (double[]) call.argument("coordinates"), (int[]) call.argument("featureOffsets"),
+                (long[]) call.argument("ids"));
+          } catch (IllegalArgumentException exception) {
+            result.error("featureIndex", exception.getMessage(), null);
+            break;
+          }
+          FeatureIndex.build(features, new FeatureIndex.Callback() {
+            @Override
+            public void onBuilt(FeatureIndex index, long buildMillis) {
+              if (maps.get(textureId) != mapInstance) {
+                result.success(null);
+                return;
+              }
+              mapInstance.featureIndexes.put(indexId, index);
+              Map<String, Object> reply = new HashMap<>();
+              reply.put("featureCount", index.size());
+              reply.put("buildMillis", buildMillis);
+              result.success(reply);
+            }
+
+            @Override
+            public void onError(RuntimeException exception) {
+              result.error("featureIndex", exception.getMessage(), null);
+            }
+          });
+        } else {
+          result.success(null);
+        }
+        break;
+      }
+
+      case "removeFeatureIndex": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          maps.get(textureId).featureIndexes.remove(stringParamOfCall(call, "indexId"));
+        }
+        result.success(null);
+        break;
+      }
+
+      case "queryRenderedBounds": {
+        long textureId = textureIdOfCall(call);
+        FeatureIndex index = featureIndexOfCall(call);
+        if (index != null) {
+          FlutterMap map = maps.get(textureId).map;
+          long[] ids;
+          if (call.argument("left") != null) {
+            ids = index.queryRenderedBounds(map, doubleParamOfCall(call, "left"), doubleParamOfCall(call, "top"),
+                doubleParamOfCall(call, "right"), doubleParamOfCall(call, "bottom"));
+          } else {
+            double[] camera = new double[FlutterMap.CAMERA_STATE_SIZE];
+            map.getCameraState(camera);
+            ids = index.queryBounds(camera[FlutterMap.CAMERA_SOUTH], camera[FlutterMap.CAMERA_WEST],
+                camera[FlutterMap.CAMERA_NORTH], camera[FlutterMap.CAMERA_EAST]);
+          }
+          Map<String, Object> reply = new HashMap<>();
+          reply.put("ids", ids);
+          result.success(reply);
+        } else {
+          result.success(null);
+        }
+        break;
+      }
+
+      case "hitTest": {
+        long textureId = textureIdOfCall(call);
+        FeatureIndex index = featureIndexOfCall(call);
+        if (index != null) {
+          Map<String, Object> reply = new HashMap<>();
+          reply.put("ids", index.hitTest(maps.get(textureId).map, doubleParamOfCall(call, "x"),
+              doubleParamOfCall(call, "y"), doubleParamOfCall(call, "radius")));
+          result.success(reply);
+        } else {
+          result.success(null);
+        }
+        break;
+      }
+
       case "getStyleJson": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
@@ -200,7 +556,11 @@ public class MapboxPlugin implements MethodCallHandler {
           CameraPosition cameraPosition = parseCamera(call.argument("camera"));
           int duration = intParamOfCall(call, "duration");
           MapInstance mapHolder = maps.get(textureId);
+          CameraPosition start = mapHolder.map.getCameraPosition();
           mapHolder.map.easeTo(cameraPosition, duration, true);
+          if (mapHolder.flightPrefetcher != null) {
+            mapHolder.flightPrefetcher.onEaseTo(start, cameraPosition);
+          }
         }
         result.success(null);
         break;
@@ -212,7 +572,28 @@ public class MapboxPlugin implements MethodCallHandler {
           CameraPosition cameraPosition = parseCamera(call.argument("camera"));
           int duration = intParamOfCall(call, "duration");
           MapInstance mapHolder = maps.get(textureId);
+          CameraPosition start = mapHolder.map.getCameraPosition();
           mapHolder.map.flyTo(cameraPosition, duration);
+          if (mapHolder.flightPrefetcher != null) {
+            mapHolder.flightPrefetcher.onFlyTo(start, cameraPosition);
+          }
+        }
+        result.success(null);
+        break;
+      }
+
+      case "setPredictivePrefetch": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          MapInstance mapInstance = maps.get(textureId);
+          boolean enabled = Boolean.TRUE.equals(call.argument("enabled"));
+          if (enabled && mapInstance.flightPrefetcher == null) {
+            mapInstance.flightPrefetcher = new FlightPrefetcher(textureId, mapInstance.map, tileCacheWarmerOf());
+            mapInstance.flightPrefetcher.attach();
+          } else if (!enabled && mapInstance.flightPrefetcher != null) {
+            mapInstance.flightPrefetcher.detach();
+            mapInstance.flightPrefetcher = null;
+          }
         }
         result.success(null);
         break;
@@ -257,6 +638,29 @@ public class MapboxPlugin implements MethodCallHandler {
         break;
       }
 
+      case "batch": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          MapInstance mapInstance = maps.get(textureId);
+          List<Map<String, Object>> commands = call.argument("commands");
+          // Reject the whole batch up front rather than leave it half applied
+          String unsupported = unsupportedCommandOf(commands);
+          if (unsupported != null) {
+            result.error("batch", "Unsupported batch command: " + unsupported, null);
+            break;
+          }
+          applyCommands(mapInstance.map, mapInstance.flightPrefetcher, commands);
+          for (Map<String, Object> command : commands) {
+            if ("setMinZoom".equals(command.get("method")) || "setMaxZoom".equals(command.get("method"))) {
+              mapInstance.cameraPublisher.invalidate();
+              break;
+            }
+          }
+        }
+        result.success(null);
+        break;
+      }
+
       case "getMinZoom": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
@@ -276,6 +680,7 @@ public class MapboxPlugin implements MethodCallHandler {
           MapInstance mapInstance = maps.get(textureId);
           double zoom = doubleParamOfCall(call, "zoom");
           mapInstance.map.setMinZoom(zoom);
+          mapInstance.cameraPublisher.invalidate();
         }
         result.success(null);
         break;
@@ -300,6 +705,7 @@ public class MapboxPlugin implements MethodCallHandler {
           MapInstance mapInstance = maps.get(textureId);
           double zoom = doubleParamOfCall(call, "zoom");
           mapInstance.map.setMaxZoom(zoom);
+          mapInstance.cameraPublisher.invalidate();
         }
         result.success(null);
         break;
@@ -318,14 +724,15 @@ public class MapboxPlugin implements MethodCallHandler {
         break;
       }
 
-      case "getLatLngForPixel": {
+      case "getPixelsForLatLngs": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
           MapInstance mapInstance = maps.get(textureId);
+          double[] latLngs = call.argument("coordinates");
+          double[] pixels = new double[latLngs.length];
+          mapInstance.map.getPixelsForLatLngs(latLngs, pixels);
           Map<String, Object> reply = new HashMap<>();
-          LatLng latLng = mapInstance.map.getLatLng(screenPointParamOfCall(call));
-          reply.put("lat", latLng.getLatitude());
-          reply.put("lng", latLng.getLongitude());
+          reply.put("coordinates", pixels);
           result.success(reply);
         } else {
           result.success(null);
@@ -333,14 +740,15 @@ public class MapboxPlugin implements MethodCallHandler {
         break;
       }
 
-      case "getPixelForLatLng": {
+      case "getLatLngsForPixels": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
           MapInstance mapInstance = maps.get(textureId);
+          double[] pixels = call.argument("coordinates");
+          double[] latLngs = new double[pixels.length];
+          mapInstance.map.getLatLngsForPixels(pixels, latLngs);
           Map<String, Object> reply = new HashMap<>();
-          PointF pointF = mapInstance.map.getScreenPoint(latLngParamOfCall(call));
-          reply.put("dx", pointF.x);
-          reply.put("dy", pointF.y);
+          reply.put("coordinates", latLngs);
           result.success(reply);
         } else {
           result.success(null);
@@ -348,14 +756,15 @@ public class MapboxPlugin implements MethodCallHandler {
         break;
       }
 
-      case "getProjectedMetersForLatLng": {
+      case "getProjectedMetersForLatLngs": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
           MapInstance mapInstance = maps.get(textureId);
+          double[] latLngs = call.argument("coordinates");
+          double[] meters = new double[latLngs.length];
+          mapInstance.map.getProjectedMetersForLatLngs(latLngs, meters);
           Map<String, Object> reply = new HashMap<>();
-          ProjectedMeters projectedMeters = mapInstance.map.getProjecteMeters(latLngParamOfCall(call));
-          reply.put("northing", projectedMeters.getNorthing());
-          reply.put("easting", projectedMeters.getEasting());
+          reply.put("coordinates", meters);
           result.success(reply);
         } else {
           result.success(null);
@@ -363,29 +772,184 @@ public class MapboxPlugin implements MethodCallHandler {
         break;
       }
 
-      case "getLatLngForProjectedMeters": {
+      case "snapshot": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
           MapInstance mapInstance = maps.get(textureId);
-          Map<String, Object> reply = new HashMap<>();
-          LatLng latLng = mapInstance.map.getLatLng(projectedMetersPointParamOfCall(call));
-          reply.put("lat", latLng.getLatitude());
-          reply.put("lng", latLng.getLongitude());
-          result.success(reply);
+          String requestedFormat = call.argument("format");
+          String format = requestedFormat != null ? requestedFormat : SnapshotEncoder.FORMAT_PNG;
+          if (!SnapshotEncoder.isSupportedFormat(format)) {
+            result.error("snapshot", "Unsupported snapshot format: " + format, null);
+            break;
+          }
+          double scale = call.argument("scale") != null ? doubleParamOfCall(call, "scale") : 1.0;
+          mapInstance.map.snapshot(new SnapshotEncoder(result, format, scale));
         } else {
           result.success(null);
         }
         break;
       }
 
-      case "getMetersPerPixelAtLatitude": {
+      case "renderThumbnail": {
+        String requestedFormat = call.argument("format");
+        String format = requestedFormat != null ? requestedFormat : SnapshotEncoder.FORMAT_PNG;
+        if (!SnapshotEncoder.isSupportedFormat(format)) {
+          result.error("thumbnail", "Unsupported snapshot format: " + format, null);
+          break;
+        }
+        final int width = intParamOfCall(call, "width");
+        final int height = intParamOfCall(call, "height");
+        Map<String, Object> pluginOptions = call.argument("options");
+        Map<String, Object> camera = (Map<String, Object>) pluginOptions.get("camera");
+        double scale = call.argument("scale") != null ? doubleParamOfCall(call, "scale") : 1.0;
+        final ThumbnailRenderer.Job job = new ThumbnailRenderer.Job(camera != null ? parseCamera(camera) : null,
+            styleOfOptions(pluginOptions), width, height, format, scale, result);
+        // Without a camera the thumbnail depends on the style's default camera
+        if (job.camera == null || Boolean.FALSE.equals(call.argument("cache"))) {
+          renderThumbnail(job);
+        } else {
+          renderCachedThumbnail(job);
+        }
+        break;
+      }
+
+      case "getThumbnailCacheStats": {
+        result.success(thumbnailCacheOf().getStats());
+        break;
+      }
+
+      case "setThumbnailCacheCapacity": {
+        if (call.argument("memoryBytes") != null) {
+          thumbnailCacheOf().setMaxMemoryBytes(longParamOfCall(call, "memoryBytes"));
+        }
+        if (call.argument("diskBytes") != null) {
+          thumbnailCacheOf().setMaxDiskBytes(longParamOfCall(call, "diskBytes"));
+        }
+        result.success(null);
+        break;
+      }
+
+      case "clearThumbnailCache": {
+        thumbnailCacheOf().clear();
+        result.success(null);
+        break;
+      }
+
+      case "createOfflineRegion": {
+        LatLngBounds bounds = LatLngBounds.from(doubleParamOfCall(call, "north"), doubleParamOfCall(call, "east"),
+            doubleParamOfCall(call, "south"), doubleParamOfCall(call, "west"));
+        String styleUrl = call.argument("styleUrl");
+        offlineRegionsOf().create(stringParamOfCall(call, "name"), styleUrl != null ? styleUrl : Style.MAPBOX_STREETS,
+            bounds, intParamOfCall(call, "minZoom"), intParamOfCall(call, "maxZoom"), result);
+        break;
+      }
+
+      case "listOfflineRegions": {
+        offlineRegionsOf().list(result);
+        break;
+      }
+
+      case "pauseOfflineRegion": {
+        offlineRegionsOf().pause(stringParamOfCall(call, "regionId"), result);
+        break;
+      }
+
+      case "resumeOfflineRegion": {
+        offlineRegionsOf().resume(stringParamOfCall(call, "regionId"), result);
+        break;
+      }
+
+      case "deleteOfflineRegion": {
+        offlineRegionsOf().delete(stringParamOfCall(call, "regionId"), result);
+        break;
+      }
+
+      case "setMaxActiveOfflineDownloads": {
+        offlineRegionsOf().setMaxActiveDownloads(intParamOfCall(call, "maxActiveDownloads"));
+        result.success(null);
+        break;
+      }
+
+      case "warmViewports": {
+        String styleUrl = call.argument("styleUrl");
+        if (styleUrl == null) {
+          result.error("tileCache", "warmViewports requires the styleUrl of the map", null);
+          break;
+        }
+        tileCacheWarmerOf().warm(stringParamOfCall(call, "tag"), (double[]) call.argument("cameras"),
+            doubleParamOfCall(call, "width"), doubleParamOfCall(call, "height"), styleUrl, result);
+        break;
+      }
+
+      case "cancelWarmViewports": {
+        result.success(tileCacheWarmerOf().cancel(stringParamOfCall(call, "tag")));
+        break;
+      }
+
+      case "setTileCacheConfig": {
+        if (call.argument("maxWarmBytes") != null) {
+          tileCacheWarmerOf().setMaxWarmBytes(longParamOfCall(call, "maxWarmBytes"));
+        }
+        if (call.argument("maxActiveDownloads") != null) {
+          tileCacheWarmerOf().setMaxActiveDownloads(intParamOfCall(call, "maxActiveDownloads"));
+        }
+        if (call.argument("tileCountLimit") != null) {
+          OfflineManager.getInstance(activity.getApplicationContext())
+              .setOfflineMapboxTileCountLimit(longParamOfCall(call, "tileCountLimit"));
+        }
+        result.success(null);
+        break;
+      }
+
+      case "getTileCacheInfo": {
+        result.success(tileCacheWarmerOf().getInfo());
+        break;
+      }
+
+      case "clearWarmedTiles": {
+        tileCacheWarmerOf().clear();
+        result.success(null);
+        break;
+      }
+
+      case "setPrefetchesTiles": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          maps.get(textureId).map.setPrefetchesTiles(Boolean.TRUE.equals(call.argument("enabled")));
+        }
+        result.success(null);
+        break;
+      }
+
+      case "releaseThumbnailRenderer": {
+        if (thumbnailRenderer != null) {
+          thumbnailRenderer.release();
+          thumbnailRenderer = null;
+        }
+        result.success(null);
+        break;
+      }
+
+      case "setRenderStatsEnabled": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
           MapInstance mapInstance = maps.get(textureId);
-          Map<String, Object> reply = new HashMap<>();
-          double latitude = doubleParamOfCall(call, "lat");
-          reply.put("meters", mapInstance.map.getMetersPerPixelAtLatitude(latitude));
-          result.success(reply);
+          boolean enabled = call.argument("enabled");
+          mapInstance.map.setRenderStatsEnabled(enabled);
+          if (enabled) {
+            renderStatsReporter.start();
+          }
+        }
+        result.success(null);
+        break;
+      }
+
+      case "getRenderStats": {
+        long textureId = textureIdOfCall(call);
+        if (maps.containsKey(textureId)) {
+          MapInstance mapInstance = maps.get(textureId);
+          RenderStats stats = mapInstance.map.getRenderStats();
+          result.success(stats != null ? stats.toMap() : null);
         } else {
           result.success(null);
         }
@@ -395,12 +959,22 @@ public class MapboxPlugin implements MethodCallHandler {
       case "dispose": {
         long textureId = textureIdOfCall(call);
         if (maps.containsKey(textureId)) {
-          MapInstance mapHolder = maps.get(textureId);
-          mapHolder.release();
-          maps.remove(textureId);
-        } else {
-          result.success(null);
+          MapInstance mapHolder = maps.remove(textureId);
+          mapHolder.startupTrace.detach();
+          mapHolder.mapChangeDispatcher.detach();
+          mapHolder.cameraPublisher.detach();
+          for (ClusteredSource source : mapHolder.clusteredSources.values()) {
+            source.detach();
+          }
+          geoJsonSourceUpdater.clear(textureId);
+          styleMessageHandler.clear(textureId);
+          if (mapHolder.flightPrefetcher != null) {
+            mapHolder.flightPrefetcher.detach();
+          }
+          pool.release(mapHolder.map);
+          mapHolder.surfaceTextureEntry.release();
         }
+        result.success(null);
         break;
       }
       default:
@@ -408,6 +982,221 @@ public class MapboxPlugin implements MethodCallHandler {
     }
   }
 
+  private void createMap(FlutterView.SurfaceTextureEntry surfaceTextureEntry, int width, int height,
+                         Map<String, Object> pluginOptions, StartupTrace startupTrace) {
+    SurfaceTexture surfaceTexture = surfaceTextureEntry.surfaceTexture();
+    boolean sharedRenderThread = Boolean.TRUE.equals(pluginOptions.get("sharedRenderThread"));
+
+    // Reuse a parked map with the same size and style, it keeps its EGL context and tiles
+    FlutterMap mapView = pool.acquire(width, height, styleOfOptions(pluginOptions), sharedRenderThread);
+    boolean reused = mapView != null;
+    if (reused) {
+      mapView.attachSurface(surfaceTexture);
+      Map<String, Object> camera = (Map<String, Object>) pluginOptions.get("camera");
+      if (camera != null) {
+        mapView.jumpTo(parseCamera(camera));
+      }
+    } else {
+      mapView = new FlutterMap(activity, parseOptions(pluginOptions), surfaceTexture, width, height,
+          sharedRenderThread);
+    }
+    startupTrace.attach(mapView, reused);
+    MapChangeDispatcher mapChangeDispatcher = new MapChangeDispatcher(surfaceTextureEntry.id(), mapView, events);
+    mapChangeDispatcher.attach();
+    CameraPublisher cameraPublisher = new CameraPublisher(surfaceTextureEntry.id(), mapView, events);
+    cameraPublisher.attach();
+
+    mapView.setTargetFrameRate(targetFpsOfOptions(pluginOptions));
+    boolean renderStats = Boolean.TRUE.equals(pluginOptions.get("renderStats"));
+    mapView.setRenderStatsEnabled(renderStats);
+    if (renderStats) {
+      renderStatsReporter.start();
+    }
+    mapView.onStart();
+    mapView.onResume();
+
+    maps.put(surfaceTextureEntry.id(),
+        new MapInstance(mapView, surfaceTextureEntry, startupTrace, mapChangeDispatcher, cameraPublisher));
+  }
+
+  private void renderThumbnail(ThumbnailRenderer.Job job) {
+    if (thumbnailRenderer == null) {
+      thumbnailRenderer = new ThumbnailRenderer(activity);
+    }
+    thumbnailRenderer.render(job);
+  }
+
+  /**
+   * Replies from the thumbnail cache when possible, otherwise renders the thumbnail and
+   * stores the result.
+   */
+  private void renderCachedThumbnail(final ThumbnailRenderer.Job job) {
+    final ThumbnailCache cache = thumbnailCacheOf();
+    final String key = ThumbnailCache.keyOf(job.camera, job.styleUrl, job.width, job.height, job.format, job.scale);
+    cache.get(key, new ThumbnailCache.Callback() {
+      @Override
+      public void onResult(Map<String, Object> reply) {
+        if (reply != null) {
+          job.result.success(reply);
+          return;
+        }
+
+        final Result result = job.result;
+        renderThumbnail(new ThumbnailRenderer.Job(job.camera, job.styleUrl, job.width, job.height, job.format,
+            job.scale, new Result() {
+              @Override
+              public void success(Object reply) {
+                Map<String, Object> snapshot = (Map<String, Object>) reply;
+                // Incomplete renders timed out on tiles, let the next request try again
+                if (snapshot != null && Boolean.TRUE.equals(snapshot.get("complete"))) {
+                  cache.put(key, snapshot);
+                }
+                result.success(reply);
+              }
+
+              @Override
+              public void error(String code, String message, Object details) {
+                result.error(code, message, details);
+              }
+
+              @Override
+              public void notImplemented() {
+                result.notImplemented();
+              }
+            }));
+      }
+    });
+  }
+
+  private TileCacheWarmer tileCacheWarmerOf() {
+    if (tileCacheWarmer == null) {
+      tileCacheWarmer = new TileCacheWarmer(activity.getApplicationContext());
+    }
+    return tileCacheWarmer;
+  }
+
+  private OfflineRegionManager offlineRegionsOf() {
+    if (offlineRegions == null) {
+      offlineRegions = new OfflineRegionManager(activity.getApplicationContext(), events);
+    }
+    return offlineRegions;
+  }
+
+  private ThumbnailCache thumbnailCacheOf() {
+    if (thumbnailCache == null) {
+      thumbnailCache = new ThumbnailCache(activity.getApplicationContext());
+    }
+    return thumbnailCache;
+  }
+
+  /**
+   * Patches the current style when only layer properties, removed layers or GeoJSON data
+   * differ, and reloads the style otherwise.
+   */
+  static void applyStyleJson(FlutterMap map, String styleJson) {
+    JSONObject parsed = StyleDiff.parse(styleJson);
+    if (StyleDiff.apply(map, parsed)) {
+      map.setAppliedStyleJson(styleJson, parsed);
+    } else {
+      map.setStyleJson(styleJson, parsed);
+    }
+  }
+
+  /**
+   * @return the method of the first command that {@link #applyCommands} does not support, or null
+   */
+  private static String unsupportedCommandOf(List<Map<String, Object>> commands) {
+    for (Map<String, Object> command : commands) {
+      Object method = command.get("method");
+      if (!BATCH_METHODS.contains(method)) {
+        return String.valueOf(method);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Applies a list of camera and style commands in order. Consecutive immediate moveBy and
+   * zoomBy commands are merged before they reach the map.
+   */
+  private void applyCommands(FlutterMap map, FlightPrefetcher flightPrefetcher, List<Map<String, Object>> commands) {
+    CameraCommandCoalescer coalescer = new CameraCommandCoalescer();
+    for (Map<String, Object> command : commands) {
+      String method = (String) command.get("method");
+      long duration = command.containsKey("duration") ? ((Number) command.get("duration")).longValue() : 0;
+
+      if (duration == 0 && "moveBy".equals(method)) {
+        coalescer.moveBy(doubleParamOfCommand(command, "dx"), doubleParamOfCommand(command, "dy"));
+        continue;
+      }
+
+      if (duration == 0 && "zoomBy".equals(method)) {
+        coalescer.zoomBy(doubleParamOfCommand(command, "zoomBy"),
+            (float) doubleParamOfCommand(command, "x"), (float) doubleParamOfCommand(command, "y"));
+        continue;
+      }
+
+      coalescer.flush(map);
+      switch (method) {
+        case "moveBy":
+          map.moveBy(doubleParamOfCommand(command, "dx"), doubleParamOfCommand(command, "dy"), duration);
+          break;
+        case "zoomBy": {
+          PointF focalPoint = new PointF((float) doubleParamOfCommand(command, "x"),
+              (float) doubleParamOfCommand(command, "y"));
+          map.zoom(map.getZoom() + doubleParamOfCommand(command, "zoomBy"), focalPoint, duration);
+          break;
+        }
+        case "zoom": {
+          PointF focalPoint = new PointF((float) doubleParamOfCommand(command, "x"),
+              (float) doubleParamOfCommand(command, "y"));
+          map.zoom(doubleParamOfCommand(command, "zoom"), focalPoint, duration);
+          break;
+        }
+        case "jumpTo":
+          map.jumpTo(parseCamera((Map<String, Object>) command.get("camera")));
+          break;
+        case "easeTo": {
+          CameraPosition start = map.getCameraPosition();
+          CameraPosition end = parseCamera((Map<String, Object>) command.get("camera"));
+          map.easeTo(end, (int) duration, true);
+          if (flightPrefetcher != null) {
+            flightPrefetcher.onEaseTo(start, end);
+          }
+          break;
+        }
+        case "flyTo": {
+          CameraPosition start = map.getCameraPosition();
+          CameraPosition end = parseCamera((Map<String, Object>) command.get("camera"));
+          map.flyTo(end, (int) duration);
+          if (flightPrefetcher != null) {
+            flightPrefetcher.onFlyTo(start, end);
+          }
+          break;
+        }
+        case "setMinZoom":
+          map.setMinZoom(doubleParamOfCommand(command, "zoom"));
+          break;
+        case "setMaxZoom":
+          map.setMaxZoom(doubleParamOfCommand(command, "zoom"));
+          break;
+        case "setStyleUrl":
+          map.setStyleUrl((String) command.get("styleUrl"));
+          break;
+        case "setStyleJson":
+          applyStyleJson(map, (String) command.get("styleJson"));
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported batch command: " + method);
+      }
+    }
+    coalescer.flush(map);
+  }
+
+  private double doubleParamOfCommand(Map<String, Object> command, String param) {
+    return ((Number) command.get(param)).doubleValue();
+  }
+
   private boolean booleanParamOfCall(MethodCall call, String param) {
     return Boolean.parseBoolean(call.argument(param));
   }
@@ -432,35 +1221,18 @@ public class MapboxPlugin implements MethodCallHandler {
     return (String) call.argument(param);
   }
 
-  private long textureIdOfCall(MethodCall call) {
-    return ((Number) call.argument("textureId")).longValue();
-  }
-
-  private LatLng latLngParamOfCall(MethodCall call) {
-    Double lat = call.argument("lat");
-    Double lng = call.argument("lng");
-    return new LatLng(lat, lng);
-  }
-
-  private PointF screenPointParamOfCall(MethodCall call) {
-    Double x = call.argument("x");
-    Double y = call.argument("y");
-    return new PointF(x.floatValue(), y.floatValue());
+  private FeatureIndex featureIndexOfCall(MethodCall call) {
+    MapInstance mapInstance = maps.get(textureIdOfCall(call));
+    return mapInstance != null ? mapInstance.featureIndexes.get(stringParamOfCall(call, "indexId")) : null;
   }
 
-  private ProjectedMeters projectedMetersPointParamOfCall(MethodCall call) {
-    double easting = call.argument("easting");
-    double northing = call.argument("northing");
-    return new ProjectedMeters(northing, easting);
+  private long textureIdOfCall(MethodCall call) {
+    return ((Number) call.argument("textureId")).longValue();
   }
 
   private MapboxMapOptions parseOptions(Map<String, Object> options) {
 
-    String style = (String) options.get("style");
-    if (style == null) {
-      style = Style.MAPBOX_STREETS;
-    }
-    MapboxMapOptions mapOptions = new MapboxMapOptions().styleUrl(style);
+    MapboxMapOptions mapOptions = new MapboxMapOptions().styleUrl(styleOfOptions(options));
 
     Map<String, Object> camera = (Map<String, Object>) options.get("camera");
     if (camera != null) {
@@ -469,6 +1241,16 @@ public class MapboxPlugin implements MethodCallHandler {
     return mapOptions;
   }
 
+  private String styleOfOptions(Map<String, Object> options) {
+    String style = (String) options.get("style");
+    return style != null ? style : Style.MAPBOX_STREETS;
+  }
+
+  private int targetFpsOfOptions(Map<String, Object> options) {
+    Number targetFps = (Number) options.get("targetFps");
+    return targetFps != null ? targetFps.intValue() : 0;
+  }
+
   private CameraPosition parseCamera(Map<String, Object> camera) {
     CameraPosition.Builder cameraPosition = new CameraPosition.Builder();
 
@@ -502,13 +1284,23 @@ public class MapboxPlugin implements MethodCallHandler {
     return null;
   }
 
-  private static class MapInstance {
+  static class MapInstance {
     FlutterMap map;
     FlutterView.SurfaceTextureEntry surfaceTextureEntry;
+    final StartupTrace startupTrace;
+    final MapChangeDispatcher mapChangeDispatcher;
+    final CameraPublisher cameraPublisher;
+    final Map<String, ClusteredSource> clusteredSources = new HashMap<>();
+    final Map<String, FeatureIndex> featureIndexes = new HashMap<>();
+    FlightPrefetcher flightPrefetcher;
 
-    MapInstance(FlutterMap map, FlutterView.SurfaceTextureEntry surfaceTextureEntry) {
+    MapInstance(FlutterMap map, FlutterView.SurfaceTextureEntry surfaceTextureEntry, StartupTrace startupTrace,
+                MapChangeDispatcher mapChangeDispatcher, CameraPublisher cameraPublisher) {
       this.map = map;
       this.surfaceTextureEntry = surfaceTextureEntry;
+      this.startupTrace = startupTrace;
+      this.mapChangeDispatcher = mapChangeDispatcher;
+      this.cameraPublisher = cameraPublisher;
     }
 
     void release() {
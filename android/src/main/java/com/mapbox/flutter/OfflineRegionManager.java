@@ -0,0 +1,552 @@
+package com.mapbox.flutter;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.geometry.LatLngBounds;
+import com.mapbox.mapboxsdk.offline.OfflineManager;
+import com.mapbox.mapboxsdk.offline.OfflineRegion;
+import com.mapbox.mapboxsdk.offline.OfflineRegionError;
+import com.mapbox.mapboxsdk.offline.OfflineRegionStatus;
+import com.mapbox.mapboxsdk.offline.OfflineTilePyramidRegionDefinition;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Downloads offline regions through the SDK's {@link OfflineManager} with bounded concurrency.
+ * <p>
+ * Every region is stored as one SDK region per zoom level, so downloads can be ordered from
+ * low to high zoom across all regions: a region becomes usable at overview zooms first and
+ * detail tiles follow. At most {@link #setMaxActiveDownloads} zoom levels download at the same
+ * time. Status updates are merged per region and sent as "offlineProgress" events at most every
+ * {@link #PROGRESS_INTERVAL_MILLIS}. Regions created earlier are found again through their
+ * metadata and start paused.
+ * Main thread only.
+ * </p>
+ */
+class OfflineRegionManager {
+
+  static final String EVENT_PROGRESS = "offlineProgress";
+
+  // Offline events do not belong to a map
+  static final long NO_TEXTURE_ID = -1;
+
+  private static final long PROGRESS_INTERVAL_MILLIS = 250;
+  private static final int DEFAULT_MAX_ACTIVE_DOWNLOADS = 2;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String METADATA_REGION = "flutterRegion";
+  private static final String METADATA_NAME = "name";
+  private static final String METADATA_ZOOM = "zoom";
+  private static final String METADATA_CREATED = "created";
+
+  private final OfflineManager offlineManager;
+  private final MapEventStreamHandler events;
+  private final float pixelRatio;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Map<String, Region> regions = new LinkedHashMap<>();
+  private final Runnable flushProgress = new Runnable() {
+    @Override
+    public void run() {
+      flushScheduled = false;
+      for (Region region : regions.values()) {
+        if (region.dirty) {
+          region.dirty = false;
+          events.send(NO_TEXTURE_ID, EVENT_PROGRESS, region.toMap());
+        }
+      }
+    }
+  };
+
+  // Calls made before the stored regions were listed
+  private List<Runnable> pending = new ArrayList<>();
+  private int maxActiveDownloads = DEFAULT_MAX_ACTIVE_DOWNLOADS;
+  private int activeDownloads;
+  private boolean flushScheduled;
+
+  OfflineRegionManager(Context context, MapEventStreamHandler events) {
+    this.offlineManager = OfflineManager.getInstance(context);
+    this.events = events;
+    this.pixelRatio = context.getResources().getDisplayMetrics().density;
+    loadRegions();
+  }
+
+  /**
+   * Creates a region and starts downloading it. The result receives the region id.
+   */
+  void create(final String name, final String styleUrl, final LatLngBounds bounds, final int minZoom,
+              final int maxZoom, final Result result) {
+    if (minZoom > maxZoom) {
+      result.error("offline", "minZoom must not exceed maxZoom", null);
+      return;
+    }
+    whenLoaded(new Runnable() {
+      @Override
+      public void run() {
+        final Region region = new Region(UUID.randomUUID().toString(), name, System.currentTimeMillis(),
+            minZoom, maxZoom);
+        regions.put(region.id, region);
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+          final ZoomLevel level = new ZoomLevel(region, zoom);
+          region.levels.add(level);
+          OfflineTilePyramidRegionDefinition definition =
+              new OfflineTilePyramidRegionDefinition(styleUrl, bounds, zoom, zoom, pixelRatio);
+          offlineManager.createOfflineRegion(definition, region.metadataOf(zoom),
+              new OfflineManager.CreateOfflineRegionCallback() {
+                @Override
+                public void onCreate(OfflineRegion offlineRegion) {
+                  level.attach(offlineRegion);
+                  onLevelCreated(region, result);
+                }
+
+                @Override
+                public void onError(String error) {
+                  region.error = error;
+                  region.failed = true;
+                  onLevelCreated(region, result);
+                }
+              });
+        }
+      }
+    });
+  }
+
+  /**
+   * Replies with the state of every region.
+   */
+  void list(final Result result) {
+    whenLoaded(new Runnable() {
+      @Override
+      public void run() {
+        List<Map<String, Object>> reply = new ArrayList<>();
+        for (Region region : regions.values()) {
+          reply.add(region.toMap());
+        }
+        result.success(reply);
+      }
+    });
+  }
+
+  void pause(final String regionId, final Result result) {
+    whenLoaded(new Runnable() {
+      @Override
+      public void run() {
+        Region region = regions.get(regionId);
+        if (region != null) {
+          region.paused = true;
+          for (ZoomLevel level : region.levels) {
+            level.deactivate();
+          }
+          markDirty(region);
+          schedule();
+        }
+        result.success(region != null);
+      }
+    });
+  }
+
+  void resume(final String regionId, final Result result) {
+    whenLoaded(new Runnable() {
+      @Override
+      public void run() {
+        Region region = regions.get(regionId);
+        if (region != null) {
+          region.paused = false;
+          region.error = null;
+          markDirty(region);
+          schedule();
+        }
+        result.success(region != null);
+      }
+    });
+  }
+
+  /**
+   * Stops downloading a region and deletes its tiles. The result receives false for unknown
+   * regions.
+   */
+  void delete(final String regionId, final Result result) {
+    whenLoaded(new Runnable() {
+      @Override
+      public void run() {
+        final Region region = regions.remove(regionId);
+        if (region == null) {
+          result.success(false);
+          return;
+        }
+
+        for (ZoomLevel level : region.levels) {
+          level.deactivate();
+        }
+        schedule();
+
+        final int[] remaining = {region.levels.size()};
+        final String[] error = {null};
+        for (ZoomLevel level : region.levels) {
+          if (level.offlineRegion == null) {
+            remaining[0]--;
+            continue;
+          }
+          level.offlineRegion.setObserver(null);
+          level.offlineRegion.delete(new OfflineRegion.OfflineRegionDeleteCallback() {
+            @Override
+            public void onDelete() {
+              onLevelDeleted();
+            }
+
+            @Override
+            public void onError(String message) {
+              error[0] = message;
+              onLevelDeleted();
+            }
+
+            private void onLevelDeleted() {
+              if (--remaining[0] > 0) {
+                return;
+              }
+              if (error[0] != null) {
+                result.error("offline", error[0], null);
+              } else {
+                result.success(true);
+              }
+            }
+          });
+        }
+        if (remaining[0] == 0) {
+          result.success(true);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sets the number of zoom levels downloading at the same time, across all regions. Lowering
+   * the limit pauses the highest zoom levels, newest region first, the reverse of
+   * {@link #schedule()}.
+   */
+  void setMaxActiveDownloads(int maxActiveDownloads) {
+    this.maxActiveDownloads = Math.max(1, maxActiveDownloads);
+    while (activeDownloads > this.maxActiveDownloads) {
+      ZoomLevel last = null;
+      for (Region region : regions.values()) {
+        for (ZoomLevel level : region.levels) {
+          if (level.active && (last == null || level.zoom >= last.zoom)) {
+            last = level;
+          }
+        }
+      }
+      if (last == null) {
+        break;
+      }
+      last.deactivate();
+      markDirty(last.region);
+    }
+    schedule();
+  }
+
+  private void onLevelCreated(Region region, Result result) {
+    if (++region.createdLevels < region.levels.size()) {
+      return;
+    }
+
+    if (region.failed) {
+      // Do not keep a region with holes, remove the levels that were created
+      String error = region.error;
+      delete(region.id, new SilentResult());
+      result.error("offline", error, null);
+      return;
+    }
+    Map<String, Object> reply = new LinkedHashMap<>();
+    reply.put("regionId", region.id);
+    result.success(reply);
+    markDirty(region);
+    schedule();
+  }
+
+  /**
+   * Activates the pending zoom levels with the lowest zoom, oldest region first, until the
+   * concurrency limit is reached.
+   */
+  private void schedule() {
+    while (activeDownloads < maxActiveDownloads) {
+      ZoomLevel next = null;
+      for (Region region : regions.values()) {
+        if (region.paused) {
+          continue;
+        }
+        for (ZoomLevel level : region.levels) {
+          if (level.isPending() && (next == null || level.zoom < next.zoom)) {
+            next = level;
+          }
+        }
+      }
+      if (next == null) {
+        return;
+      }
+      next.activate();
+    }
+  }
+
+  private void markDirty(Region region) {
+    region.dirty = true;
+    if (!flushScheduled) {
+      flushScheduled = true;
+      mainHandler.postDelayed(flushProgress, PROGRESS_INTERVAL_MILLIS);
+    }
+  }
+
+  private void whenLoaded(Runnable runnable) {
+    if (pending != null) {
+      pending.add(runnable);
+    } else {
+      runnable.run();
+    }
+  }
+
+  private void loadRegions() {
+    offlineManager.listOfflineRegions(new OfflineManager.ListOfflineRegionsCallback() {
+      @Override
+      public void onList(OfflineRegion[] offlineRegions) {
+        List<Region> loaded = new ArrayList<>();
+        for (OfflineRegion offlineRegion : offlineRegions) {
+          JSONObject metadata = metadataOf(offlineRegion);
+          if (metadata == null) {
+            // Not created by this plugin
+            continue;
+          }
+
+          String id = metadata.optString(METADATA_REGION);
+          int zoom = metadata.optInt(METADATA_ZOOM);
+          Region region = regions.get(id);
+          if (region == null) {
+            region = new Region(id, metadata.optString(METADATA_NAME), metadata.optLong(METADATA_CREATED),
+                zoom, zoom);
+            region.paused = true;
+            regions.put(id, region);
+            loaded.add(region);
+          }
+          region.minZoom = Math.min(region.minZoom, zoom);
+          region.maxZoom = Math.max(region.maxZoom, zoom);
+          ZoomLevel level = new ZoomLevel(region, zoom);
+          level.attach(offlineRegion);
+          level.requestStatus();
+          region.levels.add(level);
+          region.createdLevels++;
+        }
+        onLoaded();
+      }
+
+      @Override
+      public void onError(String error) {
+        onLoaded();
+      }
+    });
+  }
+
+  private void onLoaded() {
+    List<Runnable> runnables = pending;
+    pending = null;
+    for (Runnable runnable : runnables) {
+      runnable.run();
+    }
+  }
+
+  private static JSONObject metadataOf(OfflineRegion offlineRegion) {
+    byte[] bytes = offlineRegion.getMetadata();
+    if (bytes == null) {
+      return null;
+    }
+    try {
+      JSONObject metadata = new JSONObject(new String(bytes, UTF_8));
+      return metadata.has(METADATA_REGION) ? metadata : null;
+    } catch (JSONException exception) {
+      return null;
+    }
+  }
+
+  private static final class Region {
+    final String id;
+    final String name;
+    final long created;
+    final List<ZoomLevel> levels = new ArrayList<>();
+    int minZoom;
+    int maxZoom;
+    int createdLevels;
+    boolean paused;
+    boolean failed;
+    boolean dirty;
+    String error;
+
+    Region(String id, String name, long created, int minZoom, int maxZoom) {
+      this.id = id;
+      this.name = name;
+      this.created = created;
+      this.minZoom = minZoom;
+      this.maxZoom = maxZoom;
+    }
+
+    byte[] metadataOf(int zoom) {
+      try {
+        JSONObject metadata = new JSONObject();
+        metadata.put(METADATA_REGION, id);
+        metadata.put(METADATA_NAME, name);
+        metadata.put(METADATA_ZOOM, zoom);
+        metadata.put(METADATA_CREATED, created);
+        return metadata.toString().getBytes(UTF_8);
+      } catch (JSONException exception) {
+        throw new IllegalStateException(exception);
+      }
+    }
+
+    boolean isComplete() {
+      for (ZoomLevel level : levels) {
+        if (!level.complete) {
+          return false;
+        }
+      }
+      return createdLevels == levels.size();
+    }
+
+    Map<String, Object> toMap() {
+      long completedResources = 0;
+      long requiredResources = 0;
+      long completedBytes = 0;
+      long completedTiles = 0;
+      boolean precise = true;
+      int activeZoom = -1;
+      for (ZoomLevel level : levels) {
+        if (level.status != null) {
+          completedResources += level.status.getCompletedResourceCount();
+          requiredResources += level.status.getRequiredResourceCount();
+          completedBytes += level.status.getCompletedResourceSize();
+          completedTiles += level.status.getCompletedTileCount();
+          precise &= level.status.isRequiredResourceCountPrecise();
+        } else {
+          precise = false;
+        }
+        if (level.active && (activeZoom == -1 || level.zoom < activeZoom)) {
+          activeZoom = level.zoom;
+        }
+      }
+
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("regionId", id);
+      map.put("name", name);
+      map.put("minZoom", minZoom);
+      map.put("maxZoom", maxZoom);
+      map.put("state", isComplete() ? "complete" : paused ? "paused" : "downloading");
+      map.put("completedResources", completedResources);
+      map.put("requiredResources", requiredResources);
+      map.put("requiredResourcesPrecise", precise);
+      map.put("completedBytes", completedBytes);
+      map.put("completedTiles", completedTiles);
+      if (activeZoom != -1) {
+        map.put("activeZoom", activeZoom);
+      }
+      if (error != null) {
+        map.put("error", error);
+      }
+      return map;
+    }
+  }
+
+  /**
+   * The SDK region holding one zoom level of a region.
+   */
+  private final class ZoomLevel implements OfflineRegion.OfflineRegionObserver {
+    final Region region;
+    final int zoom;
+    OfflineRegion offlineRegion;
+    OfflineRegionStatus status;
+    boolean active;
+    boolean complete;
+    // Stopped for good, such as when the tile count limit was hit
+    boolean stopped;
+
+    ZoomLevel(Region region, int zoom) {
+      this.region = region;
+      this.zoom = zoom;
+    }
+
+    void attach(OfflineRegion offlineRegion) {
+      this.offlineRegion = offlineRegion;
+      offlineRegion.setObserver(this);
+    }
+
+    void requestStatus() {
+      offlineRegion.getStatus(new OfflineRegion.OfflineRegionStatusCallback() {
+        @Override
+        public void onStatus(OfflineRegionStatus status) {
+          onStatusChanged(status);
+        }
+
+        @Override
+        public void onError(String error) {
+          // Filled in by the observer once the level downloads
+        }
+      });
+    }
+
+    boolean isPending() {
+      return offlineRegion != null && !active && !complete && !stopped;
+    }
+
+    void activate() {
+      active = true;
+      activeDownloads++;
+      offlineRegion.setDownloadState(OfflineRegion.STATE_ACTIVE);
+      markDirty(region);
+    }
+
+    void deactivate() {
+      if (!active) {
+        return;
+      }
+      active = false;
+      activeDownloads--;
+      offlineRegion.setDownloadState(OfflineRegion.STATE_INACTIVE);
+    }
+
+    @Override
+    public void onStatusChanged(OfflineRegionStatus status) {
+      if (!regions.containsKey(region.id)) {
+        return;
+      }
+
+      this.status = status;
+      if (status.isComplete() && !complete) {
+        complete = true;
+        deactivate();
+        schedule();
+      }
+      markDirty(region);
+    }
+
+    @Override
+    public void onError(OfflineRegionError error) {
+      // The SDK keeps retrying, report the error along with the progress
+      region.error = error.getReason() + ": " + error.getMessage();
+      markDirty(region);
+    }
+
+    @Override
+    public void mapboxTileCountLimitExceeded(long limit) {
+      region.error = "Mapbox tile count limit of " + limit + " exceeded";
+      stopped = true;
+      deactivate();
+      markDirty(region);
+      schedule();
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package com.mapbox.flutter;
+
+/**
+ * Features described by packed primitive arrays, turned into a GeoJSON FeatureCollection.
+ * <p>
+ * Coordinates are packed [lat, lng, ...] pairs. Points use one pair per feature; line strings
+ * and polygons take the pairs between consecutive entries of the feature offsets, which hold
+ * pair indices and one extra entry marking the end. Polygons have a single outer ring that is
+ * closed if needed. Optional ids become the feature ids.
+ * </p>
+ */
+class PackedGeoJson {
+
+  static final String POINT = "Point";
+  static final String LINE_STRING = "LineString";
+  static final String POLYGON = "Polygon";
+
+  final String geometryType;
+  final double[] coordinates;
+  final int[] featureOffsets;
+  final long[] ids;
+
+  /**
+   * @throws IllegalArgumentException when the arrays do not describe features of the geometry
+   *                                  type, so later reads stay within bounds
+   */
+  PackedGeoJson(String geometryType, double[] coordinates, int[] featureOffsets, long[] ids) {
+    if (!POINT.equals(geometryType) && !LINE_STRING.equals(geometryType) && !POLYGON.equals(geometryType)) {
+      throw new IllegalArgumentException("Unsupported geometry type: " + geometryType);
+    }
+    if (coordinates == null || coordinates.length % 2 != 0) {
+      throw new IllegalArgumentException("Coordinates must be [lat, lng] pairs");
+    }
+    if (!isFinite(coordinates)) {
+      throw new IllegalArgumentException("Coordinates must be finite");
+    }
+    if (POINT.equals(geometryType) && featureOffsets != null) {
+      throw new IllegalArgumentException("Point features take one coordinate pair each, without feature offsets");
+    }
+    if (!POINT.equals(geometryType)) {
+      checkFeatureOffsets(geometryType, featureOffsets, coordinates.length / 2);
+    }
+    this.geometryType = geometryType;
+    this.coordinates = coordinates;
+    this.featureOffsets = featureOffsets;
+    this.ids = ids;
+    if (ids != null && ids.length != getFeatureCount()) {
+      throw new IllegalArgumentException("Expected " + getFeatureCount() + " ids, got " + ids.length);
+    }
+  }
+
+  /**
+   * @return false when a coordinate is NaN or infinite, which GeoJSON can not hold
+   */
+  static boolean isFinite(double[] coordinates) {
+    for (double coordinate : coordinates) {
+      if (Double.isNaN(coordinate) || Double.isInfinite(coordinate)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void checkFeatureOffsets(String geometryType, int[] featureOffsets, int positionCount) {
+    if (featureOffsets == null || featureOffsets.length == 0) {
+      throw new IllegalArgumentException(geometryType + " features need feature offsets");
+    }
+    if (featureOffsets[0] < 0) {
+      throw new IllegalArgumentException("Feature offsets must not be negative");
+    }
+    for (int i = 1; i < featureOffsets.length; i++) {
+      if (featureOffsets[i] < featureOffsets[i - 1]) {
+        throw new IllegalArgumentException("Feature offsets must not decrease, offset " + i + " does");
+      }
+    }
+    if (featureOffsets[featureOffsets.length - 1] > positionCount) {
+      throw new IllegalArgumentException("Feature offsets end past the " + positionCount + " coordinate pairs");
+    }
+  }
+
+  /**
+   * @return the same features with new coordinates, which must have the same layout
+   */
+  PackedGeoJson withCoordinates(double[] coordinates) {
+    if (coordinates == null || coordinates.length != this.coordinates.length) {
+      throw new IllegalArgumentException("Expected " + this.coordinates.length + " coordinates, got "
+          + (coordinates != null ? coordinates.length : 0));
+    }
+    return new PackedGeoJson(geometryType, coordinates, featureOffsets, ids);
+  }
+
+  int getFeatureCount() {
+    return featureOffsets != null ? featureOffsets.length - 1 : coordinates.length / 2;
+  }
+
+  String toGeoJson() {
+    int featureCount = getFeatureCount();
+    // Roughly 40 characters per position plus the feature boilerplate
+    StringBuilder json = new StringBuilder(coordinates.length * 20 + featureCount * 64);
+    json.append("{\"type\":\"FeatureCollection\",\"features\":[");
+    for (int feature = 0; feature < featureCount; feature++) {
+      if (feature > 0) {
+        json.append(',');
+      }
+      json.append("{\"type\":\"Feature\",");
+      if (ids != null) {
+        json.append("\"id\":").append(ids[feature]).append(',');
+      }
+      json.append("\"properties\":{},\"geometry\":{\"type\":\"").append(geometryType)
+          .append("\",\"coordinates\":");
+
+      if (featureOffsets == null) {
+        appendPosition(json, feature);
+      } else {
+        int start = featureOffsets[feature];
+        int end = featureOffsets[feature + 1];
+        boolean polygon = POLYGON.equals(geometryType);
+        json.append(polygon ? "[[" : "[");
+        for (int i = start; i < end; i++) {
+          if (i > start) {
+            json.append(',');
+          }
+          appendPosition(json, i);
+        }
+        if (polygon && end - start > 0 && !isClosed(start, end)) {
+          json.append(',');
+          appendPosition(json, start);
+        }
+        json.append(polygon ? "]]" : "]");
+      }
+      json.append("}}");
+    }
+    json.append("]}");
+    return json.toString();
+  }
+
+  private void appendPosition(StringBuilder json, int index) {
+    // GeoJSON positions are [lng, lat]
+    json.append('[').append(coordinates[index * 2 + 1]).append(',').append(coordinates[index * 2]).append(']');
+  }
+
+  private boolean isClosed(int start, int end) {
+    return coordinates[start * 2] == coordinates[(end - 1) * 2]
+        && coordinates[start * 2 + 1] == coordinates[(end - 1) * 2 + 1];
+  }
+}
@@ -0,0 +1,417 @@
+package com.mapbox.flutter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical grid clustering of points, queried per zoom level and bounds.
+ * <p>
+ * Points are bucketed into square cells of the cluster radius at every zoom level. A cell at
+ * zoom z is made of 2x2 cells at zoom z + 1, so cells are keyed by the Morton code of their
+ * Web Mercator cell coordinates: sorting by key groups every cell's points together and the
+ * parent of a key is the key shifted right by two bits. The finest level is built by sorting
+ * chunks of points in parallel and merging them; coarser levels follow in one linear pass each.
+ * Queries walk the implicit quadtree of a level down to the cells within the bounds, touching a
+ * number of cells proportional to the visible area. Above the maximum zoom, queries return the
+ * points of the finest cells one by one instead of clustering them.
+ * </p>
+ * <p>
+ * Immutable once built and safe to query from any thread.
+ * </p>
+ */
+final class PointClusterIndex {
+
+  private static final int MAX_LEVEL_BITS = 23;
+  // Bits of a chunk local point index packed below the cell key while sorting
+  private static final int INDEX_BITS = 63 - 2 * MAX_LEVEL_BITS;
+  private static final int MAX_CHUNK_SIZE = 1 << INDEX_BITS;
+  private static final double MAX_LATITUDE = 85.05112878;
+
+  private static final ExecutorService workers = Executors.newFixedThreadPool(
+      Math.max(1, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          return new Thread(runnable, "MapClusterBuilder-" + count.incrementAndGet());
+        }
+      });
+
+  private final long[] ids;
+  // Packed Web Mercator [x, y, ...] of every point, for unclustered queries
+  private final double[] mercator;
+  private final Level[] levels;
+  // Cell bits per axis added to the zoom level, 512 px tiles divided into cells of the radius
+  private final int cellShift;
+
+  private PointClusterIndex(long[] ids, double[] mercator, Level[] levels, int cellShift) {
+    this.ids = ids;
+    this.mercator = mercator;
+    this.levels = levels;
+    this.cellShift = cellShift;
+  }
+
+  int getMaxZoom() {
+    return levels.length - 1;
+  }
+
+  /**
+   * Builds the index, using the worker pool for the finest level. Blocks until done, so must
+   * not be called from the worker pool itself.
+   *
+   * @param latLngs  packed [lat, lng, ...] pairs
+   * @param ids      one id per point, reported for unclustered points
+   * @param radius   the cluster radius in pixels, rounded down to a power of two
+   * @param maxZoom  the last zoom level that clusters, clamped to what the key bits allow
+   */
+  static PointClusterIndex build(final double[] latLngs, long[] ids, int radius, int maxZoom)
+      throws InterruptedException {
+    final int count = latLngs.length / 2;
+    if (ids.length != count) {
+      throw new IllegalArgumentException("Expected " + count + " ids, got " + ids.length);
+    }
+
+    int cellShift = Math.max(0, 9 - (31 - Integer.numberOfLeadingZeros(Math.max(1, radius))));
+    maxZoom = Math.max(0, Math.min(maxZoom, MAX_LEVEL_BITS - cellShift));
+    final int bits = maxZoom + cellShift;
+    final double[] mercator = new double[count * 2];
+
+    // Key and sort chunks in parallel
+    int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+    int chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, (count + workerCount - 1) / workerCount));
+    List<Future<long[]>> futures = new ArrayList<>();
+    for (int start = 0; start < count; start += chunkSize) {
+      final int chunkStart = start;
+      final int chunkEnd = Math.min(count, start + chunkSize);
+      futures.add(workers.submit(new Callable<long[]>() {
+        @Override
+        public long[] call() {
+          return sortChunk(latLngs, mercator, chunkStart, chunkEnd, bits);
+        }
+      }));
+    }
+
+    long[][] chunks = new long[futures.size()][];
+    try {
+      for (int i = 0; i < chunks.length; i++) {
+        chunks[i] = futures.get(i).get();
+      }
+    } catch (ExecutionException exception) {
+      throw new IllegalStateException(exception.getCause());
+    } finally {
+      for (Future<long[]> future : futures) {
+        future.cancel(true);
+      }
+    }
+
+    Level[] levels = new Level[maxZoom + 1];
+    levels[maxZoom] = mergeChunks(chunks, chunkSize, mercator, count);
+    for (int zoom = maxZoom - 1; zoom >= 0; zoom--) {
+      levels[zoom] = levels[zoom + 1].coarsen();
+    }
+    return new PointClusterIndex(ids, mercator, levels, cellShift);
+  }
+
+  /**
+   * Collects the clusters and points of a zoom level within the bounds, widened by one cell so
+   * clusters do not pop in at the edges. Above {@link #getMaxZoom()} every point is returned on
+   * its own. Bounds crossing the antimeridian have west > east.
+   */
+  Clusters query(double zoom, double south, double west, double north, double east) {
+    int level = Math.max(0, Math.min(levels.length - 1, (int) Math.floor(zoom)));
+    boolean unclustered = Math.floor(zoom) > getMaxZoom();
+    int bits = level + cellShift;
+    int maxCell = (1 << bits) - 1;
+
+    int y0 = Math.max(0, cellOf(mercatorY(north), bits) - 1);
+    int y1 = Math.min(maxCell, cellOf(mercatorY(south), bits) + 1);
+    int x0 = cellOf(mercatorX(west), bits) - 1;
+    int x1 = cellOf(mercatorX(east), bits) + 1;
+
+    Clusters clusters = new Clusters(ids, unclustered ? mercator : null);
+    Level cells = levels[level];
+    if (x1 - x0 > maxCell || (west > east && x0 <= x1)) {
+      // The widened bounds wrap around the world
+      cells.collect(0, maxCell, y0, y1, bits, clusters);
+    } else if (west > east) {
+      cells.collect(Math.max(0, x0), maxCell, y0, y1, bits, clusters);
+      cells.collect(0, Math.min(maxCell, x1), y0, y1, bits, clusters);
+    } else {
+      cells.collect(Math.max(0, x0), Math.min(maxCell, x1), y0, y1, bits, clusters);
+    }
+    return clusters;
+  }
+
+  private static long[] sortChunk(double[] latLngs, double[] mercator, int start, int end, int bits) {
+    long[] keys = new long[end - start];
+    for (int i = start; i < end; i++) {
+      double x = mercatorX(latLngs[i * 2 + 1]);
+      double y = mercatorY(latLngs[i * 2]);
+      mercator[i * 2] = x;
+      mercator[i * 2 + 1] = y;
+      long key = interleave(cellOf(x, bits), cellOf(y, bits));
+      keys[i - start] = (key << INDEX_BITS) | (i - start);
+    }
+    Arrays.sort(keys);
+    return keys;
+  }
+
+  /**
+   * Merges the sorted chunks into the cells of the finest level, which also lists the points of
+   * every cell.
+   */
+  private static Level mergeChunks(long[][] chunks, int chunkSize, double[] mercator, int count) {
+    Level level = new Level(count);
+    level.members = new int[count];
+    level.memberStarts = new int[count + 1];
+    int[] heads = new int[chunks.length];
+    int members = 0;
+    long indexMask = (1L << INDEX_BITS) - 1;
+    while (true) {
+      int next = -1;
+      for (int chunk = 0; chunk < chunks.length; chunk++) {
+        if (heads[chunk] < chunks[chunk].length
+            && (next == -1 || chunks[chunk][heads[chunk]] < chunks[next][heads[next]])) {
+          next = chunk;
+        }
+      }
+      if (next == -1) {
+        break;
+      }
+
+      long entry = chunks[next][heads[next]++];
+      int point = next * chunkSize + (int) (entry & indexMask);
+      level.add(entry >>> INDEX_BITS, mercator[point * 2], mercator[point * 2 + 1], 1, point);
+      level.members[members] = point;
+      level.memberStarts[level.size] = ++members;
+    }
+    return level.trim();
+  }
+
+  private static int cellOf(double mercator, int bits) {
+    int cells = 1 << bits;
+    return Math.max(0, Math.min(cells - 1, (int) (mercator * cells)));
+  }
+
+  private static double mercatorX(double lng) {
+    return (lng + 180) / 360;
+  }
+
+  private static double mercatorY(double lat) {
+    double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat));
+    double sin = Math.sin(Math.toRadians(clamped));
+    return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+  }
+
+  private static double latitudeOf(double mercatorY) {
+    return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * mercatorY))));
+  }
+
+  /**
+   * @return the Morton code of the cell, x in the even bits and y in the odd bits
+   */
+  private static long interleave(int x, int y) {
+    return spread(x) | (spread(y) << 1);
+  }
+
+  private static long spread(int value) {
+    long v = value & 0xFFFFFFFFL;
+    v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+    v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+    v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+    v = (v | (v << 2)) & 0x3333333333333333L;
+    v = (v | (v << 1)) & 0x5555555555555555L;
+    return v;
+  }
+
+  /**
+   * The occupied cells of one zoom level, sorted by key.
+   */
+  private static final class Level {
+    long[] keys;
+    double[] sumX;
+    double[] sumY;
+    int[] counts;
+    // A member point of every cell
+    int[] points;
+    // Finest level only: the points of cell i are members[memberStarts[i], memberStarts[i + 1])
+    int[] members;
+    int[] memberStarts;
+    int size;
+
+    Level(int capacity) {
+      keys = new long[capacity];
+      sumX = new double[capacity];
+      sumY = new double[capacity];
+      counts = new int[capacity];
+      points = new int[capacity];
+    }
+
+    /**
+     * Adds to the last cell when the key matches, keys must arrive in order.
+     */
+    void add(long key, double x, double y, int count, int point) {
+      if (size > 0 && keys[size - 1] == key) {
+        sumX[size - 1] += x;
+        sumY[size - 1] += y;
+        counts[size - 1] += count;
+        return;
+      }
+      keys[size] = key;
+      sumX[size] = x;
+      sumY[size] = y;
+      counts[size] = count;
+      points[size] = point;
+      size++;
+    }
+
+    Level trim() {
+      keys = Arrays.copyOf(keys, size);
+      sumX = Arrays.copyOf(sumX, size);
+      sumY = Arrays.copyOf(sumY, size);
+      counts = Arrays.copyOf(counts, size);
+      points = Arrays.copyOf(points, size);
+      if (memberStarts != null) {
+        memberStarts = Arrays.copyOf(memberStarts, size + 1);
+      }
+      return this;
+    }
+
+    Level coarsen() {
+      Level parent = new Level(size);
+      for (int i = 0; i < size; i++) {
+        parent.add(keys[i] >>> 2, sumX[i], sumY[i], counts[i], points[i]);
+      }
+      return parent.trim();
+    }
+
+    void collect(int x0, int x1, int y0, int y1, int bits, Clusters clusters) {
+      if (x0 > x1 || y0 > y1) {
+        return;
+      }
+      collect(0, 0, bits, 0, size, x0, x1, y0, y1, clusters);
+    }
+
+    /**
+     * Visits the quadtree node at (nodeX, nodeY) spanning 2^shift cells per side, whose cells
+     * occupy [from, to) of the sorted keys.
+     */
+    private void collect(int nodeX, int nodeY, int shift, int from, int to,
+                         int x0, int x1, int y0, int y1, Clusters clusters) {
+      if (from >= to) {
+        return;
+      }
+
+      long minX = (long) nodeX << shift;
+      long minY = (long) nodeY << shift;
+      long maxX = minX + (1L << shift) - 1;
+      long maxY = minY + (1L << shift) - 1;
+      if (maxX < x0 || minX > x1 || maxY < y0 || minY > y1) {
+        return;
+      }
+      if (shift == 0 || (minX >= x0 && maxX <= x1 && minY >= y0 && maxY <= y1)) {
+        for (int i = from; i < to; i++) {
+          if (clusters.mercator != null) {
+            for (int member = memberStarts[i]; member < memberStarts[i + 1]; member++) {
+              clusters.addPoint(members[member]);
+            }
+          } else {
+            clusters.add(sumX[i] / counts[i], sumY[i] / counts[i], counts[i], points[i]);
+          }
+        }
+        return;
+      }
+
+      int childShift = shift - 1;
+      long childPrefix = interleave(nodeX, nodeY) << 2;
+      int start = from;
+      for (int child = 0; child < 4; child++) {
+        int end = child == 3 ? to : lowerBound((childPrefix + child + 1) << (2 * childShift), start, to);
+        collect(nodeX * 2 + (child & 1), nodeY * 2 + (child >> 1), childShift, start, end,
+            x0, x1, y0, y1, clusters);
+        start = end;
+      }
+    }
+
+    private int lowerBound(long key, int from, int to) {
+      int low = from;
+      int high = to;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (keys[mid] < key) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * The result of a query: clusters of several points and single points, packed.
+   */
+  static final class Clusters {
+    private final long[] pointIds;
+    // The point positions when every point is added on its own, null when clustering
+    private final double[] mercator;
+    double[] latLngs = new double[64];
+    int[] counts = new int[32];
+    long[] ids = new long[32];
+    int size;
+
+    private Clusters(long[] pointIds, double[] mercator) {
+      this.pointIds = pointIds;
+      this.mercator = mercator;
+    }
+
+    private void addPoint(int point) {
+      add(mercator[point * 2], mercator[point * 2 + 1], 1, point);
+    }
+
+    private void add(double x, double y, int count, int point) {
+      if (size == counts.length) {
+        latLngs = Arrays.copyOf(latLngs, size * 4);
+        counts = Arrays.copyOf(counts, size * 2);
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      latLngs[size * 2] = latitudeOf(y);
+      latLngs[size * 2 + 1] = x * 360 - 180;
+      counts[size] = count;
+      ids[size] = pointIds[point];
+      size++;
+    }
+
+    /**
+     * @return the clusters as GeoJSON, clusters carry the cluster and point_count properties
+     * used by clustered Mapbox sources
+     */
+    String toGeoJson() {
+      StringBuilder json = new StringBuilder(size * 128 + 64);
+      json.append("{\"type\":\"FeatureCollection\",\"features\":[");
+      for (int i = 0; i < size; i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        json.append("{\"type\":\"Feature\",");
+        if (counts[i] == 1) {
+          json.append("\"id\":").append(ids[i]).append(",\"properties\":{}");
+        } else {
+          json.append("\"properties\":{\"cluster\":true,\"point_count\":").append(counts[i]).append('}');
+        }
+        json.append(",\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+            .append(latLngs[i * 2 + 1]).append(',').append(latLngs[i * 2]).append("]}}");
+      }
+      json.append("]}");
+      return json.toString();
+    }
+  }
+}
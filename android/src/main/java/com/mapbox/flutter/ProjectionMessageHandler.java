@@ -0,0 +1,102 @@
+package com.mapbox.flutter;
+
+import android.graphics.PointF;
+
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MercatorProjection;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import io.flutter.plugin.common.BasicMessageChannel;
+
+/**
+ * Handles projection calls sent over a binary message channel.
+ * <p>
+ * A request is laid out as [int32 opcode][int64 textureId][float64 arguments...] and the reply
+ * contains the resulting float64 values, or is empty when the map is unknown. Arguments are
+ * decoded straight into primitives and replies are written into a reused direct buffer, which
+ * avoids the boxing and map allocations of the standard method codec.
+ * </p>
+ */
+class ProjectionMessageHandler implements BasicMessageChannel.MessageHandler<ByteBuffer> {
+
+  static final String CHANNEL = "com.mapbox/flutter_mapbox_projection";
+
+  private static final int OP_PIXEL_FOR_LATLNG = 0;
+  private static final int OP_LATLNG_FOR_PIXEL = 1;
+  private static final int OP_PROJECTED_METERS_FOR_LATLNG = 2;
+  private static final int OP_LATLNG_FOR_PROJECTED_METERS = 3;
+  private static final int OP_METERS_PER_PIXEL_AT_LATITUDE = 4;
+
+  private static final int MAX_REPLY_VALUES = 2;
+
+  private final Map<Long, MapboxPlugin.MapInstance> maps;
+  private final ByteBuffer replyBuffer = ByteBuffer.allocateDirect(MAX_REPLY_VALUES * 8);
+  private final LatLng latLng = new LatLng();
+  private final PointF pointF = new PointF();
+
+  ProjectionMessageHandler(Map<Long, MapboxPlugin.MapInstance> maps) {
+    this.maps = maps;
+  }
+
+  @Override
+  public void onMessage(ByteBuffer message, BasicMessageChannel.Reply<ByteBuffer> reply) {
+    int opcode = message.getInt();
+    long textureId = message.getLong();
+    MapboxPlugin.MapInstance mapInstance = maps.get(textureId);
+    if (mapInstance == null) {
+      reply.reply(null);
+      return;
+    }
+
+    FlutterMap map = mapInstance.map;
+    replyBuffer.clear();
+    switch (opcode) {
+      case OP_PIXEL_FOR_LATLNG: {
+        latLng.setLatitude(message.getDouble());
+        latLng.setLongitude(message.getDouble());
+        PointF pixel = map.getScreenPoint(latLng);
+        replyBuffer.putDouble(pixel.x);
+        replyBuffer.putDouble(pixel.y);
+        break;
+      }
+
+      case OP_LATLNG_FOR_PIXEL: {
+        pointF.set((float) message.getDouble(), (float) message.getDouble());
+        LatLng result = map.getLatLng(pointF);
+        replyBuffer.putDouble(result.getLatitude());
+        replyBuffer.putDouble(result.getLongitude());
+        break;
+      }
+
+      case OP_PROJECTED_METERS_FOR_LATLNG: {
+        double latitude = message.getDouble();
+        double longitude = message.getDouble();
+        replyBuffer.putDouble(MercatorProjection.northing(latitude));
+        replyBuffer.putDouble(MercatorProjection.easting(longitude));
+        break;
+      }
+
+      case OP_LATLNG_FOR_PROJECTED_METERS: {
+        double northing = message.getDouble();
+        double easting = message.getDouble();
+        replyBuffer.putDouble(MercatorProjection.latitude(northing));
+        replyBuffer.putDouble(MercatorProjection.longitude(easting));
+        break;
+      }
+
+      case OP_METERS_PER_PIXEL_AT_LATITUDE:
+        replyBuffer.putDouble(map.getMetersPerPixelAtLatitude(message.getDouble()));
+        break;
+
+      default:
+        throw new IllegalArgumentException("Unknown projection opcode: " + opcode);
+    }
+
+    // The engine copies [0, position) of the reply synchronously, so the buffer is
+    // left unflipped and can be reused for the next message.
+    reply.reply(replyBuffer);
+  }
+}
@@ -0,0 +1,52 @@
+package com.mapbox.flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.RenderStats;
+
+import java.util.Map;
+
+/**
+ * Periodically streams the render stats of every map that has them enabled.
+ * Runs on the main thread and stops by itself once no map records stats.
+ */
+class RenderStatsReporter implements Runnable {
+
+  private static final long INTERVAL_MS = 1000;
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+  private final Map<Long, MapboxPlugin.MapInstance> maps;
+  private final MapEventStreamHandler events;
+  private boolean running;
+
+  RenderStatsReporter(Map<Long, MapboxPlugin.MapInstance> maps, MapEventStreamHandler events) {
+    this.maps = maps;
+    this.events = events;
+  }
+
+  void start() {
+    if (!running) {
+      running = true;
+      handler.postDelayed(this, INTERVAL_MS);
+    }
+  }
+
+  @Override
+  public void run() {
+    boolean recording = false;
+    for (Map.Entry<Long, MapboxPlugin.MapInstance> entry : maps.entrySet()) {
+      RenderStats stats = entry.getValue().map.getRenderStats();
+      if (stats != null) {
+        recording = true;
+        events.send(entry.getKey(), "renderStats", stats.toMap());
+      }
+    }
+
+    if (recording) {
+      handler.postDelayed(this, INTERVAL_MS);
+    } else {
+      running = false;
+    }
+  }
+}
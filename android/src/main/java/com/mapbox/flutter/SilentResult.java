@@ -0,0 +1,21 @@
+package com.mapbox.flutter;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * A result for internal calls nobody waits for.
+ */
+class SilentResult implements Result {
+
+  @Override
+  public void success(Object result) {
+  }
+
+  @Override
+  public void error(String errorCode, String errorMessage, Object errorDetails) {
+  }
+
+  @Override
+  public void notImplemented() {
+  }
+}
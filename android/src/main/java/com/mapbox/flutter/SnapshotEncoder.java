@@ -0,0 +1,179 @@
+package com.mapbox.flutter;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.PixelBufferPool;
+import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.SnapshotCallback;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Turns the pixels read back on the render thread into the snapshot reply: flips them upright,
+ * optionally downscales them and encodes them as PNG or raw RGBA. The work runs on a background
+ * thread, the reply is sent on the main thread.
+ */
+class SnapshotEncoder implements SnapshotCallback {
+
+  static final String FORMAT_PNG = "png";
+  static final String FORMAT_RGBA = "rgba";
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "MapSnapshotEncoder");
+    }
+  });
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Result result;
+  private final String format;
+  private final double scale;
+  private final Map<String, Object> extras;
+
+  /**
+   * @return whether format is {@link #FORMAT_PNG} or {@link #FORMAT_RGBA}
+   */
+  static boolean isSupportedFormat(String format) {
+    return FORMAT_PNG.equals(format) || FORMAT_RGBA.equals(format);
+  }
+
+  /**
+   * @param result receives a map with width, height, format and bytes
+   * @param format {@link #FORMAT_PNG} or {@link #FORMAT_RGBA}
+   * @param scale  the downscale factor in (0, 1]
+   */
+  SnapshotEncoder(Result result, String format, double scale) {
+    this(result, format, scale, null);
+  }
+
+  /**
+   * @param extras additional values for the reply, may be null
+   */
+  SnapshotEncoder(Result result, String format, double scale, Map<String, Object> extras) {
+    this.result = result;
+    this.format = format;
+    this.scale = Math.max(0.01, Math.min(1.0, scale));
+    this.extras = extras;
+  }
+
+  @Override
+  public void onSnapshot(final ByteBuffer pixels, final int width, final int height) {
+    if (pixels == null) {
+      reply(null);
+      return;
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          reply(encode(pixels, width, height));
+        } catch (RuntimeException exception) {
+          fail(exception);
+        }
+      }
+    });
+  }
+
+  private Map<String, Object> encode(ByteBuffer pixels, int width, int height) {
+    flipVertically(pixels, width, height);
+
+    int targetWidth = Math.max(1, (int) Math.round(width * scale));
+    int targetHeight = Math.max(1, (int) Math.round(height * scale));
+    byte[] bytes;
+    if (FORMAT_RGBA.equals(format) && targetWidth == width && targetHeight == height) {
+      bytes = new byte[width * height * 4];
+      pixels.get(bytes);
+      PixelBufferPool.release(pixels);
+    } else {
+      Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+      bitmap.copyPixelsFromBuffer(pixels);
+      PixelBufferPool.release(pixels);
+
+      if (targetWidth != width || targetHeight != height) {
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth, targetHeight, true);
+        bitmap.recycle();
+        bitmap = scaled;
+      }
+
+      bytes = FORMAT_RGBA.equals(format) ? rgbaOf(bitmap) : pngOf(bitmap);
+      bitmap.recycle();
+    }
+
+    Map<String, Object> reply = new HashMap<>();
+    if (extras != null) {
+      reply.putAll(extras);
+    }
+    reply.put("width", targetWidth);
+    reply.put("height", targetHeight);
+    reply.put("format", format);
+    reply.put("bytes", bytes);
+    return reply;
+  }
+
+  /**
+   * glReadPixels returns the bottom row first, swap the rows in place.
+   */
+  private static void flipVertically(ByteBuffer pixels, int width, int height) {
+    int stride = width * 4;
+    byte[] top = new byte[stride];
+    byte[] bottom = new byte[stride];
+    for (int row = 0; row < height / 2; row++) {
+      int topOffset = row * stride;
+      int bottomOffset = (height - 1 - row) * stride;
+      pixels.position(topOffset);
+      pixels.get(top);
+      pixels.position(bottomOffset);
+      pixels.get(bottom);
+      pixels.position(bottomOffset);
+      pixels.put(top);
+      pixels.position(topOffset);
+      pixels.put(bottom);
+    }
+    pixels.position(0);
+  }
+
+  private static byte[] rgbaOf(Bitmap bitmap) {
+    ByteBuffer buffer = PixelBufferPool.acquire(bitmap.getByteCount());
+    bitmap.copyPixelsToBuffer(buffer);
+    buffer.flip();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    PixelBufferPool.release(buffer);
+    return bytes;
+  }
+
+  private static byte[] pngOf(Bitmap bitmap) {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+    return stream.toByteArray();
+  }
+
+  private void reply(final Map<String, Object> reply) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        result.success(reply);
+      }
+    });
+  }
+
+  private void fail(final RuntimeException exception) {
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        result.error("snapshot", exception.getMessage(), null);
+      }
+    });
+  }
+}
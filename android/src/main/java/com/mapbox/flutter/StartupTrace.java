@@ -0,0 +1,119 @@
+package com.mapbox.flutter;
+
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MapView;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records when each startup stage of a map was reached, relative to the create call, and
+ * sends a "firstFrame" event with those timings once the map rendered its first frame.
+ * <p>
+ * Stages are marked once, later marks of the same stage are ignored. A map that could not be
+ * built sends the event with an "error" instead. Main thread only.
+ * </p>
+ */
+class StartupTrace implements MapView.OnMapChangedListener {
+
+  static final String EVENT_FIRST_FRAME = "firstFrame";
+
+  static final String STAGE_CONSTRUCTED = "constructed";
+  static final String STAGE_CONTEXT_CREATED = "contextCreated";
+  static final String STAGE_STYLE_LOADED = "styleLoaded";
+  static final String STAGE_FIRST_FRAME = "firstFrame";
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+
+  private final long textureId;
+  private final MapEventStreamHandler events;
+  private final long createdNanos = System.nanoTime();
+  private final Map<String, Long> stages = new LinkedHashMap<>();
+  private FlutterMap map;
+  private boolean reused;
+
+  StartupTrace(long textureId, MapEventStreamHandler events) {
+    this.textureId = textureId;
+    this.events = events;
+  }
+
+  /**
+   * Starts following the given map, which was just built or taken from the pool.
+   */
+  void attach(FlutterMap map, boolean reused) {
+    this.map = map;
+    this.reused = reused;
+    mark(STAGE_CONSTRUCTED, System.nanoTime());
+    map.addOnMapChangedListener(this);
+  }
+
+  /**
+   * Stops following the map, for a map disposed before its first frame.
+   */
+  void detach() {
+    if (map != null) {
+      map.removeOnMapChangedListener(this);
+      map = null;
+    }
+  }
+
+  /**
+   * Reports a map that could not be built, create already replied with its texture.
+   */
+  void fail(RuntimeException exception) {
+    detach();
+    if (events.hasListener()) {
+      Map<String, Object> timings = toMap();
+      timings.put("error", exception.getMessage() != null ? exception.getMessage() : exception.toString());
+      events.send(textureId, EVENT_FIRST_FRAME, timings);
+    }
+  }
+
+  @Override
+  public void onMapChanged(int change) {
+    switch (change) {
+      case MapView.DID_FINISH_LOADING_STYLE:
+        mark(STAGE_STYLE_LOADED, System.nanoTime());
+        break;
+      case MapView.DID_FINISH_RENDERING_FRAME:
+      case MapView.DID_FINISH_RENDERING_FRAME_FULLY_RENDERED:
+        long now = System.nanoTime();
+        long contextCreatedNanos = map.getContextCreatedNanos();
+        if (contextCreatedNanos != 0) {
+          mark(STAGE_CONTEXT_CREATED, contextCreatedNanos);
+        }
+        mark(STAGE_FIRST_FRAME, now);
+        detach();
+        if (events.hasListener()) {
+          events.send(textureId, EVENT_FIRST_FRAME, toMap());
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * @param nanos the {@link System#nanoTime()} the stage was reached at, stages reached before
+   *              the create call are ignored
+   */
+  private void mark(String stage, long nanos) {
+    if (nanos >= createdNanos && !stages.containsKey(stage)) {
+      stages.put(stage, nanos);
+    }
+  }
+
+  /**
+   * @return the milliseconds from the create call to each reached stage, and whether a pooled
+   * map was reused
+   */
+  Map<String, Object> toMap() {
+    Map<String, Object> timings = new HashMap<>();
+    for (Map.Entry<String, Long> stage : stages.entrySet()) {
+      timings.put(stage.getKey(), (stage.getValue() - createdNanos) / NANOS_PER_MILLI);
+    }
+    timings.put("reused", reused);
+    return timings;
+  }
+}
@@ -0,0 +1,409 @@
+package com.mapbox.flutter;
+
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.style.layers.Layer;
+import com.mapbox.mapboxsdk.style.layers.PropertyValue;
+import com.mapbox.mapboxsdk.style.sources.GeoJsonSource;
+import com.mapbox.mapboxsdk.style.sources.Source;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Applies the difference between two style documents through the runtime style API instead
+ * of reloading the whole style.
+ * <p>
+ * Supported incrementally are removed layers, changed paint and layout properties, changed
+ * zoom ranges and changed GeoJSON source data. Anything else, such as new or reordered layers,
+ * changed filters, transitions or sources, sprites or glyphs, requires a full reload. The diff is computed
+ * and checked against the live style before anything is touched, so a style is either patched
+ * completely or left alone.
+ * </p>
+ */
+final class StyleDiff {
+
+  private final List<String> removedLayers = new ArrayList<>();
+  private final List<LayerChange> layerChanges = new ArrayList<>();
+  private final Map<String, Object> sourceData = new HashMap<>();
+
+  private StyleDiff() {
+  }
+
+  /**
+   * Patches the style of the map from its applied style to next.
+   *
+   * @return true when the map now shows the next style, false when a full reload is needed
+   */
+  static boolean apply(FlutterMap map, JSONObject next) {
+    JSONObject previous = appliedStyleOf(map);
+    StyleDiff diff = previous != null && next != null ? compute(previous, next) : null;
+    return diff != null && diff.applyTo(map);
+  }
+
+  /**
+   * @return the parsed style JSON last applied to the map, parsed now when it was not before,
+   * or null when there is none. Main thread only.
+   */
+  static JSONObject appliedStyleOf(FlutterMap map) {
+    JSONObject parsed = map.getParsedAppliedStyleJson();
+    if (parsed == null && map.getAppliedStyleJson() != null) {
+      parsed = parse(map.getAppliedStyleJson());
+    }
+    return parsed;
+  }
+
+  /**
+   * Parses a style document, may be called from any thread.
+   *
+   * @return the style, or null when it is not a JSON object
+   */
+  static JSONObject parse(String styleJson) {
+    try {
+      return new JSONObject(styleJson);
+    } catch (JSONException exception) {
+      Timber.w(exception, "Could not parse style for diffing");
+      return null;
+    }
+  }
+
+  /**
+   * @return the difference, or null when it can not be applied incrementally
+   */
+  static StyleDiff compute(JSONObject previous, JSONObject next) {
+    // Everything next to layers and sources, like sprite, glyphs and light, must be unchanged
+    Set<String> keys = keysOf(previous, next);
+    keys.remove("layers");
+    keys.remove("sources");
+    for (String key : keys) {
+      if (!jsonEquals(previous.opt(key), next.opt(key))) {
+        return null;
+      }
+    }
+
+    StyleDiff diff = new StyleDiff();
+    if (!diff.compareSources(previous.optJSONObject("sources"), next.optJSONObject("sources"))
+        || !diff.compareLayers(previous.optJSONArray("layers"), next.optJSONArray("layers"))) {
+      return null;
+    }
+    return diff;
+  }
+
+  private boolean compareSources(JSONObject previous, JSONObject next) {
+    if (previous == null || next == null) {
+      return previous == next;
+    }
+
+    Set<String> ids = keysOf(previous, next);
+    for (String id : ids) {
+      JSONObject previousSource = previous.optJSONObject(id);
+      JSONObject nextSource = next.optJSONObject(id);
+      if (previousSource == null || nextSource == null) {
+        // Added or removed source
+        return false;
+      }
+
+      if (jsonEquals(previousSource, nextSource)) {
+        continue;
+      }
+
+      // Only the data of a GeoJSON source can be swapped in place
+      if (!"geojson".equals(nextSource.optString("type"))) {
+        return false;
+      }
+      Set<String> sourceKeys = keysOf(previousSource, nextSource);
+      sourceKeys.remove("data");
+      for (String key : sourceKeys) {
+        if (!jsonEquals(previousSource.opt(key), nextSource.opt(key))) {
+          return false;
+        }
+      }
+      sourceData.put(id, nextSource.opt("data"));
+    }
+    return true;
+  }
+
+  private boolean compareLayers(JSONArray previous, JSONArray next) {
+    if (previous == null || next == null) {
+      return previous == next;
+    }
+
+    Map<String, JSONObject> previousLayers = new HashMap<>();
+    for (int i = 0; i < previous.length(); i++) {
+      JSONObject layer = previous.optJSONObject(i);
+      previousLayers.put(layer.optString("id"), layer);
+    }
+
+    // The next layers must be the previous ones in the same order, minus removed ones
+    Set<String> kept = new HashSet<>();
+    int previousIndex = 0;
+    for (int i = 0; i < next.length(); i++) {
+      JSONObject nextLayer = next.optJSONObject(i);
+      String id = nextLayer.optString("id");
+      while (previousIndex < previous.length() && !id.equals(previous.optJSONObject(previousIndex).optString("id"))) {
+        previousIndex++;
+      }
+      if (previousIndex == previous.length()) {
+        // New or moved layer
+        return false;
+      }
+      previousIndex++;
+      kept.add(id);
+
+      LayerChange change = compareLayer(previousLayers.get(id), nextLayer);
+      if (change == null) {
+        return false;
+      }
+      if (!change.isEmpty()) {
+        layerChanges.add(change);
+      }
+    }
+
+    for (int i = 0; i < previous.length(); i++) {
+      String id = previous.optJSONObject(i).optString("id");
+      if (!kept.contains(id)) {
+        removedLayers.add(id);
+      }
+    }
+    return true;
+  }
+
+  private static LayerChange compareLayer(JSONObject previous, JSONObject next) {
+    for (String key : new String[] {"type", "source", "source-layer", "filter", "ref"}) {
+      if (!jsonEquals(previous.opt(key), next.opt(key))) {
+        return null;
+      }
+    }
+
+    LayerChange change = new LayerChange(next.optString("id"));
+    if (!comparePropertyGroup(previous.optJSONObject("paint"), next.optJSONObject("paint"), change)
+        || !comparePropertyGroup(previous.optJSONObject("layout"), next.optJSONObject("layout"), change)) {
+      return null;
+    }
+
+    if (!jsonEquals(previous.opt("minzoom"), next.opt("minzoom"))) {
+      change.minZoom = zoomOf(next.opt("minzoom"), 0);
+    }
+    if (!jsonEquals(previous.opt("maxzoom"), next.opt("maxzoom"))) {
+      change.maxZoom = zoomOf(next.opt("maxzoom"), 24);
+    }
+    return change;
+  }
+
+  private static boolean comparePropertyGroup(JSONObject previous, JSONObject next, LayerChange change) {
+    if (previous == null && next == null) {
+      return true;
+    }
+
+    Set<String> names = keysOf(previous, next);
+    for (String name : names) {
+      Object previousValue = previous != null ? previous.opt(name) : null;
+      Object nextValue = next != null ? next.opt(name) : null;
+      if (jsonEquals(previousValue, nextValue)) {
+        continue;
+      }
+
+      if (name.endsWith("-transition")) {
+        // Transitions have a separate setter per property that is not covered here, reload
+        // the style so the map does not drift from the recorded document
+        return false;
+      }
+
+      // A removed property resets to its default
+      change.properties.add(new PropertyValue<>(name, nextValue != null ? propertyValueOf(nextValue) : null));
+    }
+    return true;
+  }
+
+  /**
+   * Applies the difference to the live style of the map. Main thread only.
+   *
+   * @return false when the live style does not match the diff, nothing was changed then
+   */
+  boolean applyTo(FlutterMap map) {
+    // Check everything exists in the live style before changing anything
+    for (String id : removedLayers) {
+      if (map.getLayer(id) == null) {
+        return false;
+      }
+    }
+    for (LayerChange change : layerChanges) {
+      if (map.getLayer(change.id) == null) {
+        return false;
+      }
+    }
+    for (String id : sourceData.keySet()) {
+      if (!(map.getSource(id) instanceof GeoJsonSource)) {
+        return false;
+      }
+    }
+
+    for (String id : removedLayers) {
+      map.removeLayer(id);
+    }
+
+    for (Map.Entry<String, Object> entry : sourceData.entrySet()) {
+      GeoJsonSource source = (GeoJsonSource) map.getSource(entry.getKey());
+      Object data = entry.getValue();
+      if (data instanceof String) {
+        source.setUrl((String) data);
+      } else {
+        source.setGeoJson(data.toString());
+      }
+    }
+
+    for (LayerChange change : layerChanges) {
+      Layer layer = map.getLayer(change.id);
+      if (!change.properties.isEmpty()) {
+        layer.setProperties(change.properties.toArray(new PropertyValue<?>[change.properties.size()]));
+      }
+      if (change.minZoom != null) {
+        layer.setMinZoom(change.minZoom);
+      }
+      if (change.maxZoom != null) {
+        layer.setMaxZoom(change.maxZoom);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Converts a JSON property value to the types the runtime style API passes to native:
+   * numbers become floats, number arrays float arrays, other arrays (expressions included)
+   * object arrays and objects maps.
+   */
+  static Object propertyValueOf(Object json) {
+    if (json instanceof JSONArray) {
+      JSONArray array = (JSONArray) json;
+      if (isNumberArray(array)) {
+        Float[] numbers = new Float[array.length()];
+        for (int i = 0; i < numbers.length; i++) {
+          numbers[i] = ((Number) array.opt(i)).floatValue();
+        }
+        return numbers;
+      }
+      Object[] values = new Object[array.length()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = propertyValueOf(array.opt(i));
+      }
+      return values;
+    }
+
+    if (json instanceof JSONObject) {
+      JSONObject object = (JSONObject) json;
+      HashMap<String, Object> values = new HashMap<>();
+      Iterator<String> keys = object.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        values.put(key, propertyValueOf(object.opt(key)));
+      }
+      return values;
+    }
+
+    if (json instanceof Number) {
+      return ((Number) json).floatValue();
+    }
+
+    return json == JSONObject.NULL ? null : json;
+  }
+
+  private static boolean isNumberArray(JSONArray array) {
+    for (int i = 0; i < array.length(); i++) {
+      if (!(array.opt(i) instanceof Number)) {
+        return false;
+      }
+    }
+    return array.length() > 0;
+  }
+
+  private static Float zoomOf(Object json, float fallback) {
+    return json instanceof Number ? ((Number) json).floatValue() : fallback;
+  }
+
+  private static Set<String> keysOf(JSONObject first, JSONObject second) {
+    Set<String> keys = new HashSet<>();
+    for (JSONObject object : new JSONObject[] {first, second}) {
+      if (object == null) {
+        continue;
+      }
+      Iterator<String> iterator = object.keys();
+      while (iterator.hasNext()) {
+        keys.add(iterator.next());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Structural equality of parsed JSON values. Numbers compare by value, so 1 equals 1.0.
+   */
+  static boolean jsonEquals(Object first, Object second) {
+    if (first == second) {
+      return true;
+    }
+    if (first == null || second == null) {
+      return false;
+    }
+
+    if (first instanceof Number && second instanceof Number) {
+      return ((Number) first).doubleValue() == ((Number) second).doubleValue();
+    }
+
+    if (first instanceof JSONArray && second instanceof JSONArray) {
+      JSONArray firstArray = (JSONArray) first;
+      JSONArray secondArray = (JSONArray) second;
+      if (firstArray.length() != secondArray.length()) {
+        return false;
+      }
+      for (int i = 0; i < firstArray.length(); i++) {
+        if (!jsonEquals(firstArray.opt(i), secondArray.opt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    if (first instanceof JSONObject && second instanceof JSONObject) {
+      JSONObject firstObject = (JSONObject) first;
+      JSONObject secondObject = (JSONObject) second;
+      if (firstObject.length() != secondObject.length()) {
+        return false;
+      }
+      Iterator<String> keys = firstObject.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        if (!secondObject.has(key) || !jsonEquals(firstObject.opt(key), secondObject.opt(key))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    return first.equals(second);
+  }
+
+  private static final class LayerChange {
+    final String id;
+    final List<PropertyValue<?>> properties = new ArrayList<>();
+    Float minZoom;
+    Float maxZoom;
+
+    LayerChange(String id) {
+      this.id = id;
+    }
+
+    boolean isEmpty() {
+      return properties.isEmpty() && minZoom == null && maxZoom == null;
+    }
+  }
+}
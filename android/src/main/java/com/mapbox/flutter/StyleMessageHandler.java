@@ -0,0 +1,223 @@
+package com.mapbox.flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.flutter.plugin.common.BasicMessageChannel;
+
+/**
+ * Moves style JSON between Dart and the map in UTF-8 chunks over a binary message channel,
+ * so large styles never travel as a single string through the method codec.
+ * <p>
+ * A request is laid out as [int32 opcode][int64 textureId][arguments...]:
+ * <ul>
+ * <li>begin [int32 length], replies [int32 transferId]</li>
+ * <li>append [int32 transferId][bytes...], replies [int32 receivedLength]</li>
+ * <li>commit [int32 transferId], replies [int32 1] once the style was applied</li>
+ * <li>abort [int32 transferId]</li>
+ * <li>get [int32 offset][int32 maxLength], replies [int32 totalLength][int32 generation][bytes...],
+ * where the generation changes whenever the map's style does</li>
+ * </ul>
+ * Committed styles are decoded, parsed and diffed on a background thread against the parsed
+ * current style, which the map keeps next to its JSON, see {@link StyleDiff}. An empty reply
+ * means the map or transfer is unknown, or the transfer failed and was dropped. Transfers of
+ * disposed maps are dropped with {@link #clear}.
+ * </p>
+ */
+class StyleMessageHandler implements BasicMessageChannel.MessageHandler<ByteBuffer> {
+
+  static final String CHANNEL = "com.mapbox/flutter_mapbox_style";
+
+  private static final int OP_BEGIN = 0;
+  private static final int OP_APPEND = 1;
+  private static final int OP_COMMIT = 2;
+  private static final int OP_ABORT = 3;
+  private static final int OP_GET = 4;
+
+  private static final int MAX_CHUNK_BYTES = 64 * 1024;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Map<Long, MapboxPlugin.MapInstance> maps;
+  private final Map<Integer, Transfer> transfers = new HashMap<>();
+  private final ByteBuffer replyBuffer = ByteBuffer.allocateDirect(8 + MAX_CHUNK_BYTES);
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "MapStyleTransfer");
+    }
+  });
+  private int nextTransferId = 1;
+
+  StyleMessageHandler(Map<Long, MapboxPlugin.MapInstance> maps) {
+    this.maps = maps;
+  }
+
+  @Override
+  public void onMessage(ByteBuffer message, final BasicMessageChannel.Reply<ByteBuffer> reply) {
+    int opcode = message.getInt();
+    long textureId = message.getLong();
+    if (opcode == OP_ABORT) {
+      // Also sent for maps disposed during the transfer
+      transfers.remove(message.getInt());
+      reply.reply(null);
+      return;
+    }
+
+    MapboxPlugin.MapInstance mapInstance = maps.get(textureId);
+    if (mapInstance == null) {
+      reply.reply(null);
+      return;
+    }
+
+    replyBuffer.clear();
+    switch (opcode) {
+      case OP_BEGIN: {
+        int length = message.getInt();
+        if (length < 0) {
+          reply.reply(null);
+          return;
+        }
+        int transferId = nextTransferId++;
+        transfers.put(transferId, new Transfer(textureId, length));
+        replyBuffer.putInt(transferId);
+        break;
+      }
+
+      case OP_APPEND: {
+        int transferId = message.getInt();
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null || transfer.textureId != textureId || !transfer.append(message)) {
+          transfers.remove(transferId);
+          reply.reply(null);
+          return;
+        }
+        replyBuffer.putInt(transfer.length);
+        break;
+      }
+
+      case OP_COMMIT: {
+        Transfer transfer = transfers.remove(message.getInt());
+        if (transfer == null || transfer.textureId != textureId) {
+          reply.reply(null);
+          return;
+        }
+        commit(mapInstance.map, transfer, reply);
+        return;
+      }
+
+      case OP_GET: {
+        int offset = message.getInt();
+        int maxLength = Math.min(message.getInt(), MAX_CHUNK_BYTES);
+        byte[] json = mapInstance.map.getStyleJsonBytes();
+        if (json == null) {
+          json = new byte[0];
+        }
+        int length = Math.max(0, Math.min(maxLength, json.length - offset));
+        replyBuffer.putInt(json.length);
+        replyBuffer.putInt(mapInstance.map.getStyleGeneration());
+        replyBuffer.put(json, Math.min(offset, json.length), length);
+        break;
+      }
+
+      default:
+        throw new IllegalArgumentException("Unknown style opcode: " + opcode);
+    }
+
+    // The engine copies [0, position) of the reply synchronously, so the buffer is
+    // left unflipped and can be reused for the next message.
+    reply.reply(replyBuffer);
+  }
+
+  /**
+   * Drops the unfinished transfers of a disposed map.
+   */
+  void clear(long textureId) {
+    Iterator<Transfer> iterator = transfers.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().textureId == textureId) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Decodes and diffs the style off the main thread, then applies it on the main thread.
+   */
+  private void commit(final FlutterMap map, final Transfer transfer, final BasicMessageChannel.Reply<ByteBuffer> reply) {
+    final String previous = map.getAppliedStyleJson();
+    final JSONObject parsedPrevious = map.getParsedAppliedStyleJson();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final String styleJson = new String(transfer.bytes, 0, transfer.length, UTF_8);
+        // Parsed once here, then kept by the map as the base of the next diff
+        final JSONObject parsed = StyleDiff.parse(styleJson);
+        StyleDiff computed = null;
+        try {
+          JSONObject base = parsedPrevious != null ? parsedPrevious
+              : previous != null ? StyleDiff.parse(previous) : null;
+          computed = base != null && parsed != null ? StyleDiff.compute(base, parsed) : null;
+        } catch (RuntimeException exception) {
+          // Reload the whole style instead
+        }
+        final StyleDiff diff = computed;
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            MapboxPlugin.MapInstance mapInstance = maps.get(transfer.textureId);
+            if (mapInstance == null || mapInstance.map != map) {
+              reply.reply(null);
+              return;
+            }
+
+            // The diff only holds if the style did not change while it was computed
+            if (diff != null && previous.equals(map.getAppliedStyleJson()) && diff.applyTo(map)) {
+              map.setAppliedStyleJson(styleJson, parsed);
+            } else {
+              map.setStyleJson(styleJson, parsed);
+            }
+
+            ByteBuffer done = ByteBuffer.allocateDirect(4);
+            done.putInt(1);
+            reply.reply(done);
+          }
+        });
+      }
+    });
+  }
+
+  private static final class Transfer {
+    final long textureId;
+    final byte[] bytes;
+    int length;
+
+    Transfer(long textureId, int totalLength) {
+      this.textureId = textureId;
+      this.bytes = new byte[totalLength];
+    }
+
+    boolean append(ByteBuffer chunk) {
+      int count = chunk.remaining();
+      if (length + count > bytes.length) {
+        return false;
+      }
+      chunk.get(bytes, length, count);
+      length += count;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,378 @@
+package com.mapbox.flutter;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.camera.CameraPosition;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Two tier cache of rendered thumbnails: an LRU in memory bounded by bytes, backed by files in
+ * the app cache directory that are evicted oldest first.
+ * <p>
+ * Keys are built from the normalized camera, the style and the requested image, so cameras
+ * that only differ by floating point noise share an entry. The memory tier may be used from any
+ * thread, the disk tier is only touched on a background thread.
+ * </p>
+ */
+class ThumbnailCache {
+
+  static final long DEFAULT_MEMORY_BYTES = 8 * 1024 * 1024;
+  static final long DEFAULT_DISK_BYTES = 64 * 1024 * 1024;
+
+  private static final String DIRECTORY = "mapbox_thumbnails";
+
+  private final File directory;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "MapThumbnailCache");
+    }
+  });
+
+  // Guarded by this
+  private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+  private long memoryBytes;
+  private long maxMemoryBytes = DEFAULT_MEMORY_BYTES;
+  private long maxDiskBytes = DEFAULT_DISK_BYTES;
+  private long memoryHits;
+  private long diskHits;
+  private long misses;
+  private long memoryEvictions;
+  private long diskEvictions;
+
+  // Disk executor only
+  private long diskBytes = -1;
+
+  ThumbnailCache(Context context) {
+    this.directory = new File(context.getCacheDir(), DIRECTORY);
+  }
+
+  /**
+   * Builds the key of a thumbnail. Coordinates are rounded to about 10 cm, zoom, bearing and
+   * tilt to what is visually indistinguishable at thumbnail sizes. Thumbnails without an explicit
+   * camera depend on the style's default camera and are not cached.
+   */
+  static String keyOf(CameraPosition camera, String style, int width, int height, String format, double scale) {
+    StringBuilder key = new StringBuilder();
+    double bearing = camera.bearing % 360;
+    if (bearing < 0) {
+      bearing += 360;
+    }
+    key.append(String.format(Locale.US, "%.6f,%.6f,%.3f,%.1f,%.1f",
+        camera.target != null ? camera.target.getLatitude() : 0,
+        camera.target != null ? camera.target.getLongitude() : 0,
+        camera.zoom, bearing, camera.tilt));
+    key.append('|').append(width).append('x').append(height)
+        .append('|').append(format)
+        .append('|').append(String.format(Locale.US, "%.3f", scale))
+        .append('|').append(sha1(style));
+    return sha1(key.toString());
+  }
+
+  /**
+   * Looks a thumbnail up in memory, then on disk, and replies on the main thread.
+   *
+   * @param callback receives the cached reply, or null on a miss
+   */
+  void get(final String key, final Callback callback) {
+    Entry entry;
+    synchronized (this) {
+      entry = memory.get(key);
+      if (entry != null) {
+        memoryHits++;
+      }
+    }
+
+    if (entry != null) {
+      callback.onResult(entry.toReply());
+      return;
+    }
+
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        final Entry entry = readFile(key);
+        synchronized (ThumbnailCache.this) {
+          if (entry != null) {
+            diskHits++;
+            putMemory(key, entry);
+          } else {
+            misses++;
+          }
+        }
+
+        mainHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            callback.onResult(entry != null ? entry.toReply() : null);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Stores a snapshot reply in both tiers.
+   */
+  void put(final String key, Map<String, Object> reply) {
+    final Entry entry = new Entry(((Number) reply.get("width")).intValue(),
+        ((Number) reply.get("height")).intValue(), (String) reply.get("format"), (byte[]) reply.get("bytes"));
+    synchronized (this) {
+      putMemory(key, entry);
+    }
+
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        writeFile(key, entry);
+      }
+    });
+  }
+
+  synchronized void setMaxMemoryBytes(long maxMemoryBytes) {
+    this.maxMemoryBytes = maxMemoryBytes;
+    trimMemory();
+  }
+
+  synchronized void setMaxDiskBytes(long maxDiskBytes) {
+    this.maxDiskBytes = maxDiskBytes;
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        trimDisk();
+      }
+    });
+  }
+
+  void clear() {
+    synchronized (this) {
+      memory.clear();
+      memoryBytes = 0;
+    }
+
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+          for (File file : files) {
+            file.delete();
+          }
+        }
+        diskBytes = 0;
+      }
+    });
+  }
+
+  synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new HashMap<>();
+    long lookups = memoryHits + diskHits + misses;
+    stats.put("memoryHits", memoryHits);
+    stats.put("diskHits", diskHits);
+    stats.put("misses", misses);
+    stats.put("hitRate", lookups > 0 ? (double) (memoryHits + diskHits) / lookups : 0.0);
+    stats.put("memoryEvictions", memoryEvictions);
+    stats.put("diskEvictions", diskEvictions);
+    stats.put("memoryBytes", memoryBytes);
+    stats.put("memoryEntries", memory.size());
+    stats.put("maxMemoryBytes", maxMemoryBytes);
+    stats.put("maxDiskBytes", maxDiskBytes);
+    return stats;
+  }
+
+  // Called with the lock held
+  private void putMemory(String key, Entry entry) {
+    Entry previous = memory.put(key, entry);
+    if (previous != null) {
+      memoryBytes -= previous.bytes.length;
+    }
+    memoryBytes += entry.bytes.length;
+    trimMemory();
+  }
+
+  // Called with the lock held
+  private void trimMemory() {
+    Iterator<Map.Entry<String, Entry>> iterator = memory.entrySet().iterator();
+    while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+      memoryBytes -= iterator.next().getValue().bytes.length;
+      iterator.remove();
+      memoryEvictions++;
+    }
+  }
+
+  private Entry readFile(String key) {
+    File file = new File(directory, key);
+    if (!file.exists()) {
+      return null;
+    }
+
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new FileInputStream(file));
+      int width = input.readInt();
+      int height = input.readInt();
+      String format = input.readUTF();
+      byte[] bytes = new byte[input.readInt()];
+      input.readFully(bytes);
+
+      // Mark as recently used for the eviction order
+      file.setLastModified(System.currentTimeMillis());
+      return new Entry(width, height, format, bytes);
+    } catch (IOException exception) {
+      Timber.w(exception, "Could not read cached thumbnail");
+      file.delete();
+      return null;
+    } finally {
+      closeQuietly(input);
+    }
+  }
+
+  private void writeFile(String key, Entry entry) {
+    if (!directory.exists() && !directory.mkdirs()) {
+      return;
+    }
+
+    File file = new File(directory, key);
+    long previousLength = file.length();
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new FileOutputStream(file));
+      output.writeInt(entry.width);
+      output.writeInt(entry.height);
+      output.writeUTF(entry.format);
+      output.writeInt(entry.bytes.length);
+      output.write(entry.bytes);
+    } catch (IOException exception) {
+      Timber.w(exception, "Could not write cached thumbnail");
+      closeQuietly(output);
+      output = null;
+      file.delete();
+      return;
+    } finally {
+      closeQuietly(output);
+    }
+
+    if (diskBytes >= 0) {
+      diskBytes += file.length() - previousLength;
+    }
+    trimDisk();
+  }
+
+  private void trimDisk() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    if (diskBytes < 0) {
+      diskBytes = 0;
+      for (File file : files) {
+        diskBytes += file.length();
+      }
+    }
+
+    long maxDiskBytes;
+    synchronized (this) {
+      maxDiskBytes = this.maxDiskBytes;
+    }
+    if (diskBytes <= maxDiskBytes) {
+      return;
+    }
+
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File left, File right) {
+        long l = left.lastModified();
+        long r = right.lastModified();
+        return l < r ? -1 : (l == r ? 0 : 1);
+      }
+    });
+
+    for (int i = 0; i < files.length && diskBytes > maxDiskBytes; i++) {
+      long length = files[i].length();
+      if (files[i].delete()) {
+        diskBytes -= length;
+        synchronized (this) {
+          diskEvictions++;
+        }
+      }
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+        // Nothing left to do
+      }
+    }
+  }
+
+  private static String sha1(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException | IOException exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  interface Callback {
+    void onResult(Map<String, Object> reply);
+  }
+
+  private static final class Entry {
+    final int width;
+    final int height;
+    final String format;
+    final byte[] bytes;
+
+    Entry(int width, int height, String format, byte[] bytes) {
+      this.width = width;
+      this.height = height;
+      this.format = format;
+      this.bytes = bytes;
+    }
+
+    Map<String, Object> toReply() {
+      Map<String, Object> reply = new HashMap<>();
+      reply.put("width", width);
+      reply.put("height", height);
+      reply.put("format", format);
+      reply.put("bytes", bytes);
+      // Only complete renders are stored
+      reply.put("complete", true);
+      reply.put("cached", true);
+      return reply;
+    }
+  }
+}
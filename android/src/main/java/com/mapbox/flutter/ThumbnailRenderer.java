@@ -0,0 +1,253 @@
+package com.mapbox.flutter;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.mapbox.mapboxsdk.camera.CameraPosition;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.maps.FlutterMap;
+import com.mapbox.mapboxsdk.maps.MapView;
+import com.mapbox.mapboxsdk.maps.MapboxMapOptions;
+import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.SnapshotCallback;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Renders map thumbnails without a Flutter texture.
+ * <p>
+ * Jobs are rendered back to back by a single offscreen map, so its EGL context, style and tile
+ * cache are reused from one job to the next. A job is captured once a frame reports all of its
+ * tiles as loaded, or when {@link #RENDER_TIMEOUT_MS} passed. Encoding of a thumbnail overlaps
+ * with rendering of the next one. Jobs without a camera are rendered at the default camera of
+ * their style. Main thread only.
+ * </p>
+ */
+class ThumbnailRenderer implements MapView.OnMapChangedListener {
+
+  static final long RENDER_TIMEOUT_MS = 10000;
+
+  private final Context context;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ArrayDeque<Job> jobs = new ArrayDeque<>();
+  private final Runnable timeout = new Runnable() {
+    @Override
+    public void run() {
+      capture(false);
+    }
+  };
+  private final Runnable finishJob = new Runnable() {
+    @Override
+    public void run() {
+      current = null;
+      next();
+    }
+  };
+
+  private FlutterMap map;
+  private Job current;
+  private boolean styleLoading;
+  // Incremented per job, frames only count once the current generation is armed
+  private int generation;
+  private int armedGeneration;
+  private boolean frameStarted;
+  private boolean capturing;
+
+  ThumbnailRenderer(Context context) {
+    this.context = context;
+  }
+
+  void render(Job job) {
+    jobs.add(job);
+    if (current == null) {
+      next();
+    }
+  }
+
+  /**
+   * Fails the queued jobs and destroys the offscreen map.
+   */
+  void release() {
+    mainHandler.removeCallbacks(timeout);
+    mainHandler.removeCallbacks(finishJob);
+    if (current != null && !capturing) {
+      current.result.error("thumbnail", "Thumbnail renderer released", null);
+    }
+    for (Job job : jobs) {
+      job.result.error("thumbnail", "Thumbnail renderer released", null);
+    }
+    jobs.clear();
+    current = null;
+
+    if (map != null) {
+      map.removeOnMapChangedListener(this);
+      map.onPause();
+      map.onStop();
+      map.onDestroy();
+      map = null;
+    }
+  }
+
+  private void next() {
+    current = jobs.poll();
+    if (current == null) {
+      return;
+    }
+
+    Job job = current;
+    job.startedNanos = System.nanoTime();
+    if (map == null) {
+      MapboxMapOptions options = new MapboxMapOptions().styleUrl(job.styleUrl);
+      map = new FlutterMap(context, options, null, job.width, job.height);
+      styleLoading = true;
+      map.addOnMapChangedListener(this);
+      map.onStart();
+      map.onResume();
+    } else {
+      map.resize(job.width, job.height);
+      if (!map.hasStyle(job.styleUrl)) {
+        map.setStyle(job.styleUrl);
+        styleLoading = true;
+      }
+    }
+
+    if (job.camera != null) {
+      map.jumpTo(job.camera);
+    } else if (!styleLoading) {
+      // Otherwise jumped to once the style is loaded
+      map.jumpTo(styleDefaultCamera());
+    }
+
+    frameStarted = false;
+    capturing = false;
+    final int jobGeneration = ++generation;
+    map.triggerRepaint();
+    // Frame events already queued by the previous job are delivered before this
+    mainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        armedGeneration = jobGeneration;
+      }
+    });
+    mainHandler.postDelayed(timeout, RENDER_TIMEOUT_MS);
+  }
+
+  /**
+   * Reads the camera of the loaded style's root center, zoom, bearing and pitch properties.
+   */
+  private CameraPosition styleDefaultCamera() {
+    double lat = 0;
+    double lng = 0;
+    double zoom = 0;
+    double bearing = 0;
+    double pitch = 0;
+    String styleJson = map.getStyleJson();
+    if (styleJson != null) {
+      try {
+        JSONObject style = new JSONObject(styleJson);
+        JSONArray center = style.optJSONArray("center");
+        if (center != null && center.length() == 2) {
+          lng = center.getDouble(0);
+          lat = center.getDouble(1);
+        }
+        zoom = style.optDouble("zoom", 0);
+        bearing = style.optDouble("bearing", 0);
+        pitch = style.optDouble("pitch", 0);
+      } catch (JSONException exception) {
+        // Keep the defaults of the style specification
+      }
+    }
+    return new CameraPosition.Builder()
+        .target(new LatLng(lat, lng))
+        .zoom(zoom)
+        .bearing(bearing)
+        .tilt(pitch)
+        .build();
+  }
+
+  @Override
+  public void onMapChanged(int change) {
+    if (change == MapView.DID_FINISH_LOADING_STYLE) {
+      styleLoading = false;
+    }
+    if (current == null || capturing) {
+      return;
+    }
+
+    switch (change) {
+      case MapView.DID_FINISH_LOADING_STYLE:
+        if (current.camera == null) {
+          map.jumpTo(styleDefaultCamera());
+        }
+        break;
+      case MapView.WILL_START_RENDERING_FRAME:
+        if (armedGeneration == generation) {
+          frameStarted = true;
+        }
+        break;
+      case MapView.DID_FINISH_RENDERING_FRAME_FULLY_RENDERED:
+        // Only trust frames that started after the job was set up
+        if (frameStarted) {
+          capture(true);
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void capture(final boolean complete) {
+    if (current == null || capturing) {
+      return;
+    }
+
+    capturing = true;
+    mainHandler.removeCallbacks(timeout);
+
+    Job job = current;
+    Map<String, Object> extras = new HashMap<>();
+    extras.put("complete", complete);
+    extras.put("renderMillis", (System.nanoTime() - job.startedNanos) / 1000000.0);
+    final SnapshotEncoder encoder = new SnapshotEncoder(job.result, job.format, job.scale, extras);
+    map.snapshot(new SnapshotCallback() {
+      @Override
+      public void onSnapshot(ByteBuffer pixels, int width, int height) {
+        encoder.onSnapshot(pixels, width, height);
+
+        // Start the next job while this one is encoded
+        mainHandler.post(finishJob);
+      }
+    });
+  }
+
+  static class Job {
+    final CameraPosition camera;
+    final String styleUrl;
+    final int width;
+    final int height;
+    final String format;
+    final double scale;
+    final Result result;
+    long startedNanos;
+
+    Job(CameraPosition camera, String styleUrl, int width, int height, String format, double scale,
+        Result result) {
+      this.camera = camera;
+      this.styleUrl = styleUrl;
+      this.width = width;
+      this.height = height;
+      this.format = format;
+      this.scale = scale;
+      this.result = result;
+    }
+  }
+}
@@ -0,0 +1,414 @@
+package com.mapbox.flutter;
+
+import android.content.Context;
+
+import com.mapbox.mapboxsdk.geometry.LatLngBounds;
+import com.mapbox.mapboxsdk.maps.MercatorProjection;
+import com.mapbox.mapboxsdk.offline.OfflineManager;
+import com.mapbox.mapboxsdk.offline.OfflineRegion;
+import com.mapbox.mapboxsdk.offline.OfflineRegionError;
+import com.mapbox.mapboxsdk.offline.OfflineRegionStatus;
+import com.mapbox.mapboxsdk.offline.OfflineTilePyramidRegionDefinition;
+import com.mapbox.mapboxsdk.storage.FileSource;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Loads the tiles of upcoming viewports into the SDK's tile database before the camera gets
+ * there.
+ * <p>
+ * Every viewport becomes a temporary offline region, downloaded in request order with at most
+ * {@link #setMaxActiveDownloads} at a time. Offline regions are exempt from the ambient cache
+ * eviction, so warmed regions are kept until their total size exceeds the warm budget and then
+ * deleted oldest first, which hands their tiles back to the ambient cache. Warm requests carry a
+ * tag and can be cancelled while they are pending. Short-lived requests, such as the path of a
+ * camera animation, stay out of the warm budget and are deleted with {@link #release} once they
+ * are no longer needed. Warm regions left over from an earlier session are deleted on start.
+ * Main thread only.
+ * </p>
+ */
+class TileCacheWarmer {
+
+  static final long DEFAULT_MAX_WARM_BYTES = 50 * 1024 * 1024;
+
+  private static final int DEFAULT_MAX_ACTIVE_DOWNLOADS = 2;
+  private static final String DATABASE_NAME = "mbgl-offline.db";
+  private static final String METADATA_WARM = "flutterWarm";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Tells the warm regions of this session from those left over by earlier ones
+  private final String session = UUID.randomUUID().toString();
+  private final Context context;
+  private final OfflineManager offlineManager;
+  private final float pixelRatio;
+  private final LinkedList<Batch> batches = new LinkedList<>();
+  // Completed regions, oldest first
+  private final LinkedList<Viewport> warmed = new LinkedList<>();
+  // Completed regions outside the warm budget, kept until released
+  private final List<Viewport> shortLivedWarmed = new ArrayList<>();
+  private int maxActiveDownloads = DEFAULT_MAX_ACTIVE_DOWNLOADS;
+  private long maxWarmBytes = DEFAULT_MAX_WARM_BYTES;
+  private int activeDownloads;
+  private long warmedBytes;
+
+  TileCacheWarmer(Context context) {
+    this.context = context;
+    this.offlineManager = OfflineManager.getInstance(context);
+    this.pixelRatio = context.getResources().getDisplayMetrics().density;
+    deleteStaleRegions();
+  }
+
+  /**
+   * Warms the viewports of the cameras, in order. The result receives the number of warmed,
+   * cancelled and failed viewports once all of them are settled.
+   *
+   * @param tag     identifies the request for {@link #cancel}, may be shared by several requests
+   * @param cameras packed [lat, lng, zoom, ...] triples
+   * @param width   the viewport width in logical pixels
+   * @param height  the viewport height in logical pixels
+   */
+  void warm(String tag, double[] cameras, double width, double height, String styleUrl, Result result) {
+    warm(tag, cameras, width, height, styleUrl, false, result);
+  }
+
+  /**
+   * @param shortLived true to keep the warmed viewports out of the warm budget until they are
+   *                   deleted with {@link #release}, instead of evicting older viewports for them
+   */
+  void warm(String tag, double[] cameras, double width, double height, String styleUrl, boolean shortLived,
+            Result result) {
+    Batch batch = new Batch(tag, shortLived, result);
+    // Cover the diagonal so rotated cameras are covered too
+    double halfExtent = Math.hypot(width, height) / 2;
+    for (int i = 0; i + 2 < cameras.length; i += 3) {
+      Viewport viewport = new Viewport(batch);
+      batch.viewports.add(viewport);
+      create(viewport, styleUrl, boundsOf(cameras[i], cameras[i + 1], cameras[i + 2], halfExtent),
+          (int) Math.floor(cameras[i + 2]));
+    }
+    batches.add(batch);
+    batch.settleIfDone();
+  }
+
+  /**
+   * Cancels the pending viewports of every request with the tag, viewports that already
+   * finished stay warm.
+   *
+   * @return the number of cancelled viewports
+   */
+  int cancel(String tag) {
+    int cancelled = 0;
+    for (Batch batch : new ArrayList<>(batches)) {
+      if (!batch.tag.equals(tag)) {
+        continue;
+      }
+      for (Viewport viewport : batch.viewports) {
+        if (!viewport.settled) {
+          viewport.cancel();
+          cancelled++;
+        }
+      }
+      batch.settleIfDone();
+    }
+    schedule();
+    return cancelled;
+  }
+
+  /**
+   * Cancels the pending viewports of every request with the tag and deletes the short-lived
+   * viewports it warmed, which hands their tiles back to the ambient cache.
+   */
+  void release(String tag) {
+    cancel(tag);
+    Iterator<Viewport> iterator = shortLivedWarmed.iterator();
+    while (iterator.hasNext()) {
+      Viewport viewport = iterator.next();
+      if (viewport.batch.tag.equals(tag)) {
+        iterator.remove();
+        viewport.delete();
+      }
+    }
+  }
+
+  void setMaxActiveDownloads(int maxActiveDownloads) {
+    this.maxActiveDownloads = Math.max(1, maxActiveDownloads);
+    schedule();
+  }
+
+  void setMaxWarmBytes(long maxWarmBytes) {
+    this.maxWarmBytes = Math.max(0, maxWarmBytes);
+    evict();
+  }
+
+  /**
+   * Returns every warmed viewport to the ambient cache.
+   */
+  void clear() {
+    while (!warmed.isEmpty()) {
+      Viewport viewport = warmed.removeFirst();
+      warmedBytes -= viewport.bytes;
+      viewport.delete();
+    }
+    for (Viewport viewport : shortLivedWarmed) {
+      viewport.delete();
+    }
+    shortLivedWarmed.clear();
+  }
+
+  Map<String, Object> getInfo() {
+    Map<String, Object> info = new HashMap<>();
+    String cachePath = FileSource.getResourcesCachePath(context);
+    info.put("databasePath", new File(cachePath, DATABASE_NAME).getAbsolutePath());
+    info.put("databaseBytes", new File(cachePath, DATABASE_NAME).length());
+    info.put("warmedViewports", warmed.size());
+    info.put("warmedBytes", warmedBytes);
+    info.put("maxWarmBytes", maxWarmBytes);
+    info.put("activeDownloads", activeDownloads);
+    int pending = 0;
+    for (Batch batch : batches) {
+      for (Viewport viewport : batch.viewports) {
+        if (!viewport.settled) {
+          pending++;
+        }
+      }
+    }
+    info.put("pendingViewports", pending);
+    return info;
+  }
+
+  private void create(final Viewport viewport, String styleUrl, LatLngBounds bounds, int zoom) {
+    OfflineTilePyramidRegionDefinition definition =
+        new OfflineTilePyramidRegionDefinition(styleUrl, bounds, zoom, zoom, pixelRatio);
+    offlineManager.createOfflineRegion(definition, warmMetadata(), new OfflineManager.CreateOfflineRegionCallback() {
+      @Override
+      public void onCreate(OfflineRegion offlineRegion) {
+        viewport.offlineRegion = offlineRegion;
+        if (viewport.settled) {
+          // Cancelled while being created
+          viewport.delete();
+          return;
+        }
+        offlineRegion.setObserver(viewport);
+        schedule();
+      }
+
+      @Override
+      public void onError(String error) {
+        viewport.settle(false);
+      }
+    });
+  }
+
+  /**
+   * Activates created viewports in request order until the concurrency limit is reached.
+   */
+  private void schedule() {
+    for (Batch batch : batches) {
+      for (Viewport viewport : batch.viewports) {
+        if (activeDownloads >= maxActiveDownloads) {
+          return;
+        }
+        if (!viewport.active && !viewport.settled && viewport.offlineRegion != null) {
+          viewport.activate();
+        }
+      }
+    }
+  }
+
+  private void evict() {
+    while (warmedBytes > maxWarmBytes && !warmed.isEmpty()) {
+      Viewport viewport = warmed.removeFirst();
+      warmedBytes -= viewport.bytes;
+      viewport.delete();
+    }
+  }
+
+  private void deleteStaleRegions() {
+    offlineManager.listOfflineRegions(new OfflineManager.ListOfflineRegionsCallback() {
+      @Override
+      public void onList(OfflineRegion[] offlineRegions) {
+        for (OfflineRegion offlineRegion : offlineRegions) {
+          if (isStaleWarmRegion(offlineRegion)) {
+            offlineRegion.delete(new IgnoreDelete());
+          }
+        }
+      }
+
+      @Override
+      public void onError(String error) {
+        // Left for the next start
+      }
+    });
+  }
+
+  /**
+   * @return bounds around the camera that cover halfExtent logical pixels in every direction
+   */
+  private static LatLngBounds boundsOf(double latitude, double longitude, double zoom, double halfExtent) {
+    double metersPerPixel = 2 * Math.PI * MercatorProjection.EARTH_RADIUS_M
+        / (MercatorProjection.TILE_SIZE * Math.pow(2, zoom));
+    double northing = MercatorProjection.northing(latitude);
+    double easting = MercatorProjection.easting(longitude);
+    double extent = halfExtent * metersPerPixel;
+    return LatLngBounds.from(
+        MercatorProjection.latitude(northing + extent), MercatorProjection.longitude(easting + extent),
+        MercatorProjection.latitude(northing - extent), MercatorProjection.longitude(easting - extent));
+  }
+
+  private byte[] warmMetadata() {
+    try {
+      JSONObject metadata = new JSONObject();
+      metadata.put(METADATA_WARM, session);
+      return metadata.toString().getBytes(UTF_8);
+    } catch (JSONException exception) {
+      throw new IllegalStateException(exception);
+    }
+  }
+
+  private boolean isStaleWarmRegion(OfflineRegion offlineRegion) {
+    byte[] bytes = offlineRegion.getMetadata();
+    if (bytes == null) {
+      return false;
+    }
+    try {
+      JSONObject metadata = new JSONObject(new String(bytes, UTF_8));
+      return metadata.has(METADATA_WARM) && !session.equals(metadata.optString(METADATA_WARM));
+    } catch (JSONException exception) {
+      return false;
+    }
+  }
+
+  private final class Batch {
+    final String tag;
+    final boolean shortLived;
+    final Result result;
+    final List<Viewport> viewports = new ArrayList<>();
+    int warmedCount;
+    int cancelledCount;
+    int failedCount;
+
+    Batch(String tag, boolean shortLived, Result result) {
+      this.tag = tag;
+      this.shortLived = shortLived;
+      this.result = result;
+    }
+
+    void settleIfDone() {
+      if (warmedCount + cancelledCount + failedCount < viewports.size() || !batches.remove(this)) {
+        return;
+      }
+      Map<String, Object> reply = new HashMap<>();
+      reply.put("warmed", warmedCount);
+      reply.put("cancelled", cancelledCount);
+      reply.put("failed", failedCount);
+      result.success(reply);
+    }
+  }
+
+  private final class Viewport implements OfflineRegion.OfflineRegionObserver {
+    final Batch batch;
+    OfflineRegion offlineRegion;
+    boolean active;
+    boolean settled;
+    long bytes;
+
+    Viewport(Batch batch) {
+      this.batch = batch;
+    }
+
+    void activate() {
+      active = true;
+      activeDownloads++;
+      offlineRegion.setDownloadState(OfflineRegion.STATE_ACTIVE);
+    }
+
+    void deactivate() {
+      if (!active) {
+        return;
+      }
+      active = false;
+      activeDownloads--;
+      offlineRegion.setDownloadState(OfflineRegion.STATE_INACTIVE);
+    }
+
+    void cancel() {
+      deactivate();
+      settled = true;
+      batch.cancelledCount++;
+      if (offlineRegion != null) {
+        delete();
+      }
+    }
+
+    void settle(boolean warm) {
+      if (settled) {
+        return;
+      }
+      deactivate();
+      settled = true;
+      if (warm) {
+        batch.warmedCount++;
+        if (batch.shortLived) {
+          shortLivedWarmed.add(this);
+        } else {
+          warmed.addLast(this);
+          warmedBytes += bytes;
+          evict();
+        }
+      } else {
+        batch.failedCount++;
+        if (offlineRegion != null) {
+          delete();
+        }
+      }
+      batch.settleIfDone();
+      schedule();
+    }
+
+    void delete() {
+      offlineRegion.setObserver(null);
+      offlineRegion.delete(new IgnoreDelete());
+    }
+
+    @Override
+    public void onStatusChanged(OfflineRegionStatus status) {
+      if (status.isComplete()) {
+        bytes = status.getCompletedResourceSize();
+        settle(true);
+      }
+    }
+
+    @Override
+    public void onError(OfflineRegionError error) {
+      // The SDK keeps retrying until the viewport completes or is cancelled
+    }
+
+    @Override
+    public void mapboxTileCountLimitExceeded(long limit) {
+      settle(false);
+    }
+  }
+
+  private static final class IgnoreDelete implements OfflineRegion.OfflineRegionDeleteCallback {
+    @Override
+    public void onDelete() {
+    }
+
+    @Override
+    public void onError(String error) {
+    }
+  }
+}
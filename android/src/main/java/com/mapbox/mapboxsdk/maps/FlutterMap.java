@@ -6,33 +6,91 @@ import android.graphics.PointF;
 import android.graphics.SurfaceTexture;
 
 import com.mapbox.mapboxsdk.geometry.ProjectedMeters;
+import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.RenderStats;
+import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.SnapshotCallback;
 import com.mapbox.mapboxsdk.maps.renderer.surfacetexture.SurfaceTextureMapRenderer;
 import com.mapbox.mapboxsdk.camera.CameraPosition;
-import com.mapbox.mapboxsdk.maps.renderer.MapRenderer;
 import com.mapbox.mapboxsdk.net.ConnectivityReceiver;
 import com.mapbox.mapboxsdk.storage.FileSource;
+import com.mapbox.mapboxsdk.style.layers.Layer;
+import com.mapbox.mapboxsdk.style.sources.GeoJsonSource;
+import com.mapbox.mapboxsdk.style.sources.Source;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
 public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChangedListener {
+
+  // Layout of the packed camera state, see getCameraState
+  public static final int CAMERA_LATITUDE = 0;
+  public static final int CAMERA_LONGITUDE = 1;
+  public static final int CAMERA_ZOOM = 2;
+  public static final int CAMERA_BEARING = 3;
+  public static final int CAMERA_TILT = 4;
+  public static final int CAMERA_SOUTH = 5;
+  public static final int CAMERA_WEST = 6;
+  public static final int CAMERA_NORTH = 7;
+  public static final int CAMERA_EAST = 8;
+  public static final int CAMERA_METERS_PER_PIXEL = 9;
+  public static final int CAMERA_MIN_ZOOM = 10;
+  public static final int CAMERA_MAX_ZOOM = 11;
+  public static final int CAMERA_STATE_SIZE = 12;
+
   private final Context context;
   private final NativeMapView nativeMapView;
-  private final MapRenderer mapRenderer;
+  private final SurfaceTextureMapRenderer mapRenderer;
+  private final boolean sharedRenderThread;
   private int width;
   private int height;
+  private String styleJson;
+  // The parsed styleJson, kept as the base of the next style diff
+  private JSONObject parsedStyleJson;
+  // Whether sources were added, updated or removed since styleJson was applied
+  private boolean runtimeStyleChanged;
+
+  // Sources added through setGeoJson, dropped with the style
+  private final Set<String> runtimeSourceIds = new HashSet<>();
+
+  // Style JSON read back from native and its UTF-8 encoding, dropped when the style changes
+  private String cachedStyleJson;
+  private byte[] cachedStyleJsonBytes;
+  private int styleGeneration;
+
+  // Camera values cached for the Java projection path, refreshed on region changes and camera calls
+  private final float pixelRatio;
+  private volatile double zoom;
 
   public FlutterMap(Context context, MapboxMapOptions options, SurfaceTexture surfaceTexture, int width, int height) {
+    this(context, options, surfaceTexture, width, height, false);
+  }
+
+  /**
+   * @param surfaceTexture     the texture to render into, or null to render into an offscreen
+   *                           pbuffer of the given size
+   * @param sharedRenderThread true to render on a single GL thread shared by all maps, with the
+   *                           EGL contexts of those maps in one share group
+   */
+  public FlutterMap(Context context, MapboxMapOptions options, SurfaceTexture surfaceTexture, int width, int height,
+                    boolean sharedRenderThread) {
     this.context = context;
     this.width = width;
     this.height = height;
+    this.sharedRenderThread = sharedRenderThread;
 
+    // The render thread starts creating the EGL context right away, in parallel with the
+    // native map and style setup below
     String localFontFamily = options.getLocalIdeographFontFamily();
     boolean translucentSurface = options.getTranslucentTextureSurface();
     mapRenderer = new SurfaceTextureMapRenderer(context, surfaceTexture, width, height, localFontFamily,
-        translucentSurface);
+        translucentSurface, sharedRenderThread);
 
     nativeMapView = new NativeMapView(context, this, mapRenderer);
     nativeMapView.addOnMapChangedListener(this);
-    nativeMapView.setStyleUrl(options.getStyle());
+    setStyle(options.getStyle());
     nativeMapView.resizeView(width, height);
     nativeMapView.setReachability(ConnectivityReceiver.instance(context).isConnected(context));
     nativeMapView.update();
@@ -41,6 +99,9 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
     if (cameraPosition != null) {
       nativeMapView.jumpTo(cameraPosition.bearing, cameraPosition.target, cameraPosition.tilt, cameraPosition.zoom);
     }
+
+    pixelRatio = nativeMapView.getPixelRatio();
+    zoom = nativeMapView.getZoom();
   }
 
   @Override
@@ -53,6 +114,13 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
     return height;
   }
 
+  /**
+   * @return the physical pixels per logical pixel
+   */
+  public float getPixelRatio() {
+    return pixelRatio;
+  }
+
   @Override
   public Bitmap getViewContent() {
     return null;
@@ -60,7 +128,76 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
 
   @Override
   public void onMapChanged(int change) {
+    switch (change) {
+      case MapView.REGION_IS_CHANGING:
+      case MapView.REGION_DID_CHANGE:
+      case MapView.REGION_DID_CHANGE_ANIMATED:
+        zoom = nativeMapView.getZoom();
+        break;
+      case MapView.DID_FINISH_LOADING_STYLE:
+        clearStyleJsonCache();
+        break;
+      default:
+        break;
+    }
+  }
+
+  public void addOnMapChangedListener(MapView.OnMapChangedListener listener) {
+    nativeMapView.addOnMapChangedListener(listener);
+  }
+
+  public void removeOnMapChangedListener(MapView.OnMapChangedListener listener) {
+    nativeMapView.removeOnMapChangedListener(listener);
+  }
+
+  /**
+   * @return the {@link System#nanoTime()} the EGL context was created at, or 0 when it is not
+   * created yet
+   */
+  public long getContextCreatedNanos() {
+    return mapRenderer.getSurfaceCreatedNanos();
+  }
+
+  public boolean isSharedRenderThread() {
+    return sharedRenderThread;
+  }
+
+  /**
+   * Renders into a new SurfaceTexture of the same size, keeping the map, its style and the
+   * EGL context with everything loaded into it.
+   */
+  public void attachSurface(SurfaceTexture surfaceTexture) {
+    mapRenderer.setSurfaceTexture(surfaceTexture, width, height);
+  }
+
+  /**
+   * Stops rendering into the current SurfaceTexture and waits until the render thread no
+   * longer uses it, so it can be released right after. Pending snapshots are failed.
+   */
+  public void detachSurface() {
+    mapRenderer.releaseSurfaceTexture();
+  }
 
+  /**
+   * Resizes the map and its render surface in place. The render thread applies the new
+   * surface size in the same pass as the next frame.
+   */
+  public void resize(int width, int height) {
+    if (width == this.width && height == this.height) {
+      return;
+    }
+
+    this.width = width;
+    this.height = height;
+    mapRenderer.resize(width, height);
+    nativeMapView.resizeView(width, height);
+  }
+
+  /**
+   * Schedules a new frame even when nothing changed.
+   */
+  public void triggerRepaint() {
+    nativeMapView.update();
   }
 
   public void onStart() {
@@ -91,7 +228,31 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
     mapRenderer.onDestroy();
   }
 
+  public void setTargetFrameRate(int targetFps) {
+    mapRenderer.setTargetFrameRate(targetFps);
+  }
+
+  public void setRenderStatsEnabled(boolean enabled) {
+    mapRenderer.setRenderStatsEnabled(enabled);
+  }
+
+  /**
+   * Reads back the next rendered frame, see {@link SurfaceTextureMapRenderer#snapshot}.
+   */
+  public void snapshot(SnapshotCallback callback) {
+    mapRenderer.snapshot(callback);
+  }
+
+  public RenderStats getRenderStats() {
+    return mapRenderer.getRenderStats();
+  }
+
   public void setStyleUrl(String styleUrl){
+    styleJson = null;
+    parsedStyleJson = null;
+    runtimeStyleChanged = false;
+    runtimeSourceIds.clear();
+    clearStyleJsonCache();
     nativeMapView.setStyleUrl(styleUrl);
   }
 
@@ -99,42 +260,263 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
     return nativeMapView.getStyleUrl();
   }
 
+  /**
+   * @return whether style is a style JSON document rather than a style URL
+   */
+  public static boolean isStyleJson(String style) {
+    return style != null && style.trim().startsWith("{");
+  }
+
+  /**
+   * Loads a style URL or style JSON document, see {@link #isStyleJson}.
+   */
+  public void setStyle(String style) {
+    if (isStyleJson(style)) {
+      setStyleJson(style);
+    } else {
+      setStyleUrl(style);
+    }
+  }
+
+  /**
+   * @return whether the style was loaded from this style URL, or applied as this style JSON
+   * document, see {@link #isStyleJson}
+   */
+  public boolean hasStyle(String style) {
+    if (isStyleJson(style)) {
+      return style.equals(styleJson);
+    }
+    return styleJson == null && style != null && style.equals(getStyleUrl());
+  }
+
   public void setStyleJson(String styleJson) {
+    setStyleJson(styleJson, null);
+  }
+
+  /**
+   * @param parsedStyleJson the parsed style JSON, or null when it was not parsed
+   */
+  public void setStyleJson(String styleJson, JSONObject parsedStyleJson) {
+    this.styleJson = styleJson;
+    this.parsedStyleJson = parsedStyleJson;
+    runtimeStyleChanged = false;
+    runtimeSourceIds.clear();
+    clearStyleJsonCache();
     nativeMapView.setStyleJson(styleJson);
   }
 
+  /**
+   * @return the style JSON last loaded or patched into the map, null when the style was loaded
+   * from a URL
+   */
+  public String getAppliedStyleJson() {
+    return styleJson;
+  }
+
+  /**
+   * @return the parsed {@link #getAppliedStyleJson()}, null when it was not parsed yet. Must not
+   * be modified.
+   */
+  public JSONObject getParsedAppliedStyleJson() {
+    return parsedStyleJson;
+  }
+
+  /**
+   * Records a style JSON that was applied through the runtime style API instead of a reload.
+   *
+   * @param parsedStyleJson the parsed style JSON, or null when it was not parsed
+   */
+  public void setAppliedStyleJson(String styleJson, JSONObject parsedStyleJson) {
+    this.styleJson = styleJson;
+    this.parsedStyleJson = parsedStyleJson;
+    clearStyleJsonCache();
+  }
+
+  public Layer getLayer(String layerId) {
+    return nativeMapView.getLayer(layerId);
+  }
+
+  public boolean removeLayer(String layerId) {
+    return nativeMapView.removeLayer(layerId);
+  }
+
+  public Source getSource(String sourceId) {
+    return nativeMapView.getSource(sourceId);
+  }
+
+  /**
+   * Replaces the data of a GeoJSON source, adding the source when the style has none with
+   * that id yet.
+   *
+   * @return false when the style holds a source with that id that is not a GeoJSON source
+   */
+  public boolean setGeoJson(String sourceId, String geoJson) {
+    Source source = nativeMapView.getSource(sourceId);
+    if (source == null) {
+      nativeMapView.addSource(new GeoJsonSource(sourceId, geoJson));
+      runtimeSourceIds.add(sourceId);
+      onRuntimeStyleChanged();
+      return true;
+    }
+
+    if (!(source instanceof GeoJsonSource)) {
+      return false;
+    }
+    ((GeoJsonSource) source).setGeoJson(geoJson);
+    onRuntimeStyleChanged();
+    return true;
+  }
+
+  /**
+   * Removes the sources added through {@link #setGeoJson}, leaving the style as loaded.
+   */
+  public void removeRuntimeSources() {
+    if (runtimeSourceIds.isEmpty()) {
+      return;
+    }
+    for (String sourceId : runtimeSourceIds) {
+      nativeMapView.removeSource(sourceId);
+    }
+    runtimeSourceIds.clear();
+    onRuntimeStyleChanged();
+  }
+
+  /**
+   * The style no longer matches the applied style JSON, read it back from native from now on.
+   */
+  private void onRuntimeStyleChanged() {
+    runtimeStyleChanged = true;
+    clearStyleJsonCache();
+  }
+
+  /**
+   * @return the current style JSON. A style applied as JSON is returned as is until sources are
+   * changed at runtime, otherwise the style is read back from native once and cached until the
+   * style changes.
+   */
   public String getStyleJson(){
-    return nativeMapView.getStyleJson();
+    if (styleJson != null && !runtimeStyleChanged) {
+      return styleJson;
+    }
+    if (cachedStyleJson == null) {
+      String json = nativeMapView.getStyleJson();
+      if (json == null || json.isEmpty()) {
+        // Still loading, do not cache
+        return json;
+      }
+      cachedStyleJson = json;
+    }
+    return cachedStyleJson;
+  }
+
+  /**
+   * @return the UTF-8 encoding of {@link #getStyleJson()}, cached until the style changes
+   */
+  public byte[] getStyleJsonBytes() {
+    String json = getStyleJson();
+    if (json == null) {
+      return null;
+    }
+    if (cachedStyleJsonBytes == null) {
+      cachedStyleJsonBytes = json.getBytes(Charset.forName("UTF-8"));
+    }
+    return cachedStyleJsonBytes;
+  }
+
+  /**
+   * @return a counter that changes whenever {@link #getStyleJson()} may return another document
+   */
+  public int getStyleGeneration() {
+    return styleGeneration;
+  }
+
+  private void clearStyleJsonCache() {
+    cachedStyleJson = null;
+    cachedStyleJsonBytes = null;
+    styleGeneration++;
   }
 
   public void moveBy(double dx, double dy, long duration) {
     nativeMapView.moveBy(dx, dy, duration);
+    refreshZoom();
   }
 
   public void easeTo(CameraPosition cameraPosition, int duration, boolean easingInterpolator) {
     nativeMapView.easeTo(cameraPosition.bearing, cameraPosition.target, duration, cameraPosition.tilt,
         cameraPosition.zoom, easingInterpolator);
+    refreshZoom();
   }
 
   public void flyTo(CameraPosition cameraPosition, int duration) {
     nativeMapView.flyTo(cameraPosition.bearing, cameraPosition.target, duration, cameraPosition.tilt,
         cameraPosition.zoom);
+    refreshZoom();
+  }
+
+  public CameraPosition getCameraPosition() {
+    return nativeMapView.getCameraPosition();
+  }
+
+  /**
+   * Writes the camera, the visible bounds, the meters per pixel at the center and the zoom
+   * limits into the given array, laid out as described by the CAMERA_ constants. The bounds
+   * enclose the four corners of the view, so they cover rotated and tilted views as well.
+   *
+   * @param state the output array, at least {@link #CAMERA_STATE_SIZE} long
+   */
+  public void getCameraState(double[] state) {
+    CameraPosition cameraPosition = nativeMapView.getCameraPosition();
+    double latitude = cameraPosition.target.getLatitude();
+    state[CAMERA_LATITUDE] = latitude;
+    state[CAMERA_LONGITUDE] = cameraPosition.target.getLongitude();
+    state[CAMERA_ZOOM] = cameraPosition.zoom;
+    state[CAMERA_BEARING] = cameraPosition.bearing;
+    state[CAMERA_TILT] = cameraPosition.tilt;
+
+    double south = Double.MAX_VALUE;
+    double west = Double.MAX_VALUE;
+    double north = -Double.MAX_VALUE;
+    double east = -Double.MAX_VALUE;
+    PointF corner = new PointF();
+    for (int i = 0; i < 4; i++) {
+      corner.set((i & 1) == 0 ? 0 : width, (i & 2) == 0 ? 0 : height);
+      LatLng latLng = nativeMapView.latLngForPixel(corner);
+      south = Math.min(south, latLng.getLatitude());
+      north = Math.max(north, latLng.getLatitude());
+      west = Math.min(west, latLng.getLongitude());
+      east = Math.max(east, latLng.getLongitude());
+    }
+    state[CAMERA_SOUTH] = south;
+    state[CAMERA_WEST] = west;
+    state[CAMERA_NORTH] = north;
+    state[CAMERA_EAST] = east;
+
+    state[CAMERA_METERS_PER_PIXEL] =
+        MercatorProjection.metersPerPixelAtLatitude(latitude, cameraPosition.zoom) / pixelRatio;
+    state[CAMERA_MIN_ZOOM] = nativeMapView.getMinZoom();
+    state[CAMERA_MAX_ZOOM] = nativeMapView.getMaxZoom();
   }
 
   public void jumpTo(CameraPosition cameraPosition) {
     nativeMapView.jumpTo(cameraPosition.bearing, cameraPosition.target, cameraPosition.tilt, cameraPosition.zoom);
+    refreshZoom();
   }
 
+  /**
+   * Answered from the cached zoom level without calling into native, safe to call from any thread.
+   */
   public double getMetersPerPixelAtLatitude(double latitude){
-    return nativeMapView.getMetersPerPixelAtLatitude(latitude);
+    return MercatorProjection.metersPerPixelAtLatitude(latitude, zoom) / pixelRatio;
   }
 
   public ProjectedMeters getProjecteMeters(LatLng latLng){
-    return nativeMapView.projectedMetersForLatLng(latLng);
+    return new ProjectedMeters(MercatorProjection.northing(latLng.getLatitude()),
+        MercatorProjection.easting(latLng.getLongitude()));
   }
 
   public LatLng getLatLng(ProjectedMeters projectedMeters){
-    return nativeMapView.latLngForProjectedMeters(projectedMeters);
+    return new LatLng(MercatorProjection.latitude(projectedMeters.getNorthing()),
+        MercatorProjection.longitude(projectedMeters.getEasting()));
   }
 
   public LatLng getLatLng(PointF screenPoint){
@@ -145,12 +527,69 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
     return nativeMapView.pixelForLatLng(latLng);
   }
 
+  /**
+   * Projects packed [lat, lng, ...] pairs to packed [x, y, ...] screen pixels. The input
+   * {@link LatLng} is reused, but the native call still returns a new {@link PointF} per point.
+   *
+   * @param latLngs the packed coordinates
+   * @param pixels  the output array, at least as long as latLngs
+   */
+  public void getPixelsForLatLngs(double[] latLngs, double[] pixels) {
+    LatLng latLng = new LatLng();
+    for (int i = 0; i + 1 < latLngs.length; i += 2) {
+      latLng.setLatitude(latLngs[i]);
+      latLng.setLongitude(latLngs[i + 1]);
+      PointF pixel = nativeMapView.pixelForLatLng(latLng);
+      pixels[i] = pixel.x;
+      pixels[i + 1] = pixel.y;
+    }
+  }
+
+  /**
+   * Unprojects packed [x, y, ...] screen pixels to packed [lat, lng, ...] pairs. The input
+   * {@link PointF} is reused, but the native call still returns a new {@link LatLng} per point.
+   *
+   * @param pixels  the packed screen pixels
+   * @param latLngs the output array, at least as long as pixels
+   */
+  public void getLatLngsForPixels(double[] pixels, double[] latLngs) {
+    PointF pixel = new PointF();
+    for (int i = 0; i + 1 < pixels.length; i += 2) {
+      pixel.set((float) pixels[i], (float) pixels[i + 1]);
+      LatLng latLng = nativeMapView.latLngForPixel(pixel);
+      latLngs[i] = latLng.getLatitude();
+      latLngs[i + 1] = latLng.getLongitude();
+    }
+  }
+
+  /**
+   * Projects packed [lat, lng, ...] pairs to packed [northing, easting, ...] meters.
+   *
+   * @param latLngs the packed coordinates
+   * @param meters  the output array, at least as long as latLngs
+   */
+  public void getProjectedMetersForLatLngs(double[] latLngs, double[] meters) {
+    MercatorProjection.projectedMetersForLatLngs(latLngs, meters);
+  }
+
   public double getMinZoom() {
     return nativeMapView.getMinZoom();
   }
 
   public void setMinZoom(double zoom) {
     nativeMapView.setMinZoom(zoom);
+    refreshZoom();
+  }
+
+  /**
+   * Enables loading lower zoom tiles as placeholders while the tiles of the current zoom load.
+   */
+  public void setPrefetchesTiles(boolean enable) {
+    nativeMapView.setPrefetchesTiles(enable);
+  }
+
+  public boolean getPrefetchesTiles() {
+    return nativeMapView.getPrefetchesTiles();
   }
 
   public double getMaxZoom() {
@@ -159,6 +598,7 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
 
   public void setMaxZoom(double zoom) {
     nativeMapView.setMaxZoom(zoom);
+    refreshZoom();
   }
 
   public double getZoom() {
@@ -167,5 +607,14 @@ public class FlutterMap implements NativeMapView.ViewCallback, MapView.OnMapChan
 
   public void zoom(double zoom, PointF focalPoint, long duration) {
     nativeMapView.setZoom(zoom, focalPoint, duration);
+    refreshZoom();
+  }
+
+  /**
+   * Keeps the cached zoom level current for camera changes made from here, which may be read
+   * before their region change events are delivered.
+   */
+  private void refreshZoom() {
+    zoom = nativeMapView.getZoom();
   }
 }
@@ -0,0 +1,93 @@
+package com.mapbox.mapboxsdk.maps;
+
+/**
+ * Spherical Web Mercator math, mirroring mbgl::Projection.
+ * <p>
+ * These conversions are closed-form and independent of the render thread, so they can be
+ * answered on any thread without going through JNI. Methods are allocation free and the bulk
+ * variants operate on packed primitive arrays.
+ * </p>
+ */
+public final class MercatorProjection {
+
+  public static final double EARTH_RADIUS_M = 6378137;
+  public static final double LATITUDE_MAX = 85.051128779806604;
+  public static final double LONGITUDE_MAX = 180;
+  public static final double MIN_ZOOM = 0;
+  public static final double MAX_ZOOM = 25.5;
+  public static final int TILE_SIZE = 512;
+
+  private static final double DEG2RAD = Math.PI / 180.0;
+  private static final double RAD2DEG = 180.0 / Math.PI;
+  private static final double SIN_LATITUDE_LIMIT = 1 - 1e-15;
+
+  private MercatorProjection() {
+  }
+
+  /**
+   * Returns the ground resolution at a latitude, in meters per logical pixel of a 512px tile.
+   *
+   * @param latitude the latitude
+   * @param zoom     the zoom level
+   * @return the meters per pixel
+   */
+  public static double metersPerPixelAtLatitude(double latitude, double zoom) {
+    double constrainedZoom = clamp(zoom, MIN_ZOOM, MAX_ZOOM);
+    double constrainedScale = Math.pow(2.0, constrainedZoom);
+    double constrainedLatitude = clamp(latitude, -LATITUDE_MAX, LATITUDE_MAX);
+    return Math.cos(constrainedLatitude * DEG2RAD) * 2 * Math.PI * EARTH_RADIUS_M / (constrainedScale * TILE_SIZE);
+  }
+
+  public static double northing(double latitude) {
+    double constrainedLatitude = clamp(latitude, -LATITUDE_MAX, LATITUDE_MAX);
+    double f = clamp(Math.sin(DEG2RAD * constrainedLatitude), -SIN_LATITUDE_LIMIT, SIN_LATITUDE_LIMIT);
+    return 0.5 * EARTH_RADIUS_M * Math.log((1 + f) / (1 - f));
+  }
+
+  public static double easting(double longitude) {
+    return EARTH_RADIUS_M * clamp(longitude, -LONGITUDE_MAX, LONGITUDE_MAX) * DEG2RAD;
+  }
+
+  public static double latitude(double northing) {
+    double latitude = RAD2DEG * (2 * Math.atan(Math.exp(northing / EARTH_RADIUS_M)) - (Math.PI / 2.0));
+    return clamp(latitude, -LATITUDE_MAX, LATITUDE_MAX);
+  }
+
+  public static double longitude(double easting) {
+    return clamp(easting * RAD2DEG / EARTH_RADIUS_M, -LONGITUDE_MAX, LONGITUDE_MAX);
+  }
+
+  /**
+   * Projects packed [lat, lng, ...] pairs to packed [northing, easting, ...] meters.
+   *
+   * @param latLngs the packed coordinates
+   * @param meters  the output array, at least as long as latLngs; may be latLngs itself
+   */
+  public static void projectedMetersForLatLngs(double[] latLngs, double[] meters) {
+    for (int i = 0; i + 1 < latLngs.length; i += 2) {
+      double latitude = latLngs[i];
+      double longitude = latLngs[i + 1];
+      meters[i] = northing(latitude);
+      meters[i + 1] = easting(longitude);
+    }
+  }
+
+  /**
+   * Unprojects packed [northing, easting, ...] meters to packed [lat, lng, ...] pairs.
+   *
+   * @param meters  the packed projected meters
+   * @param latLngs the output array, at least as long as meters; may be meters itself
+   */
+  public static void latLngsForProjectedMeters(double[] meters, double[] latLngs) {
+    for (int i = 0; i + 1 < meters.length; i += 2) {
+      double northing = meters[i];
+      double easting = meters[i + 1];
+      latLngs[i] = latitude(northing);
+      latLngs[i + 1] = longitude(easting);
+    }
+  }
+
+  static double clamp(double value, double min, double max) {
+    return value < min ? min : (value > max ? max : value);
+  }
+}
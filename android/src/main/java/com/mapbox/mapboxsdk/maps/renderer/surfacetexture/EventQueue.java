@@ -0,0 +1,85 @@
+package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free multi-producer single-consumer queue of render thread events.
+ * <p>
+ * Producers on any thread append with a single atomic swap of the tail; the render thread is
+ * the only consumer and drains all events that were queued before the drain started.
+ * </p>
+ */
+class EventQueue {
+
+  private final AtomicReference<Node> tail;
+
+  // Consumer side only
+  private Node head;
+
+  EventQueue() {
+    head = new Node(null, 0);
+    tail = new AtomicReference<>(head);
+  }
+
+  /**
+   * May be called from any thread
+   *
+   * @param runnable      the event
+   * @param queuedAtNanos the time the event was queued, or 0 when not tracked
+   */
+  void offer(Runnable runnable, long queuedAtNanos) {
+    Node node = new Node(runnable, queuedAtNanos);
+    Node previous = tail.getAndSet(node);
+    previous.next = node;
+  }
+
+  /**
+   * Only called from the consumer thread. An event counts as queued as soon as its producer
+   * swapped the tail, even if it has not linked the node yet.
+   */
+  boolean isEmpty() {
+    return tail.get() == head;
+  }
+
+  /**
+   * Runs every event queued before this call, in order. Events queued while draining are left
+   * for the next drain so a busy producer cannot starve the render loop.
+   * Only called from the consumer thread.
+   *
+   * @param stats receives the queue wait of every event, may be null
+   * @return the number of events that were run
+   */
+  int drain(RenderStats stats) {
+    Node last = tail.get();
+    int count = 0;
+    while (head != last) {
+      Node next = head.next;
+      while (next == null) {
+        // A producer swapped the tail but has not linked its node yet
+        Thread.yield();
+        next = head.next;
+      }
+
+      head = next;
+      Runnable runnable = next.runnable;
+      next.runnable = null;
+      if (stats != null && next.queuedAtNanos != 0) {
+        stats.onEventRun(System.nanoTime() - next.queuedAtNanos);
+      }
+      runnable.run();
+      count++;
+    }
+    return count;
+  }
+
+  private static final class Node {
+    private final long queuedAtNanos;
+    private Runnable runnable;
+    private volatile Node next;
+
+    Node(Runnable runnable, long queuedAtNanos) {
+      this.runnable = runnable;
+      this.queuedAtNanos = queuedAtNanos;
+    }
+  }
+}
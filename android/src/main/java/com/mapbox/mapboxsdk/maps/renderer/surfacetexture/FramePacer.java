@@ -0,0 +1,72 @@
+package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Aligns render requests with display vsync using {@link Choreographer} callbacks on the main
+ * thread. Any number of {@link #schedule()} calls between two vsyncs result in a single frame
+ * callback, and vsyncs are skipped as needed to stay at or below the target frame rate.
+ */
+class FramePacer implements Choreographer.FrameCallback {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final Runnable onFrame;
+  private final Runnable postFrameCallback = new Runnable() {
+    @Override
+    public void run() {
+      Choreographer.getInstance().postFrameCallback(FramePacer.this);
+    }
+  };
+
+  private volatile long frameIntervalNanos;
+
+  // Main thread only
+  private long lastFrameTimeNanos;
+
+  /**
+   * @param targetFps the maximum frame rate, vsyncs beyond it are skipped
+   * @param onFrame   invoked on the main thread when a frame is due
+   */
+  FramePacer(int targetFps, Runnable onFrame) {
+    this.onFrame = onFrame;
+    setTargetFps(targetFps);
+  }
+
+  void setTargetFps(int targetFps) {
+    frameIntervalNanos = NANOS_PER_SECOND / targetFps;
+  }
+
+  long getFrameIntervalNanos() {
+    return frameIntervalNanos;
+  }
+
+  /**
+   * Requests a frame callback on the next suitable vsync. May be called from any thread.
+   */
+  void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      mainHandler.post(postFrameCallback);
+    }
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    // Allow some vsync jitter so a 60 fps target is not halved on a 60 Hz display
+    long interval = frameIntervalNanos;
+    if (frameTimeNanos - lastFrameTimeNanos < interval - interval / 8) {
+      Choreographer.getInstance().postFrameCallback(this);
+      return;
+    }
+
+    lastFrameTimeNanos = frameTimeNanos;
+    scheduled.set(false);
+    onFrame.run();
+  }
+}
@@ -0,0 +1,69 @@
+package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of direct byte buffers for frame read backs, so repeated snapshots do not
+ * allocate a new frame sized buffer each time. Buffers may be acquired and released on any
+ * thread.
+ */
+public final class PixelBufferPool {
+
+  private static final int MAX_POOLED = 4;
+
+  private static final List<ByteBuffer> buffers = new ArrayList<>();
+
+  private PixelBufferPool() {
+  }
+
+  /**
+   * @param capacity the number of bytes needed
+   * @return a cleared buffer with its limit set to the given capacity
+   */
+  public static ByteBuffer acquire(int capacity) {
+    synchronized (buffers) {
+      // Take the smallest pooled buffer that fits
+      int best = -1;
+      for (int i = 0; i < buffers.size(); i++) {
+        int available = buffers.get(i).capacity();
+        if (available >= capacity && (best == -1 || available < buffers.get(best).capacity())) {
+          best = i;
+        }
+      }
+
+      if (best != -1) {
+        ByteBuffer buffer = buffers.remove(best);
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+      }
+    }
+
+    return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Returns a buffer to the pool. When the pool is full the smallest buffer is dropped.
+   */
+  public static void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+
+    synchronized (buffers) {
+      buffers.add(buffer);
+      if (buffers.size() > MAX_POOLED) {
+        int smallest = 0;
+        for (int i = 1; i < buffers.size(); i++) {
+          if (buffers.get(i).capacity() < buffers.get(smallest).capacity()) {
+            smallest = i;
+          }
+        }
+        buffers.remove(smallest);
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records per-frame timings of a render thread into fixed size primitive ring buffers.
+ * <p>
+ * Frames are written by the render thread only and published through a volatile frame
+ * counter, so recording never blocks. Readers copy the buffers without locking; a frame that is
+ * written concurrently with a read may show up partially, which is acceptable for statistics.
+ * </p>
+ */
+public class RenderStats {
+
+  private static final int CAPACITY = 256;
+  private static final int MASK = CAPACITY - 1;
+  private static final long NANOS_PER_MICRO = 1000;
+  private static final long DEFAULT_FRAME_BUDGET_NANOS = 16666667;
+
+  // Upper bounds of the frame time histogram buckets, the last bucket is unbounded
+  private static final int[] HISTOGRAM_BOUNDS_MS = {4, 8, 12, 16, 24, 33, 50};
+
+  private final long[] drawNanos = new long[CAPACITY];
+  private final long[] swapNanos = new long[CAPACITY];
+  private final long[] queueWaitNanos = new long[CAPACITY];
+  private final int[] eventsPerFrame = new int[CAPACITY];
+  private final long[] histogram = new long[HISTOGRAM_BOUNDS_MS.length + 1];
+  private final AtomicLong renderRequests = new AtomicLong();
+
+  // Render thread only, published through frameCount
+  private int pendingEvents;
+  private long pendingMaxQueueWaitNanos;
+  private long droppedFrames;
+  private volatile long frameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+  private volatile long frameCount;
+
+  void setFrameBudget(long frameBudgetNanos) {
+    this.frameBudgetNanos = frameBudgetNanos > 0 ? frameBudgetNanos : DEFAULT_FRAME_BUDGET_NANOS;
+  }
+
+  /**
+   * May be called from any thread
+   */
+  void onRenderRequested() {
+    renderRequests.incrementAndGet();
+  }
+
+  /**
+   * Called on the render thread for every event run, with the time it spent queued.
+   */
+  void onEventRun(long queueWaitNanos) {
+    pendingEvents++;
+    if (queueWaitNanos > pendingMaxQueueWaitNanos) {
+      pendingMaxQueueWaitNanos = queueWaitNanos;
+    }
+  }
+
+  /**
+   * Called on the render thread after each swap.
+   */
+  void onFrame(long drawNanos, long swapNanos) {
+    long frame = frameCount;
+    int index = (int) (frame & MASK);
+    this.drawNanos[index] = drawNanos;
+    this.swapNanos[index] = swapNanos;
+    this.queueWaitNanos[index] = pendingMaxQueueWaitNanos;
+    this.eventsPerFrame[index] = pendingEvents;
+    pendingEvents = 0;
+    pendingMaxQueueWaitNanos = 0;
+
+    long frameNanos = drawNanos + swapNanos;
+    if (frameNanos > frameBudgetNanos) {
+      droppedFrames++;
+    }
+
+    int bucket = 0;
+    long frameMs = frameNanos / 1000000;
+    while (bucket < HISTOGRAM_BOUNDS_MS.length && frameMs >= HISTOGRAM_BOUNDS_MS[bucket]) {
+      bucket++;
+    }
+    histogram[bucket]++;
+
+    frameCount = frame + 1;
+  }
+
+  /**
+   * Summarizes the recorded frames. Durations are reported in microseconds over the most
+   * recent frames still in the ring buffers; counters cover the lifetime of the stats.
+   *
+   * @return the summary as channel-friendly values
+   */
+  public Map<String, Object> toMap() {
+    long frames = frameCount;
+    int count = (int) Math.min(frames, CAPACITY);
+
+    long[] draw = new long[count];
+    long[] swap = new long[count];
+    long[] wait = new long[count];
+    long events = 0;
+    for (int i = 0; i < count; i++) {
+      int index = (int) ((frames - 1 - i) & MASK);
+      draw[i] = drawNanos[index];
+      swap[i] = swapNanos[index];
+      wait[i] = queueWaitNanos[index];
+      events += eventsPerFrame[index];
+    }
+
+    Map<String, Object> stats = new HashMap<>();
+    stats.put("frames", frames);
+    stats.put("droppedFrames", droppedFrames);
+    stats.put("coalescedRequests", Math.max(0, renderRequests.get() - frames));
+    stats.put("draw", percentiles(draw));
+    stats.put("swap", percentiles(swap));
+    stats.put("queueWait", percentiles(wait));
+    stats.put("eventsPerFrame", count > 0 ? (double) events / count : 0.0);
+    stats.put("histogramBoundsMs", HISTOGRAM_BOUNDS_MS.clone());
+    stats.put("histogram", histogram.clone());
+    return stats;
+  }
+
+  private static Map<String, Object> percentiles(long[] values) {
+    Arrays.sort(values);
+    Map<String, Object> result = new HashMap<>();
+    result.put("p50", percentile(values, 0.5));
+    result.put("p90", percentile(values, 0.9));
+    result.put("p99", percentile(values, 0.99));
+    result.put("max", values.length > 0 ? values[values.length - 1] / NANOS_PER_MICRO : 0L);
+    return result;
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.min(sorted.length - 1, Math.round(fraction * (sorted.length - 1)));
+    return sorted[index] / NANOS_PER_MICRO;
+  }
+}
@@ -0,0 +1,300 @@
+package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
+
+import android.graphics.SurfaceTexture;
+import android.support.annotation.NonNull;
+import android.support.annotation.UiThread;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single map surface drawn by a {@link SurfaceTextureRenderThread}.
+ * <p>
+ * Holds the per map render state and offers the methods the {@link SurfaceTextureMapRenderer}
+ * delegates to. A render thread can serve one or several targets; all fields below except the
+ * event queue and stats are guarded by the lock of the owning thread.
+ * </p>
+ */
+class RenderTarget {
+
+  final SurfaceTextureRenderThread thread;
+  final SurfaceTextureMapRenderer mapRenderer;
+  final SurfaceTextureRenderThread.EGLHolder eglHolder;
+  final boolean offscreen;
+
+  // Lock-free, producers only take the lock to wake up the render thread
+  final EventQueue eventQueue = new EventQueue();
+
+  // Opt-in instrumentation, null when disabled
+  volatile RenderStats stats;
+
+  // Guarded by thread.lock
+  SurfaceTexture surface;
+  int width;
+  int height;
+  boolean requestRender;
+  FramePacer framePacer;
+  boolean frameDue;
+  boolean sizeChanged;
+  boolean paused;
+  boolean destroyContext;
+  boolean destroySurface;
+  boolean detachRequested;
+  boolean detached;
+  // Counts the EGL surfaces destroyed on request, see releaseSurface()
+  int surfacesDestroyed;
+  List<SnapshotCallback> snapshotCallbacks;
+
+  RenderTarget(@NonNull SurfaceTextureRenderThread thread, @NonNull SurfaceTextureMapRenderer mapRenderer,
+               @NonNull SurfaceTexture surfaceTexture, int width, int height) {
+    this.thread = thread;
+    this.mapRenderer = mapRenderer;
+    this.eglHolder = new SurfaceTextureRenderThread.EGLHolder(new WeakReference<>(surfaceTexture),
+        mapRenderer.isTranslucentSurface());
+    this.offscreen = false;
+    this.surface = surfaceTexture;
+    this.width = width;
+    this.height = height;
+    this.requestRender = true;
+  }
+
+  /**
+   * Creates a target that renders into an offscreen pbuffer of the given size.
+   */
+  RenderTarget(@NonNull SurfaceTextureRenderThread thread, @NonNull SurfaceTextureMapRenderer mapRenderer,
+               int width, int height) {
+    this.thread = thread;
+    this.mapRenderer = mapRenderer;
+    this.eglHolder = new SurfaceTextureRenderThread.EGLHolder(width, height);
+    this.offscreen = true;
+    this.width = width;
+    this.height = height;
+    this.requestRender = true;
+  }
+
+  @UiThread
+  public void onSurfaceTextureAvailable(final SurfaceTexture surface, final int width, final int height) {
+    synchronized (thread.lock) {
+      if (surface != this.surface) {
+        // Rebinding to another texture, keep the context but replace the EGL surface
+        eglHolder.setSurfaceTexture(surface);
+        this.destroySurface = true;
+      }
+      this.surface = surface;
+      this.width = width;
+      this.height = height;
+      this.requestRender = true;
+      thread.lock.notifyAll();
+    }
+  }
+
+  @UiThread
+  public void onSurfaceTextureSizeChanged(SurfaceTexture surface, final int width, final int height) {
+    synchronized (thread.lock) {
+      if (offscreen) {
+        // A pbuffer has a fixed size, replace it
+        eglHolder.setPbufferSize(width, height);
+        this.destroySurface = true;
+      }
+      this.width = width;
+      this.height = height;
+      this.sizeChanged = true;
+      this.requestRender = true;
+      thread.lock.notifyAll();
+    }
+  }
+
+  @UiThread
+  public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+    synchronized (thread.lock) {
+      this.surface = null;
+      this.destroySurface = true;
+      this.requestRender = false;
+      thread.lock.notifyAll();
+    }
+    return true;
+  }
+
+  /**
+   * Stops rendering into the current SurfaceTexture and waits until the render thread
+   * destroyed its EGL surface, so the SurfaceTexture can be released right after. Snapshots
+   * still waiting for a frame are failed.
+   */
+  @UiThread
+  void releaseSurface() {
+    List<SnapshotCallback> snapshots;
+    synchronized (thread.lock) {
+      int destroyed = surfacesDestroyed;
+      this.surface = null;
+      this.destroySurface = true;
+      this.requestRender = false;
+      thread.lock.notifyAll();
+
+      // Wait for the render thread to destroy the EGL surface
+      while (surfacesDestroyed == destroyed && !this.detached && !thread.exited) {
+        try {
+          thread.lock.wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      snapshots = takeSnapshotCallbacks();
+    }
+
+    if (snapshots != null) {
+      for (SnapshotCallback callback : snapshots) {
+        callback.onSnapshot(null, 0, 0);
+      }
+    }
+  }
+
+  @UiThread
+  public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    // Ignored
+  }
+
+  // MapRenderer delegate methods
+
+  /**
+   * May be called from any thread
+   */
+  void requestRender() {
+    RenderStats stats = this.stats;
+    if (stats != null) {
+      stats.onRenderRequested();
+    }
+
+    synchronized (thread.lock) {
+      if (framePacer != null) {
+        // Wait for the next vsync, requests until then are coalesced into one frame
+        requestRender = true;
+        framePacer.schedule();
+      } else if (!requestRender) {
+        requestRender = true;
+        thread.lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * May be called from any thread
+   */
+  void queueEvent(Runnable runnable) {
+    if (runnable == null) {
+      throw new IllegalArgumentException("runnable must not be null");
+    }
+    eventQueue.offer(runnable, stats != null ? System.nanoTime() : 0);
+    thread.wakeup();
+  }
+
+  /**
+   * Paces rendering to vsync at no more than the given frame rate, or renders on every
+   * request when targetFps is 0 or less.
+   */
+  void setTargetFrameRate(int targetFps) {
+    synchronized (thread.lock) {
+      if (targetFps <= 0) {
+        framePacer = null;
+      } else if (framePacer != null) {
+        framePacer.setTargetFps(targetFps);
+      } else {
+        framePacer = new FramePacer(targetFps, new Runnable() {
+          @Override
+          public void run() {
+            onVsync();
+          }
+        });
+      }
+
+      if (stats != null) {
+        stats.setFrameBudget(framePacer != null ? framePacer.getFrameIntervalNanos() : 0);
+      }
+      thread.lock.notifyAll();
+    }
+  }
+
+  /**
+   * Starts recording frame timings, or stops and discards them.
+   */
+  void setStatsEnabled(boolean enabled) {
+    synchronized (thread.lock) {
+      if (!enabled) {
+        stats = null;
+      } else if (stats == null) {
+        stats = new RenderStats();
+        stats.setFrameBudget(framePacer != null ? framePacer.getFrameIntervalNanos() : 0);
+      }
+    }
+  }
+
+  RenderStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Reads back the next rendered frame. May be called from any thread.
+   */
+  void snapshot(SnapshotCallback callback) {
+    synchronized (thread.lock) {
+      if (snapshotCallbacks == null) {
+        snapshotCallbacks = new ArrayList<>();
+      }
+      snapshotCallbacks.add(callback);
+    }
+    requestRender();
+  }
+
+  /**
+   * Takes the pending snapshot callbacks. Called with the lock held.
+   */
+  List<SnapshotCallback> takeSnapshotCallbacks() {
+    List<SnapshotCallback> callbacks = snapshotCallbacks;
+    snapshotCallbacks = null;
+    return callbacks;
+  }
+
+  private void onVsync() {
+    synchronized (thread.lock) {
+      frameDue = true;
+      thread.lock.notifyAll();
+    }
+  }
+
+  @UiThread
+  void onPause() {
+    synchronized (thread.lock) {
+      this.paused = true;
+      thread.lock.notifyAll();
+    }
+  }
+
+  @UiThread
+  void onResume() {
+    synchronized (thread.lock) {
+      this.paused = false;
+      thread.lock.notifyAll();
+    }
+  }
+
+  /**
+   * Releases the EGL resources of this target on the render thread and waits until it is done.
+   * The render thread exits once its last target is destroyed.
+   */
+  @UiThread
+  void onDestroy() {
+    synchronized (thread.lock) {
+      this.detachRequested = true;
+      thread.lock.notifyAll();
+
+      // Wait for the render thread to release this target
+      while (!this.detached && !thread.exited) {
+        try {
+          thread.lock.wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the pixels of a rendered frame, see {@link SurfaceTextureMapRenderer#snapshot}.
+ */
+public interface SnapshotCallback {
+
+  /**
+   * Called on the render thread right after the frame was read back. Implementations should
+   * hand the pixels off to another thread and return quickly.
+   *
+   * @param pixels the RGBA pixels as read by glReadPixels, bottom row first, or null when the
+   *               map was destroyed before a frame was rendered. The buffer comes from the
+   *               {@link PixelBufferPool} and should be released to it when done.
+   * @param width  the width of the frame
+   * @param height the height of the frame
+   */
+  void onSnapshot(@Nullable ByteBuffer pixels, int width, int height);
+}
@@ -3,6 +3,7 @@ package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
 import android.content.Context;
 import android.graphics.SurfaceTexture;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.view.TextureView;
 
 import com.mapbox.mapboxsdk.maps.renderer.MapRenderer;
@@ -17,27 +18,32 @@ import javax.microedition.khronos.opengles.GL10;
  * @see MapRenderer
  */
 public class SurfaceTextureMapRenderer extends MapRenderer {
-  private SurfaceTextureRenderThread renderThread;
+  private RenderTarget renderTarget;
   private boolean translucentSurface;
+  private volatile long surfaceCreatedNanos;
 
   /**
    * Create a {@link MapRenderer} for the given {@link TextureView}
    *
    * @param context                  the current Context
-   * @param surfaceTexture              the SurfaceTexture
+   * @param surfaceTexture              the SurfaceTexture, or null to render into an offscreen
+   *                                    pbuffer of the given size
    * @param localIdeographFontFamily the local font family
    * @param translucentSurface    the translucency flag
+   * @param sharedRenderThread    true to render on the thread shared by all maps
    */
   public SurfaceTextureMapRenderer(@NonNull Context context,
-                                   @NonNull SurfaceTexture surfaceTexture,
+                                   @Nullable SurfaceTexture surfaceTexture,
                                    int width,
                                    int height,
                                    String localIdeographFontFamily,
-                                   boolean translucentSurface) {
+                                   boolean translucentSurface,
+                                   boolean sharedRenderThread) {
     super(context, localIdeographFontFamily);
     this.translucentSurface = translucentSurface;
-    renderThread = new SurfaceTextureRenderThread(surfaceTexture, width, height, this);
-    renderThread.start();
+    renderTarget = surfaceTexture != null
+        ? SurfaceTextureRenderThread.createTarget(this, surfaceTexture, width, height, sharedRenderThread)
+        : SurfaceTextureRenderThread.createOffscreenTarget(this, width, height);
   }
 
   /**
@@ -46,6 +52,9 @@ public class SurfaceTextureMapRenderer extends MapRenderer {
   @Override
   protected void onSurfaceCreated(GL10 gl, EGLConfig config) {
     super.onSurfaceCreated(gl, config);
+    if (surfaceCreatedNanos == 0) {
+      surfaceCreatedNanos = System.nanoTime();
+    }
   }
 
   /**
@@ -69,7 +78,7 @@ public class SurfaceTextureMapRenderer extends MapRenderer {
    */
   @Override
   public void requestRender() {
-    renderThread.requestRender();
+    renderTarget.requestRender();
   }
 
   /**
@@ -77,7 +86,7 @@ public class SurfaceTextureMapRenderer extends MapRenderer {
    */
   @Override
   public void queueEvent(Runnable runnable) {
-    renderThread.queueEvent(runnable);
+    renderTarget.queueEvent(runnable);
   }
 
   /**
@@ -85,7 +94,7 @@ public class SurfaceTextureMapRenderer extends MapRenderer {
    */
   @Override
   public void onStop() {
-    renderThread.onPause();
+    renderTarget.onPause();
   }
 
   /**
@@ -93,7 +102,7 @@ public class SurfaceTextureMapRenderer extends MapRenderer {
    */
   @Override
   public void onStart() {
-    renderThread.onResume();
+    renderTarget.onResume();
   }
 
   /**
@@ -101,7 +110,83 @@ public class SurfaceTextureMapRenderer extends MapRenderer {
    */
   @Override
   public void onDestroy() {
-    renderThread.onDestroy();
+    renderTarget.onDestroy();
+  }
+
+  /**
+   * Renders into another SurfaceTexture from now on, keeping the EGL context and the
+   * resources loaded into it.
+   *
+   * @param surfaceTexture the SurfaceTexture
+   * @param width          the width of the SurfaceTexture
+   * @param height         the height of the SurfaceTexture
+   */
+  public void setSurfaceTexture(@NonNull SurfaceTexture surfaceTexture, int width, int height) {
+    renderTarget.onSurfaceTextureAvailable(surfaceTexture, width, height);
+  }
+
+  /**
+   * Applies a new size of the current SurfaceTexture, whose default buffer size must already
+   * be updated.
+   *
+   * @param width  the new width of the SurfaceTexture
+   * @param height the new height of the SurfaceTexture
+   */
+  public void resize(int width, int height) {
+    renderTarget.onSurfaceTextureSizeChanged(null, width, height);
+  }
+
+  /**
+   * Stops rendering into the current SurfaceTexture and waits until its EGL surface is
+   * destroyed, pending snapshots are failed. The EGL context is kept until
+   * {@link #onDestroy()}.
+   */
+  public void releaseSurfaceTexture() {
+    renderTarget.releaseSurface();
+  }
+
+  /**
+   * Aligns rendering with vsync at no more than the given frame rate. Render requests between
+   * two frames are coalesced. A value of 0 or less renders on every request.
+   *
+   * @param targetFps the maximum frame rate
+   */
+  public void setTargetFrameRate(int targetFps) {
+    renderTarget.setTargetFrameRate(targetFps);
+  }
+
+  /**
+   * Reads back the next rendered frame and hands its pixels to the callback on the render
+   * thread. A frame is requested if none is pending.
+   *
+   * @param callback receives the pixels
+   */
+  public void snapshot(@NonNull SnapshotCallback callback) {
+    renderTarget.snapshot(callback);
+  }
+
+  /**
+   * Enables or disables recording of frame timings on the render thread.
+   *
+   * @param enabled true to record, false to stop and discard recorded timings
+   */
+  public void setRenderStatsEnabled(boolean enabled) {
+    renderTarget.setStatsEnabled(enabled);
+  }
+
+  /**
+   * @return the recorded frame timings, or null when not enabled
+   */
+  public RenderStats getRenderStats() {
+    return renderTarget.getStats();
+  }
+
+  /**
+   * @return the {@link System#nanoTime()} the EGL context was first made current at, or 0 when
+   * that has not happened yet
+   */
+  public long getSurfaceCreatedNanos() {
+    return surfaceCreatedNanos;
   }
 
   public boolean isTranslucentSurface() {
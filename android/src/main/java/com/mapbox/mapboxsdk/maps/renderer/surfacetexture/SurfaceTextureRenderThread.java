@@ -1,13 +1,17 @@
 package com.mapbox.mapboxsdk.maps.renderer.surfacetexture;
 
 import android.graphics.SurfaceTexture;
+import android.opengl.GLES20;
 import android.support.annotation.NonNull;
 import android.support.annotation.UiThread;
 
 import com.mapbox.mapboxsdk.maps.renderer.egl.EGLConfigChooser;
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
@@ -23,136 +27,123 @@ import timber.log.Timber;
  * The render thread is responsible for managing the communication between the
  * ui thread and the render thread it creates. Also, the EGL and GL contexts
  * are managed from here.
+ * <p>
+ * A thread renders one or more {@link RenderTarget}s. By default every map gets a dedicated
+ * thread; in shared mode all maps are multiplexed on a single thread, with one context per map
+ * in a common share group, and draws are scheduled round-robin. A thread exits once its last
+ * target is destroyed.
+ * </p>
  */
 class SurfaceTextureRenderThread extends Thread {
 
-  private final SurfaceTextureMapRenderer mapRenderer;
-  private final EGLHolder eglHolder;
+  private static final int ACTION_NONE = 0;
+  private static final int ACTION_DETACH = 1;
+  private static final int ACTION_DRAIN_EVENTS = 2;
+  private static final int ACTION_DESTROY_SURFACE = 3;
+  private static final int ACTION_DESTROY_CONTEXT = 4;
+  private static final int ACTION_INITIALIZE_EGL = 5;
+  private static final int ACTION_RECREATE_SURFACE = 6;
+  private static final int ACTION_RENDER = 7;
+
+  private static final Object sharedLock = new Object();
+  private static SurfaceTextureRenderThread sharedThread;
 
   // Lock used for synchronization
-  private final Object lock = new Object();
+  final Object lock = new Object();
+
+  // Set by producers that need the render thread to wake up, see wakeup()
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
 
   // Guarded by lock
-  private final ArrayList<Runnable> eventQueue = new ArrayList<>();
-  private SurfaceTexture surface;
-  private int width;
-  private int height;
-  private boolean requestRender;
-  private boolean sizeChanged;
-  private boolean paused;
-  private boolean destroyContext;
-  private boolean destroySurface;
+  private final List<RenderTarget> targets = new ArrayList<>();
+  private int nextTarget;
   private boolean shouldExit;
-  private boolean exited;
+  boolean exited;
+
+  // Render thread only
+  private EGLHolder currentHolder;
+  private EGLContext shareContext = EGL10.EGL_NO_CONTEXT;
+  private int actionWidth;
+  private int actionHeight;
+  private boolean actionSizeChanged;
+  private List<SnapshotCallback> actionSnapshots;
+
+  private SurfaceTextureRenderThread(String name) {
+    super(name);
+  }
 
   /**
-   * Create a render thread for the given TextureView / Maprenderer combination.
+   * Create a render target for the given SurfaceTexture / MapRenderer combination.
    *
+   * @param mapRenderer    the MapRenderer
    * @param surfaceTexture the SurfaceTexture
-   * @param mapRenderer the MapRenderer
+   * @param shared         true to render on the thread shared by all maps
+   * @return the render target
    */
   @UiThread
-  SurfaceTextureRenderThread(@NonNull SurfaceTexture surfaceTexture, int width, int height, @NonNull SurfaceTextureMapRenderer mapRenderer) {
-    this.mapRenderer = mapRenderer;
-    this.eglHolder = new EGLHolder(new WeakReference<>(surfaceTexture), mapRenderer.isTranslucentSurface());
-
-    this.onSurfaceTextureAvailable(surfaceTexture, width, height);
-  }
-
-  @UiThread
-  public void onSurfaceTextureAvailable(final SurfaceTexture surface, final int width, final int height) {
-    synchronized (lock) {
-      this.surface = surface;
-      this.width = width;
-      this.height = height;
-      this.requestRender = true;
-      lock.notifyAll();
+  static RenderTarget createTarget(@NonNull SurfaceTextureMapRenderer mapRenderer,
+                                   @NonNull SurfaceTexture surfaceTexture, int width, int height, boolean shared) {
+    if (!shared) {
+      SurfaceTextureRenderThread thread = new SurfaceTextureRenderThread("MapRenderThread");
+      RenderTarget target = new RenderTarget(thread, mapRenderer, surfaceTexture, width, height);
+      thread.attach(target);
+      thread.start();
+      return target;
     }
-  }
 
-  @UiThread
-  public void onSurfaceTextureSizeChanged(SurfaceTexture surface, final int width, final int height) {
-    synchronized (lock) {
-      this.width = width;
-      this.height = height;
-      this.sizeChanged = true;
-      this.requestRender = true;
-      lock.notifyAll();
-    }
-  }
+    synchronized (sharedLock) {
+      if (sharedThread != null) {
+        RenderTarget target = new RenderTarget(sharedThread, mapRenderer, surfaceTexture, width, height);
+        if (sharedThread.attach(target)) {
+          return target;
+        }
+      }
 
-  @UiThread
-  public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-    synchronized (lock) {
-      this.surface = null;
-      this.destroySurface = true;
-      this.requestRender = false;
-      lock.notifyAll();
+      // No shared thread yet, or it is exiting after its last target was destroyed
+      sharedThread = new SurfaceTextureRenderThread("SharedMapRenderThread");
+      RenderTarget target = new RenderTarget(sharedThread, mapRenderer, surfaceTexture, width, height);
+      sharedThread.attach(target);
+      sharedThread.start();
+      return target;
     }
-    return true;
   }
 
+  /**
+   * Create a render target that draws into an offscreen pbuffer of the given size, on a
+   * dedicated thread.
+   *
+   * @param mapRenderer the MapRenderer
+   * @return the render target
+   */
   @UiThread
-  public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-    // Ignored
+  static RenderTarget createOffscreenTarget(@NonNull SurfaceTextureMapRenderer mapRenderer, int width, int height) {
+    SurfaceTextureRenderThread thread = new SurfaceTextureRenderThread("MapOffscreenRenderThread");
+    RenderTarget target = new RenderTarget(thread, mapRenderer, width, height);
+    thread.attach(target);
+    thread.start();
+    return target;
   }
 
-  // MapRenderer delegate methods
-
-  /**
-   * May be called from any thread
-   */
-  void requestRender() {
+  private boolean attach(RenderTarget target) {
     synchronized (lock) {
-      requestRender = true;
+      if (shouldExit) {
+        return false;
+      }
+      targets.add(target);
       lock.notifyAll();
+      return true;
     }
   }
 
   /**
    * May be called from any thread
    */
-  void queueEvent(Runnable runnable) {
-    if (runnable == null) {
-      throw new IllegalArgumentException("runnable must not be null");
-    }
-    synchronized (lock) {
-      eventQueue.add(runnable);
-      lock.notifyAll();
-    }
-  }
-
-
-  @UiThread
-  void onPause() {
-    synchronized (lock) {
-      this.paused = true;
-      lock.notifyAll();
-    }
-  }
-
-  @UiThread
-  void onResume() {
-    synchronized (lock) {
-      this.paused = false;
-      lock.notifyAll();
-    }
-  }
-
-
-  @UiThread
-  void onDestroy() {
-    synchronized (lock) {
-      this.shouldExit = true;
-      lock.notifyAll();
-
-      // Wait for the thread to exit
-      while (!this.exited) {
-        try {
-          lock.wait();
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
-        }
+  void wakeup() {
+    // Only the first event since the render thread last woke up needs to notify it,
+    // the rest are picked up by the same drain.
+    if (wakeupPending.compareAndSet(false, true)) {
+      synchronized (lock) {
+        lock.notifyAll();
       }
     }
   }
@@ -164,11 +155,11 @@ class SurfaceTextureRenderThread extends Thread {
     try {
 
       while (true) {
-        Runnable event = null;
-        boolean initializeEGL = false;
-        boolean recreateSurface = false;
-        int w = -1;
-        int h = -1;
+        RenderTarget target = null;
+        int action = ACTION_NONE;
+
+        // Reset before checking the queues, so events queued from here on notify again
+        wakeupPending.set(false);
 
         // Guarded block
         synchronized (lock) {
@@ -178,149 +169,353 @@ class SurfaceTextureRenderThread extends Thread {
               return;
             }
 
-            // If any events are scheduled, pop one for processing
-            if (!eventQueue.isEmpty()) {
-              event = eventQueue.remove(0);
-              break;
+            // Serve the targets round-robin, starting after the one served last
+            int count = targets.size();
+            for (int i = 0; i < count; i++) {
+              int index = (nextTarget + i) % count;
+              action = nextAction(targets.get(index));
+              if (action != ACTION_NONE) {
+                target = targets.get(index);
+                nextTarget = (index + 1) % count;
+                break;
+              }
             }
 
-            if (destroySurface) {
-              eglHolder.destroySurface();
-              destroySurface = false;
+            if (action != ACTION_NONE) {
               break;
             }
 
-            if (destroyContext) {
-              eglHolder.destroyContext();
-              destroyContext = false;
-              break;
-            }
+            // Wait until needed
+            lock.wait();
 
-            if (surface != null && !paused && requestRender) {
+          } // end guarded while loop
 
-              w = width;
-              h = height;
+        } // end guarded block
 
-              // Initialize EGL if needed
-              if (eglHolder.eglContext == EGL10.EGL_NO_CONTEXT) {
-                initializeEGL = true;
-                break;
-              }
+        perform(target, action);
+      }
 
-              // (re-)Initialize EGL Surface if needed
-              if (eglHolder.eglSurface == EGL10.EGL_NO_SURFACE) {
-                recreateSurface = true;
-                break;
-              }
+    } catch (InterruptedException err) {
+      // To be expected
+    } finally {
+      // Cleanup
+      synchronized (lock) {
+        for (RenderTarget target : targets) {
+          failSnapshots(target);
+          target.eglHolder.cleanup();
+          target.detached = true;
+        }
+        targets.clear();
 
-              // Reset the request render flag now, so we can catch new requests
-              // while rendering
-              requestRender = false;
+        // Signal we're done
+        this.shouldExit = true;
+        this.exited = true;
+        lock.notifyAll();
+      }
+    }
+  }
 
-              // Break the guarded loop and continue to process
-              break;
-            }
+  /**
+   * Picks the next piece of work for a target. Called with the lock held.
+   */
+  private int nextAction(RenderTarget target) {
+    if (target.detachRequested) {
+      return ACTION_DETACH;
+    }
 
+    // If any events are scheduled, run them all before the next frame
+    if (!target.eventQueue.isEmpty()) {
+      return ACTION_DRAIN_EVENTS;
+    }
 
-            // Wait until needed
-            lock.wait();
+    if (target.destroySurface) {
+      target.destroySurface = false;
+      return ACTION_DESTROY_SURFACE;
+    }
 
-          } // end guarded while loop
+    if (target.destroyContext) {
+      target.destroyContext = false;
+      return ACTION_DESTROY_CONTEXT;
+    }
 
-        } // end guarded block
+    if ((target.surface != null || target.offscreen) && !target.paused && target.requestRender) {
+
+      actionWidth = target.width;
+      actionHeight = target.height;
 
-        // Run event, if any
-        if (event != null) {
-          event.run();
-          continue;
+      // Initialize EGL if needed
+      if (target.eglHolder.eglContext == EGL10.EGL_NO_CONTEXT) {
+        return ACTION_INITIALIZE_EGL;
+      }
+
+      // (re-)Initialize EGL Surface if needed
+      if (target.eglHolder.eglSurface == EGL10.EGL_NO_SURFACE) {
+        return ACTION_RECREATE_SURFACE;
+      }
+
+      // When paced, hold the frame until the next vsync
+      if (target.framePacer != null && !target.frameDue) {
+        target.framePacer.schedule();
+        return ACTION_NONE;
+      }
+
+      // Reset the request render flag now, so we can catch new requests
+      // while rendering
+      target.requestRender = false;
+      target.frameDue = false;
+      actionSizeChanged = target.sizeChanged;
+      target.sizeChanged = false;
+      actionSnapshots = target.takeSnapshotCallbacks();
+      return ACTION_RENDER;
+    }
+
+    return ACTION_NONE;
+  }
+
+  private void perform(RenderTarget target, int action) {
+    EGLHolder eglHolder = target.eglHolder;
+    SurfaceTextureMapRenderer mapRenderer = target.mapRenderer;
+    int w = actionWidth;
+    int h = actionHeight;
+
+    switch (action) {
+      case ACTION_DETACH:
+        detach(target);
+        return;
+
+      case ACTION_DRAIN_EVENTS:
+        // Events may touch GL, so run them against this target's context when it has one,
+        // and against no context rather than another target's
+        if (eglHolder.eglSurface != EGL10.EGL_NO_SURFACE) {
+          makeCurrent(eglHolder);
+        } else if (currentHolder != null) {
+          releaseCurrent(currentHolder);
         }
+        target.eventQueue.drain(target.stats);
+        return;
 
-        GL10 gl = eglHolder.createGL();
+      case ACTION_DESTROY_SURFACE:
+        releaseCurrent(eglHolder);
+        eglHolder.destroySurface();
+        synchronized (lock) {
+          target.surfacesDestroyed++;
+          lock.notifyAll();
+        }
+        return;
 
-        // Initialize EGL
-        if (initializeEGL) {
-          eglHolder.prepare();
-          if (!eglHolder.createSurface()) {
-            synchronized (lock) {
-              // Cleanup the surface if one could not be created
-              // and wait for another to be ready.
-              destroySurface = true;
-            }
-            continue;
+      case ACTION_DESTROY_CONTEXT:
+        releaseCurrent(eglHolder);
+        destroyContext(eglHolder);
+        return;
+
+      case ACTION_INITIALIZE_EGL: {
+        eglHolder.prepare(shareContext);
+        if (shareContext == EGL10.EGL_NO_CONTEXT) {
+          shareContext = eglHolder.eglContext;
+        }
+        boolean surfaceCreated = eglHolder.createSurface();
+        currentHolder = surfaceCreated ? eglHolder : null;
+        if (!surfaceCreated) {
+          synchronized (lock) {
+            // Cleanup the surface if one could not be created
+            // and wait for another to be ready.
+            target.destroySurface = true;
           }
-          mapRenderer.onSurfaceCreated(gl, eglHolder.eglConfig);
-          mapRenderer.onSurfaceChanged(gl, w, h);
-          continue;
+          return;
         }
+        GL10 gl = eglHolder.createGL();
+        mapRenderer.onSurfaceCreated(gl, eglHolder.eglConfig);
+        mapRenderer.onSurfaceChanged(gl, w, h);
+        return;
+      }
 
+      case ACTION_RECREATE_SURFACE: {
         // If the surface size has changed inform the map renderer.
-        if (recreateSurface) {
-          eglHolder.createSurface();
-          mapRenderer.onSurfaceChanged(gl, w, h);
-          continue;
-        }
+        currentHolder = eglHolder.createSurface() ? eglHolder : null;
+        mapRenderer.onSurfaceChanged(eglHolder.createGL(), w, h);
+        return;
+      }
 
-        if (sizeChanged) {
-          mapRenderer.onSurfaceChanged(gl, w, h);
-          sizeChanged = false;
-          continue;
-        }
+      case ACTION_RENDER:
+        render(target, w, h);
+        return;
 
-        // Don't continue without a surface
-        if (eglHolder.eglSurface == EGL10.EGL_NO_SURFACE) {
-          continue;
-        }
+      default:
+        break;
+    }
+  }
 
-        // Time to render a frame
-        mapRenderer.onDrawFrame(gl);
-
-        // Swap and check the result
-        int swapError = eglHolder.swap();
-        switch (swapError) {
-          case EGL10.EGL_SUCCESS:
-            break;
-          case EGL11.EGL_CONTEXT_LOST:
-            Timber.w("Context lost. Waiting for re-aquire");
-            synchronized (lock) {
-              surface = null;
-              destroySurface = true;
-              destroyContext = true;
-            }
-            break;
-          default:
-            Timber.w("eglSwapBuffer error: %s. Waiting or new surface", swapError);
-            // Probably lost the surface. Clear the current one and
-            // wait for a new one to be set
-            synchronized (lock) {
-              surface = null;
-              destroySurface = true;
-            }
+  private void render(RenderTarget target, int w, int h) {
+    EGLHolder eglHolder = target.eglHolder;
+    SurfaceTextureMapRenderer mapRenderer = target.mapRenderer;
+    RenderStats stats = target.stats;
+
+    List<SnapshotCallback> snapshots = actionSnapshots;
+    actionSnapshots = null;
+
+    // Don't continue without a surface
+    if (eglHolder.eglSurface == EGL10.EGL_NO_SURFACE || !makeCurrent(eglHolder)) {
+      requeueSnapshots(target, snapshots);
+      return;
+    }
+
+    GL10 gl = eglHolder.createGL();
+    if (actionSizeChanged) {
+      mapRenderer.onSurfaceChanged(gl, w, h);
+    }
+
+    // Time to render a frame
+    long drawStart = stats != null ? System.nanoTime() : 0;
+    mapRenderer.onDrawFrame(gl);
+
+    // The back buffer still holds the frame until it is swapped
+    if (snapshots != null) {
+      readPixels(snapshots, w, h);
+    }
+
+    // Swap and check the result
+    long swapStart = stats != null ? System.nanoTime() : 0;
+    int swapError = target.offscreen ? EGL10.EGL_SUCCESS : eglHolder.swap();
+    if (stats != null) {
+      stats.onFrame(swapStart - drawStart, System.nanoTime() - swapStart);
+    }
+    switch (swapError) {
+      case EGL10.EGL_SUCCESS:
+        break;
+      case EGL11.EGL_CONTEXT_LOST:
+        Timber.w("Context lost. Waiting for re-aquire");
+        synchronized (lock) {
+          target.surface = null;
+          target.destroySurface = true;
+          target.destroyContext = true;
         }
+        break;
+      default:
+        Timber.w("eglSwapBuffer error: %s. Waiting or new surface", swapError);
+        // Probably lost the surface. Clear the current one and
+        // wait for a new one to be set
+        synchronized (lock) {
+          target.surface = null;
+          target.destroySurface = true;
+        }
+    }
+  }
 
+  /**
+   * Reads the current frame once per callback. GLES 2 has no pixel buffer objects, so the
+   * read back is synchronous; the callbacks take care of any further processing off thread.
+   */
+  private void readPixels(List<SnapshotCallback> snapshots, int w, int h) {
+    GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 1);
+    for (SnapshotCallback callback : snapshots) {
+      ByteBuffer pixels = PixelBufferPool.acquire(w * h * 4);
+      GLES20.glReadPixels(0, 0, w, h, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+      int error = GLES20.glGetError();
+      if (error != GLES20.GL_NO_ERROR) {
+        Timber.w("glReadPixels error: %s", error);
+        PixelBufferPool.release(pixels);
+        pixels = null;
       }
+      callback.onSnapshot(pixels, w, h);
+    }
+  }
 
-    } catch (InterruptedException err) {
-      // To be expected
-    } finally {
-      // Cleanup
-      eglHolder.cleanup();
+  /**
+   * Keeps snapshots for the next frame when this one could not be drawn.
+   */
+  private void requeueSnapshots(RenderTarget target, List<SnapshotCallback> snapshots) {
+    if (snapshots == null) {
+      return;
+    }
 
-      // Signal we're done
-      synchronized (lock) {
-        this.exited = true;
-        lock.notifyAll();
+    synchronized (lock) {
+      if (target.snapshotCallbacks == null) {
+        target.snapshotCallbacks = snapshots;
+      } else {
+        target.snapshotCallbacks.addAll(0, snapshots);
+      }
+    }
+  }
+
+  /**
+   * Fails the snapshots of a target that goes away before it rendered another frame.
+   */
+  private static void failSnapshots(RenderTarget target) {
+    List<SnapshotCallback> snapshots = target.takeSnapshotCallbacks();
+    if (snapshots != null) {
+      for (SnapshotCallback callback : snapshots) {
+        callback.onSnapshot(null, 0, 0);
+      }
+    }
+  }
+
+  private boolean makeCurrent(EGLHolder eglHolder) {
+    if (currentHolder == eglHolder) {
+      return true;
+    }
+
+    currentHolder = eglHolder.makeCurrent() ? eglHolder : null;
+    return currentHolder != null;
+  }
+
+  private void releaseCurrent(EGLHolder eglHolder) {
+    if (currentHolder == eglHolder) {
+      eglHolder.releaseCurrent();
+      currentHolder = null;
+    }
+  }
+
+  private void destroyContext(EGLHolder eglHolder) {
+    boolean wasShareContext = eglHolder.eglContext == shareContext;
+    eglHolder.destroyContext();
+    if (!wasShareContext) {
+      return;
+    }
+
+    // Hand the share group over to another live context, if any
+    shareContext = EGL10.EGL_NO_CONTEXT;
+    synchronized (lock) {
+      for (RenderTarget other : targets) {
+        if (other.eglHolder.eglContext != EGL10.EGL_NO_CONTEXT) {
+          shareContext = other.eglHolder.eglContext;
+          break;
+        }
       }
     }
   }
 
+  private void detach(RenderTarget target) {
+    releaseCurrent(target.eglHolder);
+    target.eglHolder.destroySurface();
+    destroyContext(target.eglHolder);
+    target.eglHolder.terminate();
+
+    synchronized (lock) {
+      failSnapshots(target);
+      targets.remove(target);
+      target.detached = true;
+      if (targets.isEmpty()) {
+        shouldExit = true;
+      }
+      lock.notifyAll();
+    }
+  }
+
   /**
    * Holds the EGL state and offers methods to mutate it.
    */
-  private static class EGLHolder {
+  static class EGLHolder {
     private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
-    private final WeakReference<SurfaceTexture> surfaceTextureWeakRef;
+    private static final int EGL_OPENGL_ES2_BIT = 0x0004;
+    private static final int EGL_RENDERABLE_TYPE = 0x3040;
+
+    private volatile WeakReference<SurfaceTexture> surfaceTextureWeakRef;
     private boolean translucentSurface;
 
+    // Pbuffer size for offscreen rendering, 0 when rendering into a SurfaceTexture
+    private volatile int pbufferWidth;
+    private volatile int pbufferHeight;
+
     private EGL10 egl;
     private EGLConfig eglConfig;
     private EGLDisplay eglDisplay = EGL10.EGL_NO_DISPLAY;
@@ -332,7 +527,37 @@ class SurfaceTextureRenderThread extends Thread {
       this.translucentSurface = translucentSurface;
     }
 
-    void prepare() {
+    /**
+     * Creates a holder that renders into a pbuffer of the given size instead of a SurfaceTexture.
+     */
+    EGLHolder(int pbufferWidth, int pbufferHeight) {
+      this.pbufferWidth = pbufferWidth;
+      this.pbufferHeight = pbufferHeight;
+    }
+
+    boolean isOffscreen() {
+      return pbufferWidth > 0;
+    }
+
+    /**
+     * Sets the size of the next pbuffer surface that is created.
+     */
+    void setPbufferSize(int width, int height) {
+      this.pbufferWidth = width;
+      this.pbufferHeight = height;
+    }
+
+    /**
+     * Sets the SurfaceTexture the next EGL surface is created for.
+     */
+    void setSurfaceTexture(SurfaceTexture surfaceTexture) {
+      this.surfaceTextureWeakRef = new WeakReference<>(surfaceTexture);
+    }
+
+    /**
+     * @param shareContext a context to share GL objects with, or EGL_NO_CONTEXT
+     */
+    void prepare(EGLContext shareContext) {
       this.egl = (EGL10) EGLContext.getEGL();
 
       // Only re-initialize display when needed
@@ -349,14 +574,16 @@ class SurfaceTextureRenderThread extends Thread {
         }
       }
 
-      if (surfaceTextureWeakRef == null) {
+      if (surfaceTextureWeakRef == null && !isOffscreen()) {
         // No texture view present
         eglConfig = null;
         eglContext = EGL10.EGL_NO_CONTEXT;
       } else if (eglContext == EGL10.EGL_NO_CONTEXT) {
-        eglConfig = new EGLConfigChooser(translucentSurface).chooseConfig(egl, eglDisplay);
+        eglConfig = isOffscreen()
+            ? choosePbufferConfig()
+            : new EGLConfigChooser(translucentSurface).chooseConfig(egl, eglDisplay);
         int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
-        eglContext = egl.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attrib_list);
+        eglContext = egl.eglCreateContext(eglDisplay, eglConfig, shareContext, attrib_list);
       }
 
       if (eglContext == EGL10.EGL_NO_CONTEXT) {
@@ -364,6 +591,30 @@ class SurfaceTextureRenderThread extends Thread {
       }
     }
 
+    /**
+     * The map config chooser only considers window configs, pick an RGBA8888 pbuffer config
+     * with the depth and stencil buffers the map needs.
+     */
+    private EGLConfig choosePbufferConfig() {
+      int[] attributes = {
+        EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+        EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+        EGL10.EGL_RED_SIZE, 8,
+        EGL10.EGL_GREEN_SIZE, 8,
+        EGL10.EGL_BLUE_SIZE, 8,
+        EGL10.EGL_ALPHA_SIZE, 8,
+        EGL10.EGL_DEPTH_SIZE, 16,
+        EGL10.EGL_STENCIL_SIZE, 8,
+        EGL10.EGL_NONE
+      };
+      EGLConfig[] configs = new EGLConfig[1];
+      int[] numConfigs = new int[1];
+      if (!egl.eglChooseConfig(eglDisplay, attributes, configs, 1, numConfigs) || numConfigs[0] == 0) {
+        throw new RuntimeException("eglChooseConfig found no pbuffer config");
+      }
+      return configs[0];
+    }
+
     GL10 createGL() {
       return (GL10) eglContext.getGL();
     }
@@ -373,8 +624,11 @@ class SurfaceTextureRenderThread extends Thread {
       destroySurface();
 
       // Create an EGL surface we can render into.
-      SurfaceTexture surfaceTexture = surfaceTextureWeakRef.get();
-      if (surfaceTexture != null) {
+      SurfaceTexture surfaceTexture = surfaceTextureWeakRef != null ? surfaceTextureWeakRef.get() : null;
+      if (isOffscreen()) {
+        int[] surfaceAttribs = {EGL10.EGL_WIDTH, pbufferWidth, EGL10.EGL_HEIGHT, pbufferHeight, EGL10.EGL_NONE};
+        eglSurface = egl.eglCreatePbufferSurface(eglDisplay, eglConfig, surfaceAttribs);
+      } else if (surfaceTexture != null) {
         int[] surfaceAttribs = {EGL10.EGL_NONE};
         eglSurface = egl.eglCreateWindowSurface(eglDisplay, eglConfig, surfaceTexture, surfaceAttribs);
       } else {
@@ -403,6 +657,12 @@ class SurfaceTextureRenderThread extends Thread {
       return true;
     }
 
+    void releaseCurrent() {
+      if (eglDisplay != EGL10.EGL_NO_DISPLAY) {
+        egl.eglMakeCurrent(eglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+      }
+    }
+
     int swap() {
       if (!egl.eglSwapBuffers(eglDisplay, eglSurface)) {
         return egl.eglGetError();
@@ -410,7 +670,7 @@ class SurfaceTextureRenderThread extends Thread {
       return EGL10.EGL_SUCCESS;
     }
 
-    private void destroySurface() {
+    void destroySurface() {
       if (eglSurface == EGL10.EGL_NO_SURFACE) {
         return;
       }
@@ -422,7 +682,7 @@ class SurfaceTextureRenderThread extends Thread {
       eglSurface = EGL10.EGL_NO_SURFACE;
     }
 
-    private void destroyContext() {
+    void destroyContext() {
       if (eglContext == EGL10.EGL_NO_CONTEXT) {
         return;
       }
@@ -434,7 +694,7 @@ class SurfaceTextureRenderThread extends Thread {
       eglContext = EGL10.EGL_NO_CONTEXT;
     }
 
-    private void terminate() {
+    void terminate() {
       if (eglDisplay == EGL10.EGL_NO_DISPLAY) {
         return;
       }
@@ -0,0 +1,64 @@
+package com.mapbox.mapboxsdk.maps;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MercatorProjectionTest {
+
+  private static final double DELTA_M = 1e-3;
+  private static final double DELTA_DEGREES = 1e-9;
+
+  // Half the circumference of the earth at the equator, the extent of Web Mercator
+  private static final double HALF_CIRCUMFERENCE_M = 20037508.342789244;
+
+  @Test
+  public void projectsOriginToZero() {
+    assertEquals(0, MercatorProjection.northing(0), DELTA_M);
+    assertEquals(0, MercatorProjection.easting(0), DELTA_M);
+  }
+
+  @Test
+  public void projectsBoundsToMercatorExtent() {
+    assertEquals(HALF_CIRCUMFERENCE_M, MercatorProjection.easting(180), DELTA_M);
+    assertEquals(-HALF_CIRCUMFERENCE_M, MercatorProjection.easting(-180), DELTA_M);
+    assertEquals(HALF_CIRCUMFERENCE_M, MercatorProjection.northing(MercatorProjection.LATITUDE_MAX), DELTA_M);
+    assertEquals(-HALF_CIRCUMFERENCE_M, MercatorProjection.northing(-MercatorProjection.LATITUDE_MAX), DELTA_M);
+  }
+
+  @Test
+  public void projectsKnownCoordinates() {
+    // Berlin and Sydney, from R * ln(tan(pi / 4 + lat / 2)) and R * lng rather than the formulas under test
+    assertEquals(6894699.801, MercatorProjection.northing(52.52), DELTA_M);
+    assertEquals(1492237.774, MercatorProjection.easting(13.405), DELTA_M);
+    assertEquals(-4011198.647, MercatorProjection.northing(-33.8688), DELTA_M);
+    assertEquals(16832542.279, MercatorProjection.easting(151.2093), DELTA_M);
+  }
+
+  @Test
+  public void clampsOutOfRangeCoordinates() {
+    assertEquals(HALF_CIRCUMFERENCE_M, MercatorProjection.northing(90), DELTA_M);
+    assertEquals(HALF_CIRCUMFERENCE_M, MercatorProjection.easting(200), DELTA_M);
+    assertEquals(MercatorProjection.LATITUDE_MAX, MercatorProjection.latitude(2 * HALF_CIRCUMFERENCE_M), DELTA_DEGREES);
+    assertEquals(-180, MercatorProjection.longitude(-2 * HALF_CIRCUMFERENCE_M), DELTA_DEGREES);
+  }
+
+  @Test
+  public void metersPerPixelUsesLogicalPixelsOf512pxTiles() {
+    assertEquals(78271.516964, MercatorProjection.metersPerPixelAtLatitude(0, 0), DELTA_M);
+    assertEquals(39135.758482, MercatorProjection.metersPerPixelAtLatitude(0, 1), DELTA_M);
+    assertEquals(39135.758482, MercatorProjection.metersPerPixelAtLatitude(60, 0), DELTA_M);
+    assertEquals(0.597164, MercatorProjection.metersPerPixelAtLatitude(0, 17), 1e-6);
+  }
+
+  @Test
+  public void roundTripsPackedCoordinates() {
+    double[] latLngs = {52.52, 13.405, -33.8688, 151.2093, 0, -180, 85, 179.999};
+    double[] meters = new double[latLngs.length];
+    MercatorProjection.projectedMetersForLatLngs(latLngs, meters);
+    MercatorProjection.latLngsForProjectedMeters(meters, meters);
+    for (int i = 0; i < latLngs.length; i++) {
+      assertEquals(latLngs[i], meters[i], DELTA_DEGREES);
+    }
+  }
+}
@@ -1,10 +1,47 @@
 import 'dart:async';
+import 'dart:convert';
+import 'dart:math';
+import 'dart:typed_data';
 import 'dart:ui';
 
 import 'package:flutter/services.dart';
 
 const MethodChannel _channel = const MethodChannel('com.mapbox/flutter_mapbox');
 
+/// Binary channel for hot projection calls, see [MapboxOverlayController._project].
+const BasicMessageChannel<ByteData> _projectionChannel =
+    const BasicMessageChannel<ByteData>(
+        'com.mapbox/flutter_mapbox_projection', const BinaryCodec());
+
+/// Stream of events of all maps, each tagged with a textureId and event name.
+const EventChannel _eventChannel =
+    const EventChannel('com.mapbox/flutter_mapbox_events');
+
+final Stream<Map<dynamic, dynamic>> _mapEvents = _eventChannel
+    .receiveBroadcastStream()
+    .map((dynamic event) => event as Map<dynamic, dynamic>);
+
+/// Binary channel for chunked style transfers, see [MapboxOverlayController.setStyleJson].
+const BasicMessageChannel<ByteData> _styleChannel =
+    const BasicMessageChannel<ByteData>(
+        'com.mapbox/flutter_mapbox_style', const BinaryCodec());
+
+const int _opStyleBegin = 0;
+const int _opStyleAppend = 1;
+const int _opStyleCommit = 2;
+const int _opStyleAbort = 3;
+const int _opStyleGet = 4;
+const int _styleChunkBytes = 64 * 1024;
+
+const int _opPixelForLatLng = 0;
+const int _opLatLngForPixel = 1;
+const int _opProjectedMetersForLatLng = 2;
+const int _opLatLngForProjectedMeters = 3;
+const int _opMetersPerPixelAtLatitude = 4;
+
+// Must stay at most half of MapChangeDispatcher.MAX_UNACKNOWLEDGED
+const int _mapChangesPerAck = 2;
+
 class Style {
   static final String mapboxStreets = "mapbox://styles/mapbox/streets-v10";
   static final String outdoors = "mapbox://styles/mapbox/outdoors-v10";
@@ -80,22 +117,502 @@ class CameraPosition {
   }
 }
 
+/// An image of a rendered map frame, see [MapboxOverlayController.snapshot].
+class MapboxSnapshot {
+  final int width;
+  final int height;
+
+  /// Either `png` or `rgba`.
+  final String format;
+
+  /// The PNG file contents, or the raw RGBA pixels with the top row first.
+  final Uint8List bytes;
+
+  /// Whether all tiles were loaded when a thumbnail was captured, false when
+  /// it was captured on timeout. Null for snapshots of on-screen maps.
+  final bool complete;
+
+  /// Milliseconds a thumbnail took to render, excluding the time it was
+  /// queued. Null for snapshots of on-screen maps and for thumbnails served
+  /// from the cache.
+  final double renderMillis;
+
+  MapboxSnapshot(this.width, this.height, this.format, this.bytes,
+      {this.complete, this.renderMillis});
+
+  @override
+  String toString() {
+    return 'MapboxSnapshot{width: $width, height: $height, format: $format, '
+        'complete: $complete, renderMillis: $renderMillis}';
+  }
+
+}
+
+/// The clusters and single points of a clustered source within some bounds.
+/// Entry `i` sits at `[lat, lng]` pair `i` of [coordinates] and holds
+/// `counts[i]` points; [ids] holds the id of one of its points.
+class MapboxClusters {
+  final Float64List coordinates;
+  final Int32List counts;
+  final Int64List ids;
+
+  MapboxClusters(this.coordinates, this.counts, this.ids);
+
+  int get length => counts.length;
+
+  @override
+  String toString() {
+    return 'MapboxClusters{length: $length}';
+  }
+
+}
+
+/// The camera of a map as last pushed by the platform, see
+/// [MapboxOverlayController.cameraState].
+class MapboxCameraState {
+  // Layout of the packed state, matches FlutterMap.CAMERA_* on the platform
+  static const int _latitude = 0;
+  static const int _longitude = 1;
+  static const int _zoom = 2;
+  static const int _bearing = 3;
+  static const int _tilt = 4;
+  static const int _south = 5;
+  static const int _west = 6;
+  static const int _north = 7;
+  static const int _east = 8;
+  static const int _metersPerPixel = 9;
+  static const int _minZoom = 10;
+  static const int _maxZoom = 11;
+
+  final Float64List _state;
+
+  MapboxCameraState._(this._state);
+
+  LatLng get target =>
+      new LatLng(lat: _state[_latitude], lng: _state[_longitude]);
+
+  double get zoom => _state[_zoom];
+
+  double get bearing => _state[_bearing];
+
+  double get tilt => _state[_tilt];
+
+  /// The south west corner of the smallest box enclosing the visible area.
+  LatLng get southWest => new LatLng(lat: _state[_south], lng: _state[_west]);
+
+  /// The north east corner of the smallest box enclosing the visible area.
+  LatLng get northEast => new LatLng(lat: _state[_north], lng: _state[_east]);
+
+  /// Meters per logical pixel at the center of the map.
+  double get metersPerPixel => _state[_metersPerPixel];
+
+  double get minZoom => _state[_minZoom];
+
+  double get maxZoom => _state[_maxZoom];
+
+  CameraPosition get cameraPosition => new CameraPosition(
+      target: target, zoom: zoom, bearing: bearing, tilt: tilt);
+
+  @override
+  String toString() {
+    return 'MapboxCameraState{target: $target, zoom: $zoom, bearing: $bearing, tilt: $tilt}';
+  }
+}
+
 class MapboxMapOptions {
+  /// A style URL, or a style JSON document.
   final String style;
   final CameraPosition camera;
 
-  MapboxMapOptions({this.style, this.camera});
+  /// Paces rendering to vsync at no more than this frame rate, e.g. 30, 60 or
+  /// 120. Render requests between two frames are coalesced. When null, the map
+  /// renders on every request.
+  final int targetFps;
+
+  /// Records frame timings from the start, see
+  /// [MapboxOverlayController.getRenderStats].
+  final bool renderStats;
+
+  /// Renders on a single GL thread shared by all maps that set this flag,
+  /// instead of a dedicated thread per map. Useful when several small maps
+  /// are on screen at once.
+  final bool sharedRenderThread;
+
+  MapboxMapOptions(
+      {this.style,
+      this.camera,
+      this.targetFps,
+      this.renderStats = false,
+      this.sharedRenderThread = false});
 
   Map<String, Object> toMap() {
-    return {"style": style, "camera": camera.toMap()};
+    return {
+      "style": style,
+      "camera": camera?.toMap(),
+      "targetFps": targetFps,
+      "renderStats": renderStats,
+      "sharedRenderThread": sharedRenderThread
+    };
+  }
+}
+
+/// A list of camera and style commands applied by the platform in one call.
+///
+/// Consecutive immediate [moveBy] and [zoomBy] commands are merged on the
+/// platform side before they reach the map.
+class MapboxCommandBatch {
+  final List<Map<String, Object>> _commands = <Map<String, Object>>[];
+
+  bool get isEmpty => _commands.isEmpty;
+
+  void moveBy(double dx, double dy, int duration) {
+    _commands.add(<String, Object>{
+      'method': 'moveBy',
+      'dx': dx,
+      'dy': dy,
+      'duration': duration
+    });
+  }
+
+  void zoom(double zoom, double x, double y, int duration) {
+    _commands.add(<String, Object>{
+      'method': 'zoom',
+      'zoom': zoom,
+      'x': x,
+      'y': y,
+      'duration': duration
+    });
+  }
+
+  void zoomBy(double zoomBy, double x, double y, int duration) {
+    _commands.add(<String, Object>{
+      'method': 'zoomBy',
+      'zoomBy': zoomBy,
+      'x': x,
+      'y': y,
+      'duration': duration
+    });
+  }
+
+  void jumpTo(CameraPosition camera) {
+    _commands.add(<String, Object>{'method': 'jumpTo', 'camera': camera.toMap()});
+  }
+
+  void easeTo(CameraPosition camera, int duration) {
+    _commands.add(<String, Object>{
+      'method': 'easeTo',
+      'camera': camera.toMap(),
+      'duration': duration
+    });
+  }
+
+  void flyTo(CameraPosition camera, int duration) {
+    _commands.add(<String, Object>{
+      'method': 'flyTo',
+      'camera': camera.toMap(),
+      'duration': duration
+    });
+  }
+
+  void setMinZoom(double zoom) {
+    _commands.add(<String, Object>{'method': 'setMinZoom', 'zoom': zoom});
+  }
+
+  void setMaxZoom(double zoom) {
+    _commands.add(<String, Object>{'method': 'setMaxZoom', 'zoom': zoom});
+  }
+
+  void setStyleUrl(String styleUrl) {
+    _commands.add(<String, Object>{'method': 'setStyleUrl', 'styleUrl': styleUrl});
+  }
+
+  void setStyleJson(String styleJson) {
+    _commands
+        .add(<String, Object>{'method': 'setStyleJson', 'styleJson': styleJson});
+  }
+}
+
+/// Renders map images without an on-screen map. Requests are queued and
+/// rendered one after another by a single offscreen map, which keeps the
+/// style and tiles loaded between thumbnails.
+class MapboxThumbnailRenderer {
+  /// Renders the camera and style of [options] at the given size in physical
+  /// pixels, see [MapboxOverlayController.snapshot] for [format] and [scale].
+  /// Fully rendered thumbnails with an explicit camera are cached in memory
+  /// and on disk unless [cache] is false.
+  Future<MapboxSnapshot> render(
+      {double width,
+      double height,
+      MapboxMapOptions options,
+      String format = 'png',
+      double scale = 1.0,
+      bool cache = true}) async {
+    try {
+      final Map<dynamic, dynamic> reply = await _channel.invokeMethod(
+        'renderThumbnail',
+        <String, Object>{
+          'width': width,
+          'height': height,
+          'options': options.toMap(),
+          'format': format,
+          'scale': scale,
+          'cache': cache,
+        },
+      );
+      if (reply == null) {
+        return null;
+      }
+      return new MapboxSnapshot(
+          reply['width'], reply['height'], reply['format'], reply['bytes'],
+          complete: reply['complete'], renderMillis: reply['renderMillis']);
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Hit, miss and eviction counts of the thumbnail cache, along with its
+  /// current size and capacity.
+  Future<Map<dynamic, dynamic>> getCacheStats() async {
+    try {
+      return await _channel.invokeMethod('getThumbnailCacheStats');
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Bounds the memory and disk tiers of the thumbnail cache, in bytes. Tiers
+  /// that are not passed keep their capacity.
+  Future<Null> setCacheCapacity({int memoryBytes, int diskBytes}) async {
+    try {
+      await _channel.invokeMethod(
+        'setThumbnailCacheCapacity',
+        <String, Object>{'memoryBytes': memoryBytes, 'diskBytes': diskBytes},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  Future<Null> clearCache() async {
+    try {
+      await _channel.invokeMethod('clearThumbnailCache');
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Destroys the offscreen map, failing any queued requests.
+  Future<Null> release() async {
+    try {
+      await _channel.invokeMethod('releaseThumbnailRenderer');
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+}
+
+/// Offline regions downloaded for use without connectivity. Regions are
+/// downloaded a few zoom levels at a time, lowest zoom first across all
+/// regions, and survive app restarts in a paused state.
+class MapboxOfflineManager {
+  /// Creates a region covering the bounds from [minZoom] to [maxZoom] of
+  /// [styleUrl] and starts downloading it. Completes with the region id.
+  Future<String> createRegion(
+      {String name,
+      String styleUrl,
+      double south,
+      double west,
+      double north,
+      double east,
+      int minZoom,
+      int maxZoom}) async {
+    try {
+      final Map<dynamic, dynamic> reply = await _channel.invokeMethod(
+        'createOfflineRegion',
+        <String, Object>{
+          'name': name,
+          'styleUrl': styleUrl,
+          'south': south,
+          'west': west,
+          'north': north,
+          'east': east,
+          'minZoom': minZoom,
+          'maxZoom': maxZoom,
+        },
+      );
+      return reply == null ? null : reply['regionId'];
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// The state of every region, laid out like [onProgress] events.
+  Future<List<dynamic>> listRegions() async {
+    try {
+      return await _channel.invokeMethod('listOfflineRegions');
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  Future<bool> pauseRegion(String regionId) => _regionCall('pauseOfflineRegion', regionId);
+
+  Future<bool> resumeRegion(String regionId) => _regionCall('resumeOfflineRegion', regionId);
+
+  /// Stops downloading the region and deletes its tiles.
+  Future<bool> deleteRegion(String regionId) => _regionCall('deleteOfflineRegion', regionId);
+
+  /// Sets how many zoom levels download at the same time, two by default.
+  Future<Null> setMaxActiveDownloads(int maxActiveDownloads) async {
+    try {
+      await _channel.invokeMethod(
+        'setMaxActiveOfflineDownloads',
+        <String, Object>{'maxActiveDownloads': maxActiveDownloads},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Download progress of regions, at most one event per region every
+  /// 250ms. Events hold `regionId`, `state` (`downloading`, `paused` or
+  /// `complete`), resource, tile and byte counts, the lowest `activeZoom` and
+  /// the last `error`.
+  Stream<Map<dynamic, dynamic>> get onProgress => _mapEvents
+      .where((Map<dynamic, dynamic> e) => e['event'] == 'offlineProgress');
+
+  Future<bool> _regionCall(String method, String regionId) async {
+    try {
+      return await _channel.invokeMethod(
+        method,
+        <String, Object>{'regionId': regionId},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+}
+
+/// Controls the tiles kept in the SDK's tile database for upcoming cameras.
+class MapboxTileCache {
+  /// Downloads the tiles of the viewports around [cameras], in order, before
+  /// a map shows them. [viewport] is the map size in logical pixels. Warmed
+  /// tiles are kept within the warm budget, oldest first out. Completes with
+  /// the `warmed`, `cancelled` and `failed` viewport counts. [styleUrl] must
+  /// be the style of the map that will show the cameras.
+  Future<Map<dynamic, dynamic>> warmViewports(
+      List<CameraPosition> cameras, Size viewport, String styleUrl,
+      {String tag = 'default'}) async {
+    final Float64List packed = new Float64List(cameras.length * 3);
+    for (int i = 0; i < cameras.length; i++) {
+      packed[i * 3] = cameras[i].target.lat;
+      packed[i * 3 + 1] = cameras[i].target.lng;
+      packed[i * 3 + 2] = cameras[i].zoom;
+    }
+    try {
+      return await _channel.invokeMethod(
+        'warmViewports',
+        <String, Object>{
+          'tag': tag,
+          'cameras': packed,
+          'width': viewport.width,
+          'height': viewport.height,
+          'styleUrl': styleUrl,
+        },
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Cancels the pending viewports of [warmViewports] calls with [tag].
+  /// Completes with the number of cancelled viewports.
+  Future<int> cancelWarmViewports(String tag) async {
+    try {
+      return await _channel.invokeMethod(
+        'cancelWarmViewports',
+        <String, Object>{'tag': tag},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Sets the warm budget in bytes, the number of viewports downloading at
+  /// the same time and the SDK's Mapbox tile count limit. Null values are
+  /// left unchanged.
+  Future<Null> setConfig(
+      {int maxWarmBytes, int maxActiveDownloads, int tileCountLimit}) async {
+    try {
+      await _channel.invokeMethod(
+        'setTileCacheConfig',
+        <String, Object>{
+          'maxWarmBytes': maxWarmBytes,
+          'maxActiveDownloads': maxActiveDownloads,
+          'tileCountLimit': tileCountLimit,
+        },
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// The tile database path and size, along with the warmed and pending
+  /// viewports.
+  Future<Map<dynamic, dynamic>> getInfo() async {
+    try {
+      return await _channel.invokeMethod('getTileCacheInfo');
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Hands all warmed tiles back to the SDK's regular cache eviction.
+  Future<Null> clearWarmedTiles() async {
+    try {
+      await _channel.invokeMethod('clearWarmedTiles');
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
   }
 }
 
 class MapboxOverlayController {
   int _textureId;
+  StreamController<Map<dynamic, dynamic>> _mapChanges;
+  StreamSubscription<Map<dynamic, dynamic>> _cameraSubscription;
+  MapboxCameraState _cameraState;
 
   void setTextureId(int textureId) {
     _textureId = textureId;
+    _followCamera();
+    _startMapChanges();
+  }
+
+  /// The camera as of the last rendered frame, kept up to date by the
+  /// platform without any calls. Null until the map reported its camera.
+  /// Camera and zoom limit changes show up after the next frame, [getZoom],
+  /// [getMinZoom] and [getMaxZoom] ask the map directly.
+  MapboxCameraState get cameraState => _cameraState;
+
+  /// Starts keeping [cameraState] up to date for the current texture.
+  void _followCamera() {
+    if (_cameraSubscription != null || _textureId == null || _textureId < 0) {
+      return;
+    }
+
+    _cameraSubscription = _eventsOf('camera').listen((event) {
+      _cameraState = new MapboxCameraState._(event['state']);
+    });
+
+    // Pushes only happen on changes, fetch the initial state once
+    final int textureId = _textureId;
+    _channel.invokeMethod('getCameraState',
+        <String, Object>{'textureId': textureId}).then((state) {
+      if (state != null && _cameraState == null && textureId == _textureId) {
+        _cameraState = new MapboxCameraState._(state);
+      }
+    });
   }
 
   Future<int> create(
@@ -111,19 +628,28 @@ class MapboxOverlayController {
       );
 
       _textureId = reply['textureId'];
+      _followCamera();
+      _startMapChanges();
       return new Future.value(_textureId);
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
-  Future<Null> setStyleUrl(String styleUrl) async {
+  /// Builds [count] maps of the given size and style ahead of time and parks
+  /// them, so later [create] calls with matching arguments reuse them.
+  /// Completes once every map loaded its style and visible tiles and was
+  /// parked, or gave up loading after 10 seconds.
+  Future<Null> prewarm(
+      {double width, double height, MapboxMapOptions options, int count = 1}) async {
     try {
       await _channel.invokeMethod(
-        'setStyleUrl',
+        'prewarm',
         <String, Object>{
-          'textureId': _textureId,
-          'styleUrl': styleUrl,
+          'width': width,
+          'height': height,
+          'options': options.toMap(),
+          'count': count,
         },
       );
     } on PlatformException catch (e) {
@@ -131,25 +657,30 @@ class MapboxOverlayController {
     }
   }
 
-  Future<String> getStyleUrl() async {
+  /// Resizes the map surface in physical pixels, keeping the map and its
+  /// loaded tiles.
+  Future<Null> resize(double width, double height) async {
     try {
-      final Map<Object, Object> reply = await _channel.invokeMethod(
-        'getStyleUrl',
-        <String, Object>{'textureId': _textureId},
+      await _channel.invokeMethod(
+        'resize',
+        <String, Object>{
+          'textureId': _textureId,
+          'width': width,
+          'height': height,
+        },
       );
-      return reply['styleUrl'];
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
-  Future<Null> setStyleJson(String styleJson) async {
+  Future<Null> setStyleUrl(String styleUrl) async {
     try {
       await _channel.invokeMethod(
-        'setStyleJson',
+        'setStyleUrl',
         <String, Object>{
           'textureId': _textureId,
-          'styleJson': styleJson,
+          'styleUrl': styleUrl,
         },
       );
     } on PlatformException catch (e) {
@@ -157,18 +688,103 @@ class MapboxOverlayController {
     }
   }
 
-  Future<String> getStyleJson() async {
+  Future<String> getStyleUrl() async {
     try {
       final Map<Object, Object> reply = await _channel.invokeMethod(
-        'getStyleJson',
+        'getStyleUrl',
         <String, Object>{'textureId': _textureId},
       );
-      return reply['styleJson'];
+      return reply['styleUrl'];
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
+  /// Sends the style in UTF-8 chunks over a binary channel instead of as one
+  /// string, see [_styleChunkBytes]. Resolves once the style was applied,
+  /// fails with a [PlatformException] when the platform dropped the transfer.
+  Future<Null> setStyleJson(String styleJson) async {
+    final Uint8List bytes = new Uint8List.fromList(utf8.encode(styleJson));
+    final ByteData begin = _styleRequest(_opStyleBegin, 4)
+      ..setInt32(12, bytes.length);
+    final ByteData beginReply = await _styleChannel.send(begin);
+    if (beginReply == null) {
+      throw new PlatformException(
+          code: 'style', message: 'No map for texture $_textureId');
+    }
+
+    final int transferId = beginReply.getInt32(0);
+    bool committed = false;
+    try {
+      for (int offset = 0; offset < bytes.length; offset += _styleChunkBytes) {
+        final int end = min(offset + _styleChunkBytes, bytes.length);
+        final ByteData append = _styleRequest(_opStyleAppend, 4 + end - offset)
+          ..setInt32(12, transferId);
+        append.buffer.asUint8List(16).setRange(0, end - offset, bytes, offset);
+        if (await _styleChannel.send(append) == null) {
+          throw new PlatformException(
+              code: 'style', message: 'Style transfer $transferId was dropped');
+        }
+      }
+
+      committed = true;
+      final ByteData commitReply = await _styleChannel.send(
+          _styleRequest(_opStyleCommit, 4)..setInt32(12, transferId));
+      if (commitReply == null) {
+        throw new PlatformException(
+            code: 'style', message: 'Style transfer $transferId was dropped');
+      }
+    } finally {
+      if (!committed) {
+        // Frees the buffer the platform holds for the transfer
+        _styleChannel
+            .send(_styleRequest(_opStyleAbort, 4)..setInt32(12, transferId));
+      }
+    }
+  }
+
+  /// Reads the style in UTF-8 chunks over a binary channel. Starts over when
+  /// the style changes while it is read.
+  Future<String> getStyleJson() async {
+    Uint8List bytes;
+    int generation;
+    int received = 0;
+    while (bytes == null || received < bytes.length) {
+      final ByteData request = _styleRequest(_opStyleGet, 8)
+        ..setInt32(12, received)
+        ..setInt32(16, _styleChunkBytes);
+      final ByteData reply = await _styleChannel.send(request);
+      if (reply == null) {
+        return null;
+      }
+
+      final int total = reply.getInt32(0);
+      final int replyGeneration = reply.getInt32(4);
+      if (bytes != null && replyGeneration != generation) {
+        // The style changed between two chunks
+        bytes = null;
+        received = 0;
+        continue;
+      }
+      bytes ??= new Uint8List(total);
+      generation = replyGeneration;
+      final int length = reply.lengthInBytes - 8;
+      if (length <= 0) {
+        break;
+      }
+      bytes.setRange(received, received + length,
+          reply.buffer.asUint8List(reply.offsetInBytes + 8, length));
+      received += length;
+    }
+    return utf8.decode(bytes.sublist(0, received));
+  }
+
+  ByteData _styleRequest(int opcode, int argumentBytes) {
+    return new ByteData(12 + argumentBytes)
+      ..setInt32(0, opcode)
+      ..setInt64(4, _textureId);
+  }
+
   //
   // Camera API
   //
@@ -265,6 +881,20 @@ class MapboxOverlayController {
     }
   }
 
+  Future<Null> batch(MapboxCommandBatch batch) async {
+    try {
+      await _channel.invokeMethod(
+        'batch',
+        <String, Object>{
+          'textureId': _textureId,
+          'commands': batch._commands,
+        },
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
   Future<double> getZoom() async {
     try {
       final Map<Object, Object> reply = await _channel.invokeMethod(
@@ -333,94 +963,508 @@ class MapboxOverlayController {
   // Projection API
   //
 
+  /// Sends a projection request laid out as
+  /// [int32 opcode][int64 textureId][float64 arguments...].
+  /// Returns null when the platform has no map for the current texture.
+  Future<ByteData> _project(int opcode, List<double> arguments) {
+    final ByteData message = new ByteData(12 + arguments.length * 8);
+    message.setInt32(0, opcode);
+    message.setInt64(4, _textureId);
+    for (int i = 0; i < arguments.length; i++) {
+      message.setFloat64(12 + i * 8, arguments[i]);
+    }
+    return _projectionChannel.send(message);
+  }
+
   Future<LatLng> getLatLngForOffset(Offset offset) async {
+    final ByteData reply =
+        await _project(_opLatLngForPixel, <double>[offset.dx, offset.dy]);
+    if (reply == null) {
+      return null;
+    }
+    return new LatLng(lat: reply.getFloat64(0), lng: reply.getFloat64(8));
+  }
+
+  Future<Offset> getOffsetForLatLng(LatLng latLng) async {
+    final ByteData reply =
+        await _project(_opPixelForLatLng, <double>[latLng.lat, latLng.lng]);
+    if (reply == null) {
+      return null;
+    }
+    return new Offset(reply.getFloat64(0), reply.getFloat64(8));
+  }
+
+  Future<ProjectedMeters> getProjectedMetersForLatLng(LatLng latLng) async {
+    final ByteData reply = await _project(
+        _opProjectedMetersForLatLng, <double>[latLng.lat, latLng.lng]);
+    if (reply == null) {
+      return null;
+    }
+    return new ProjectedMeters(reply.getFloat64(0), reply.getFloat64(8));
+  }
+
+  Future<LatLng> getLatLngForProjectedMeters(ProjectedMeters meters) async {
+    final ByteData reply = await _project(_opLatLngForProjectedMeters,
+        <double>[meters.northing, meters.easting]);
+    if (reply == null) {
+      return null;
+    }
+    return new LatLng(lat: reply.getFloat64(0), lng: reply.getFloat64(8));
+  }
+
+  Future<double> getMetersPerPixelAtLatitude(double latitude) async {
+    final ByteData reply =
+        await _project(_opMetersPerPixelAtLatitude, <double>[latitude]);
+    if (reply == null) {
+      return null;
+    }
+    return reply.getFloat64(0);
+  }
+
+  /// Projects packed `[lat, lng, ...]` pairs to packed `[x, y, ...]` pixels
+  /// in a single platform call.
+  Future<Float64List> getOffsetsForLatLngs(Float64List latLngs) {
+    return _projectAll('getPixelsForLatLngs', latLngs);
+  }
+
+  /// Unprojects packed `[x, y, ...]` pixels to packed `[lat, lng, ...]` pairs
+  /// in a single platform call.
+  Future<Float64List> getLatLngsForOffsets(Float64List offsets) {
+    return _projectAll('getLatLngsForPixels', offsets);
+  }
+
+  /// Projects packed `[lat, lng, ...]` pairs to packed `[northing, easting, ...]`
+  /// meters in a single platform call.
+  Future<Float64List> getProjectedMetersForLatLngs(Float64List latLngs) {
+    return _projectAll('getProjectedMetersForLatLngs', latLngs);
+  }
+
+  Future<Float64List> _projectAll(String method, Float64List coordinates) async {
     try {
       final Map<Object, Object> reply = await _channel.invokeMethod(
-        'getLatLngForPixel',
+        method,
         <String, Object>{
           'textureId': _textureId,
-          'x': offset.dx,
-          'y': offset.dy,
+          'coordinates': coordinates,
         },
       );
-      double lat = reply['lat'];
-      double lng = reply['lng'];
-      return new LatLng(lat:lat, lng: lng);
+      return reply == null ? null : reply['coordinates'];
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
-  Future<Offset> getOffsetForLatLng(LatLng latLng) async {
+  /// Downloads the tiles along the path of [flyTo] and [easeTo] animations
+  /// while they run, destination first, through [MapboxTileCache]. Pending
+  /// downloads are cancelled when the animation ends or is interrupted.
+  /// Requires a style set by URL.
+  Future<Null> setPredictivePrefetch(bool enabled) async {
     try {
-      final Map<Object, Object> reply = await _channel.invokeMethod(
-        'getPixelForLatLng',
+      await _channel.invokeMethod(
+        'setPredictivePrefetch',
+        <String, Object>{'textureId': _textureId, 'enabled': enabled},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Shows lower zoom tiles while the tiles of the current zoom load.
+  Future<Null> setPrefetchesTiles(bool enabled) async {
+    try {
+      await _channel.invokeMethod(
+        'setPrefetchesTiles',
+        <String, Object>{'textureId': _textureId, 'enabled': enabled},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  //
+  // GeoJSON source API
+  //
+
+  /// Replaces the features of the GeoJSON source [sourceId], adding the
+  /// source when the style has none with that id.
+  ///
+  /// [coordinates] holds packed `[lat, lng, ...]` pairs. Points use one pair
+  /// per feature; `LineString` and `Polygon` features take the pairs between
+  /// consecutive [featureOffsets], which hold pair indices plus a final end
+  /// index. Optional [ids] become the feature ids. The GeoJSON is built off
+  /// the main thread and applied in one source update; completes with false
+  /// when a newer update for the source superseded this one.
+  Future<bool> setGeoJsonSource(
+    String sourceId,
+    Float64List coordinates, {
+    String geometryType = 'Point',
+    Int32List featureOffsets,
+    Int64List ids,
+  }) async {
+    try {
+      return await _channel.invokeMethod(
+        'setGeoJsonSource',
         <String, Object>{
           'textureId': _textureId,
-          'lat': latLng.lat,
-          'lng': latLng.lng,
+          'sourceId': sourceId,
+          'geometryType': geometryType,
+          'coordinates': coordinates,
+          'featureOffsets': featureOffsets,
+          'ids': ids,
         },
       );
-      double dx = reply['dx'];
-      double dy = reply['dy'];
-      return new Offset(dx, dy);
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
-  Future<ProjectedMeters> getProjectedMetersForLatLng(LatLng latLng) async {
+  /// Moves the features last set with [setGeoJsonSource], keeping their
+  /// geometry type, offsets and ids. [coordinates] must have the same length
+  /// as before.
+  Future<bool> updateGeoJsonFeatures(
+      String sourceId, Float64List coordinates) async {
     try {
-      final Map<Object, Object> reply = await _channel.invokeMethod(
-        'getProjectedMetersForLatLng',
+      return await _channel.invokeMethod(
+        'updateGeoJsonFeatures',
         <String, Object>{
           'textureId': _textureId,
-          'lat': latLng.lat,
-          'lng': latLng.lng,
+          'sourceId': sourceId,
+          'coordinates': coordinates,
         },
       );
-      double northing = reply['northing'];
-      double easting = reply['easting'];
-      return new ProjectedMeters(northing, easting);
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
-  Future<LatLng> getLatLngForProjectedMeters(ProjectedMeters meters) async {
+  /// Applies a delta to the keyed point features of the GeoJSON source
+  /// [sourceId]. Features in [upsertIds] are added or moved to the matching
+  /// packed `[lat, lng, ...]` pairs of [upsertCoordinates]; features in
+  /// [removeIds] are removed. Only the changed features are encoded again, so
+  /// the cost follows the size of the delta. The first delta after
+  /// [setGeoJsonSource] starts from an empty set of features.
+  Future<bool> updateGeoJsonFeatureStore(
+    String sourceId, {
+    Int64List upsertIds,
+    Float64List upsertCoordinates,
+    Int64List removeIds,
+  }) async {
     try {
-      final Map<Object, Object> reply = await _channel.invokeMethod(
-        'getLatLngForProjectedMeters',
+      return await _channel.invokeMethod(
+        'updateGeoJsonFeatureStore',
         <String, Object>{
           'textureId': _textureId,
-          'northing' : meters.northing,
-          'easting' : meters.easting,
+          'sourceId': sourceId,
+          'upsertIds': upsertIds,
+          'upsertCoordinates': upsertCoordinates,
+          'removeIds': removeIds,
         },
       );
-      double latitude = reply['lat'];
-      double longitude =  reply['lng'];
-      return new LatLng(lat: latitude,lng: longitude);
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
-  Future<double> getMetersPerPixelAtLatitude(double latitude) async {
+  /// Clusters [coordinates], packed `[lat, lng, ...]` pairs with one of [ids]
+  /// each, into the GeoJSON source [sourceId]. The source only ever holds the
+  /// clusters and points visible at the current camera; clusters carry the
+  /// `cluster` and `point_count` properties. Points are grouped in cells of
+  /// [radius] pixels, rounded down to a power of two, up to [maxZoom]; above
+  /// it every point is shown on its own.
+  ///
+  /// Completes with `pointCount`, `maxZoom` and `buildMillis` once the points
+  /// are indexed, or null when a later call replaced them first.
+  Future<Map<dynamic, dynamic>> setClusteredSource(
+    String sourceId,
+    Float64List coordinates,
+    Int64List ids, {
+    int radius = 64,
+    int maxZoom = 16,
+  }) async {
     try {
-      final Map<Object, Object> reply = await _channel.invokeMethod(
-        'getMetersPerPixelAtLatitude',
+      return await _channel.invokeMethod(
+        'setClusteredSource',
         <String, Object>{
           'textureId': _textureId,
-          'lat': latitude,
+          'sourceId': sourceId,
+          'coordinates': coordinates,
+          'ids': ids,
+          'radius': radius,
+          'maxZoom': maxZoom,
         },
       );
-      return reply["meters"];
     } on PlatformException catch (e) {
       return new Future.error(e);
     }
   }
 
+  /// Stops updating the clustered source [sourceId]. The source keeps its
+  /// last data.
+  Future<Null> removeClusteredSource(String sourceId) async {
+    try {
+      await _channel.invokeMethod(
+        'removeClusteredSource',
+        <String, Object>{'textureId': _textureId, 'sourceId': sourceId},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Returns the clusters of [sourceId] at [zoom] within the bounds, or null
+  /// until its points are indexed. Bounds crossing the antimeridian have
+  /// [west] greater than [east].
+  Future<MapboxClusters> queryClusters(String sourceId, double zoom,
+      double south, double west, double north, double east) async {
+    try {
+      final Map<dynamic, dynamic> reply = await _channel.invokeMethod(
+        'queryClusters',
+        <String, Object>{
+          'textureId': _textureId,
+          'sourceId': sourceId,
+          'zoom': zoom,
+          'south': south,
+          'west': west,
+          'north': north,
+          'east': east,
+        },
+      );
+      if (reply == null) {
+        return null;
+      }
+      return new MapboxClusters(
+          reply['coordinates'], reply['counts'], reply['ids']);
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  //
+  // Feature index API
+  //
+
+  /// Indexes features for [queryRenderedBounds] and [hitTest] under
+  /// [indexId], replacing any index with that id. The features use the
+  /// packed layout of [setGeoJsonSource]; without [ids] features are
+  /// identified by their position. Completes with `featureCount` and
+  /// `buildMillis` once the index is built off the main thread.
+  Future<Map<dynamic, dynamic>> setFeatureIndex(
+    String indexId,
+    Float64List coordinates, {
+    String geometryType = 'Point',
+    Int32List featureOffsets,
+    Int64List ids,
+  }) async {
+    try {
+      return await _channel.invokeMethod(
+        'setFeatureIndex',
+        <String, Object>{
+          'textureId': _textureId,
+          'indexId': indexId,
+          'geometryType': geometryType,
+          'coordinates': coordinates,
+          'featureOffsets': featureOffsets,
+          'ids': ids,
+        },
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  Future<Null> removeFeatureIndex(String indexId) async {
+    try {
+      await _channel.invokeMethod(
+        'removeFeatureIndex',
+        <String, Object>{'textureId': _textureId, 'indexId': indexId},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Returns the ids of the indexed features whose bounds intersect [rect],
+  /// in screen pixels, or the visible region when [rect] is null.
+  Future<Int64List> queryRenderedBounds(String indexId, [Rect rect]) async {
+    final Map<String, Object> arguments = <String, Object>{
+      'textureId': _textureId,
+      'indexId': indexId,
+    };
+    if (rect != null) {
+      arguments['left'] = rect.left;
+      arguments['top'] = rect.top;
+      arguments['right'] = rect.right;
+      arguments['bottom'] = rect.bottom;
+    }
+    try {
+      final Map<dynamic, dynamic> reply =
+          await _channel.invokeMethod('queryRenderedBounds', arguments);
+      return reply == null ? null : reply['ids'];
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Returns the ids of the indexed features within [radius] pixels of
+  /// [point], nearest first. Polygons hit when [point] lies inside them.
+  Future<Int64List> hitTest(String indexId, Offset point,
+      {double radius = 8.0}) async {
+    try {
+      final Map<dynamic, dynamic> reply = await _channel.invokeMethod(
+        'hitTest',
+        <String, Object>{
+          'textureId': _textureId,
+          'indexId': indexId,
+          'x': point.dx,
+          'y': point.dy,
+          'radius': radius,
+        },
+      );
+      return reply == null ? null : reply['ids'];
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  //
+  // Render stats API
+  //
+
+  /// Starts or stops recording frame timings on the render thread.
+  Future<Null> setRenderStatsEnabled(bool enabled) async {
+    try {
+      await _channel.invokeMethod(
+        'setRenderStatsEnabled',
+        <String, Object>{'textureId': _textureId, 'enabled': enabled},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Returns a summary of the recorded frame timings, or null when recording
+  /// is disabled. Durations are in microseconds.
+  Future<Map<dynamic, dynamic>> getRenderStats() async {
+    try {
+      return await _channel.invokeMethod(
+        'getRenderStats',
+        <String, Object>{'textureId': _textureId},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Render stats summaries, emitted every second while recording.
+  Stream<Map<dynamic, dynamic>> get onRenderStats => _eventsOf('renderStats');
+
+  /// Captures the next rendered frame as a PNG, or as raw RGBA pixels when
+  /// [format] is `rgba`. Other formats complete with a [PlatformException].
+  /// A [scale] below 1 downscales the image.
+  Future<MapboxSnapshot> snapshot({String format = 'png', double scale = 1.0}) async {
+    try {
+      final Map<dynamic, dynamic> reply = await _channel.invokeMethod(
+        'snapshot',
+        <String, Object>{
+          'textureId': _textureId,
+          'format': format,
+          'scale': scale,
+        },
+      );
+      if (reply == null) {
+        return null;
+      }
+      return new MapboxSnapshot(
+          reply['width'], reply['height'], reply['format'], reply['bytes']);
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Milliseconds from [create] to each startup stage reached so far:
+  /// `constructed`, `contextCreated`, `styleLoaded` and `firstFrame`, plus
+  /// `reused` when a pooled map was reused.
+  Future<Map<dynamic, dynamic>> getStartupTimings() async {
+    try {
+      return await _channel.invokeMethod(
+        'getStartupTimings',
+        <String, Object>{'textureId': _textureId},
+      );
+    } on PlatformException catch (e) {
+      return new Future.error(e);
+    }
+  }
+
+  /// Emits the startup timings once the map rendered its first frame, or a
+  /// [PlatformException] when the map could not be built after [create]
+  /// replied.
+  Stream<Map<dynamic, dynamic>> get onFirstFrame =>
+      _eventsOf('firstFrame').map((Map<dynamic, dynamic> event) {
+        if (event['error'] != null) {
+          throw new PlatformException(code: 'create', message: event['error']);
+        }
+        return event;
+      });
+
+  /// Map changes, at most one event per frame. Each event lists the kinds of
+  /// change since the previous one under `changes`, and the latest `camera`
+  /// when the region changed. Listeners are called synchronously, and events
+  /// are acknowledged once they returned, so the platform holds back further
+  /// events while listeners are behind. The platform only collects changes
+  /// while this stream has listeners.
+  Stream<Map<dynamic, dynamic>> get onMapChanged {
+    if (_mapChanges == null) {
+      StreamSubscription<Map<dynamic, dynamic>> subscription;
+      int handled = 0;
+      _mapChanges = new StreamController<Map<dynamic, dynamic>>.broadcast(
+          sync: true,
+          onListen: () {
+        handled = 0;
+        subscription = _eventsOf('mapChanged').listen((event) {
+          _mapChanges.add(event);
+          // Acknowledged a few at a time, the platform allows twice as many
+          // unacknowledged events
+          if (++handled == _mapChangesPerAck) {
+            handled = 0;
+            _channel.invokeMethod('ackMapChanges', <String, Object>{
+              'textureId': event['textureId'],
+              'count': _mapChangesPerAck,
+            });
+          }
+        });
+        _startMapChanges();
+      }, onCancel: () {
+        subscription.cancel();
+        if (_textureId != null && _textureId >= 0) {
+          _channel.invokeMethod(
+              'stopMapChanges', <String, Object>{'textureId': _textureId});
+        }
+      });
+    }
+    return _mapChanges.stream;
+  }
+
+  /// Starts the platform side of [onMapChanged] when it has listeners.
+  void _startMapChanges() {
+    if (_mapChanges == null ||
+        !_mapChanges.hasListener ||
+        _textureId == null ||
+        _textureId < 0) {
+      return;
+    }
+    _channel.invokeMethod(
+        'startMapChanges', <String, Object>{'textureId': _textureId});
+  }
+
+  Stream<Map<dynamic, dynamic>> _eventsOf(String event) {
+    return _mapEvents.where((Map<dynamic, dynamic> e) =>
+        e['textureId'] == _textureId && e['event'] == event);
+  }
+
   Future<Null> dispose(int _textureId) async {
+    _cameraSubscription?.cancel();
+    _cameraSubscription = null;
+    _cameraState = null;
     try {
       await _channel.invokeMethod(
         'dispose',
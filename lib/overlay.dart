@@ -23,11 +23,18 @@ class MapboxOverlay extends StatefulWidget {
 ///  - maintaining the map transformation
 ///  - handling gesture input
 class _MapboxOverlayState extends State<MapboxOverlay> {
+  /// How long the layout size has to stay stable before the map is resized.
+  static const Duration _resizeDebounce = const Duration(milliseconds: 150);
+
   bool _initialized = false;
   int _textureId = -1;
   Offset _scaleStartFocal;
   double _zoom;
   Size _size; // local coordinate system.
+  MapboxCommandBatch _pendingGestures;
+  bool _gestureInFlight = false;
+  Size _pendingSize;
+  Timer _resizeTimer;
 
   Future<Null> _createMapView(
       Window window, Size size, MapboxMapOptions options) async {
@@ -64,6 +71,7 @@ class _MapboxOverlayState extends State<MapboxOverlay> {
         return new Container();
       } else {
         widget.controller.setTextureId(_textureId);
+        _scheduleResize(constraints.biggest);
       }
 
       GestureDetector detector = new GestureDetector(
@@ -77,6 +85,39 @@ class _MapboxOverlayState extends State<MapboxOverlay> {
     });
   }
 
+  @override
+  void dispose() {
+    _resizeTimer?.cancel();
+    super.dispose();
+  }
+
+  /// Resizes the map once the layout size stopped changing, so rotations and
+  /// split-screen drags result in a single resize.
+  void _scheduleResize(Size size) {
+    if (size == (_pendingSize ?? _size)) {
+      return;
+    }
+
+    _pendingSize = size;
+    _resizeTimer?.cancel();
+    _resizeTimer = new Timer(_resizeDebounce, () {
+      if (!mounted) {
+        return;
+      }
+      if (_textureId == -1) {
+        // Not created yet, the next build compares against the created size again
+        _pendingSize = null;
+        return;
+      }
+
+      final Size newSize = _pendingSize;
+      _pendingSize = null;
+      _size = newSize;
+      widget.controller.resize(newSize.width * window.devicePixelRatio,
+          newSize.height * window.devicePixelRatio);
+    });
+  }
+
   /// Called when the user double taps the screen, results in zooming the map
   void _onDoubleTap() {
     // TODO we currently zoom on center, this needs to be the tapped offset instead
@@ -97,7 +138,8 @@ class _MapboxOverlayState extends State<MapboxOverlay> {
   void _onScaleUpdate(ScaleUpdateDetails details) {
     Offset focalGesture = localToMapOffset(details.focalPoint);
     final Offset delta = focalGesture - _scaleStartFocal;
-    widget.controller.moveBy(delta.dx, delta.dy, 0);
+    _pendingGestures ??= new MapboxCommandBatch();
+    _pendingGestures.moveBy(delta.dx, delta.dy, 0);
 
     if (details.scale != 1.0) {
       RenderBox renderBox = context.findRenderObject();
@@ -106,12 +148,30 @@ class _MapboxOverlayState extends State<MapboxOverlay> {
 
       double newZoom = _zoomLevel(details.scale);
       double _zoomBy = newZoom - _zoom;
-      widget.controller.zoomBy(_zoomBy, focalPoint.dx, focalPoint.dy, 0);
+      _pendingGestures.zoomBy(_zoomBy, focalPoint.dx, focalPoint.dy, 0);
 
       _zoom = newZoom;
     }
 
     _scaleStartFocal = localToMapOffset(details.focalPoint);
+    _flushGestures();
+  }
+
+  /// Sends the gesture updates collected so far as a single batch.
+  /// While a batch is in flight, new updates keep accumulating and are sent
+  /// together once the platform has applied the previous one.
+  void _flushGestures() {
+    if (_gestureInFlight || _pendingGestures == null) {
+      return;
+    }
+
+    final MapboxCommandBatch batch = _pendingGestures;
+    _pendingGestures = null;
+    _gestureInFlight = true;
+    widget.controller.batch(batch).whenComplete(() {
+      _gestureInFlight = false;
+      _flushGestures();
+    });
   }
 
   /// Called when the users stops scaling the map.